@@ -0,0 +1,75 @@
+package spino;
+
+import org.apache.http.HttpHost;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SpinoHttpHostProvider iteration from concurrent client threads,
+ * for each host selection strategy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class HostProviderBenchmark {
+
+    @Param({"3", "30"})
+    int hosts;
+
+    @Param({"round-robin", "random", "power-of-two", "weighted-random"})
+    String strategy;
+
+    SpinoHttpHostProvider provider;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = (SpinoHttpHostProvider) SpinoHttpHostProvider.ofService("benchmark-" + strategy + "-" + hosts, newStrategy());
+        List<URL> addresses = new ArrayList<URL>();
+        for (int i = 0; i < hosts; i++) {
+            addresses.add(new URL("http://host-" + i + ".example.com:8080"));
+        }
+        provider.buildHostsList(addresses);
+    }
+
+    private HostSelectionStrategy newStrategy() {
+        if (strategy.equals("random")) {
+            return new RandomStrategy();
+        }
+        if (strategy.equals("power-of-two")) {
+            return new PowerOfTwoChoicesStrategy();
+        }
+        if (strategy.equals("weighted-random")) {
+            return new WeightedRandomStrategy();
+        }
+        return new RoundRobinStrategy();
+    }
+
+    /**
+     * The common case: the first host answers.
+     */
+    @Benchmark
+    public HttpHost firstHost() {
+        return provider.iterator().next();
+    }
+
+    /**
+     * Every host fails, and the client walks all of them.
+     */
+    @Benchmark
+    public void allHosts(Blackhole blackhole) {
+        Iterator<HttpHost> iterator = provider.iterator();
+        while (iterator.hasNext()) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package spino.core;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Builds routing tables of a given size for benchmarks.
+ *
+ * Every member binds LOCATIONS_PER_MEMBER locations, spread over at most SERVICES services.
+ */
+final class Bindings {
+
+    static final int LOCATIONS_PER_MEMBER = 10;
+    static final int SERVICES = 100;
+
+    private static final String[] SERVICE_NAMES = new String[SERVICES];
+    static {
+        for (int i = 0; i < SERVICES; i++) {
+            SERVICE_NAMES[i] = "service-" + i;
+        }
+    }
+
+    static final RoutingTable.RoutingTableListener NO_LISTENER = new RoutingTable.RoutingTableListener() {
+        @Override
+        public void onRoutingTableChange(Collection<String> services) {
+        }
+    };
+
+    private Bindings() {
+    }
+
+    static String service(int i) {
+        return SERVICE_NAMES[(i & Integer.MAX_VALUE) % SERVICES];
+    }
+
+    static URL address(int member, int location) {
+        try {
+            return new URL("http://host-" + member + ".example.com:" + (8000 + location));
+        }
+        catch (MalformedURLException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @param size - total number of bindings
+     * @return the members of the table, each with its locations
+     */
+    static List<StubMember> members(int size) {
+        List<StubMember> members = new ArrayList<StubMember>();
+        for (int i = 0; i * LOCATIONS_PER_MEMBER < size; i++) {
+            members.add(new StubMember(i));
+        }
+        return members;
+    }
+
+    static List<ServiceLocation> locations(int member, int size) {
+        List<ServiceLocation> locations = new ArrayList<ServiceLocation>();
+        for (int l = 0; l < LOCATIONS_PER_MEMBER && member * LOCATIONS_PER_MEMBER + l < size; l++) {
+            locations.add(new ServiceLocation(service(member * LOCATIONS_PER_MEMBER + l), address(member, l)));
+        }
+        return locations;
+    }
+
+    static RoutingTable populate(RoutingTable table, List<StubMember> members, int size) {
+        for (int m = 0; m < members.size(); m++) {
+            table.updateMember(members.get(m), locations(m, size));
+        }
+        return table;
+    }
+}
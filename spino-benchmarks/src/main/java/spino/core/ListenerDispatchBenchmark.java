@@ -0,0 +1,70 @@
+package spino.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency between a routing table change and its delivery to a service listener,
+ * with no coalescing window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    private static final String SERVICE = "dispatched-service";
+
+    RoutingTable table;
+    ListenerDispatcher dispatcher;
+    LocationBinding binding;
+    boolean active;
+
+    volatile long delivered;
+
+    @Setup
+    public void setUp() {
+        Metrics metrics = new Metrics();
+        table = new RoutingTable(new RoutingTable.RoutingTableListener() {
+            @Override
+            public void onRoutingTableChange(Collection<String> services) {
+                dispatcher.servicesChanged(services);
+            }
+        }, metrics);
+        dispatcher = new ListenerDispatcher(table, metrics);
+        dispatcher.start(new SpinoConfig().setNotificationWindow(0, TimeUnit.MILLISECONDS));
+        dispatcher.addServiceChangeListener(SERVICE, new SpinoServiceChangeListener() {
+            @Override
+            public void onServiceChange(ServiceChangeEvent event) {
+                delivered = event.getVersion();
+            }
+        });
+        binding = new LocationBinding(SERVICE, Bindings.address(0, 0), new StubMember(0));
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public long changeAndDeliver() {
+        if (active) {
+            table.removeLocation(binding);
+        }
+        else {
+            table.addLocation(binding);
+        }
+        active = !active;
+
+        long version = table.getSnapshot(SERVICE).getVersion();
+        while (delivered < version) {
+            Thread.yield();
+        }
+        return version;
+    }
+}
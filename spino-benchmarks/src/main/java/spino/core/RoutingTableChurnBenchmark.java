@@ -0,0 +1,69 @@
+package spino.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of applying changes to routing tables of increasing size.
+ * Each operation is undone by the same invocation, so the table size stays constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingTableChurnBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    int bindings;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    RoutingTable table;
+    List<StubMember> members;
+    int next;
+
+    @Setup
+    public void setUp() {
+        members = Bindings.members(bindings);
+        table = new RoutingTable(Bindings.NO_LISTENER, new Metrics());
+        table.setCompact(compact);
+        Bindings.populate(table, members, bindings);
+    }
+
+    /**
+     * A location is activated and deactivated on a member.
+     */
+    @Benchmark
+    public void addRemoveLocation() {
+        int m = next++ % members.size();
+        LocationBinding binding = new LocationBinding(Bindings.service(m), Bindings.address(m, Bindings.LOCATIONS_PER_MEMBER), members.get(m));
+        table.addLocation(binding);
+        table.removeLocation(binding);
+    }
+
+    /**
+     * A member leaves the cluster, and comes back.
+     */
+    @Benchmark
+    public void removeAddMember() {
+        StubMember member = members.get(next++ % members.size());
+        table.removeMember(member);
+        table.addMember(member);
+    }
+
+    /**
+     * A member publishes its locations again, as a batch, after deactivating one.
+     */
+    @Benchmark
+    public void updateMember() {
+        int m = next++ % members.size();
+        List<ServiceLocation> locations = Bindings.locations(m, bindings);
+        table.updateMember(members.get(m), locations.subList(1, locations.size()));
+        table.updateMember(members.get(m), locations);
+    }
+}
@@ -0,0 +1,66 @@
+package spino.core;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RoutingTable.getServiceAddresses under concurrent readers,
+ * alone and while another thread keeps changing the table.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingTableReadBenchmark {
+
+    @Param({"1000", "50000"})
+    int bindings;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    RoutingTable table;
+    List<StubMember> members;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        members = Bindings.members(bindings);
+        table = new RoutingTable(Bindings.NO_LISTENER, new Metrics());
+        table.setCompact(compact);
+        Bindings.populate(table, members, bindings);
+    }
+
+    @Benchmark
+    @Group("readers")
+    @GroupThreads(4)
+    public Collection<URL> read(Cursor cursor) {
+        return table.getServiceAddresses(Bindings.service(cursor.next++));
+    }
+
+    @Benchmark
+    @Group("readersWithChurn")
+    @GroupThreads(3)
+    public Collection<URL> readDuringChurn(Cursor cursor) {
+        return table.getServiceAddresses(Bindings.service(cursor.next++));
+    }
+
+    @Benchmark
+    @Group("readersWithChurn")
+    @GroupThreads(1)
+    public void churn(Cursor cursor) {
+        StubMember member = members.get(cursor.next++ % members.size());
+        table.removeMember(member);
+        table.addMember(member);
+    }
+}
@@ -0,0 +1,86 @@
+package spino.core;
+
+import com.hazelcast.core.Member;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A cluster member that does not need a running Hazelcast instance.
+ */
+final class StubMember implements Member {
+
+    private final String uuid;
+    private final InetSocketAddress address;
+
+    StubMember(int id) {
+        this.uuid = "stub-member-" + id;
+        this.address = InetSocketAddress.createUnresolved("10.0." + (id / 256 % 256) + "." + (id % 256), 5701);
+    }
+
+    @Override
+    public boolean localMember() {
+        return false;
+    }
+
+    @Override
+    public int getPort() {
+        return address.getPort();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return address.getAddress();
+    }
+
+    @Override
+    public InetSocketAddress getInetSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public boolean isSuperClient() {
+        return false;
+    }
+
+    @Override
+    public boolean isLiteMember() {
+        return false;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public void writeData(DataOutput out) throws IOException {
+        throw new UnsupportedOperationException("stub members are never serialized");
+    }
+
+    @Override
+    public void readData(DataInput in) throws IOException {
+        throw new UnsupportedOperationException("stub members are never serialized");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return uuid.equals(((StubMember) o).uuid);
+    }
+
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return uuid;
+    }
+}
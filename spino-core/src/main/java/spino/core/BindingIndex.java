@@ -0,0 +1,75 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.core.Member;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The bindings of a RoutingTable, indexed by member and by service, with their status:
+ * a binding is disabled when its member has left the cluster.
+ *
+ * Implementations are not thread-safe: the RoutingTable only uses them while holding its lock.
+ */
+interface BindingIndex {
+
+    interface Visitor {
+        void visit(LocationBinding binding, boolean enabled);
+    }
+
+    LocationBinding get(Member member, ServiceLocation location);
+
+    /**
+     * Add a binding, replacing the binding of the same member for the same location.
+     * The binding is visited after the other bindings of its service.
+     * @param binding
+     * @param enabled - the status of the binding
+     */
+    void put(LocationBinding binding, boolean enabled);
+
+    /**
+     * @return true if there was such a binding
+     */
+    boolean remove(Member member, ServiceLocation location);
+
+    /**
+     * @return a copy of the bindings of a member
+     */
+    List<LocationBinding> getBindings(Member member);
+
+    /**
+     * Enable or disable all the bindings of a member
+     * @return the services of the bindings of the member
+     */
+    Set<String> setMemberStatus(Member member, boolean enabled);
+
+    /**
+     * @return the services with a binding for this address
+     */
+    Set<String> getServices(LocationAddress address);
+
+    /**
+     * Visit the bindings of a service, in the order they were put
+     */
+    void visitService(String service, Visitor visitor);
+
+    /**
+     * Visit all the bindings, in no particular order
+     */
+    void visitAll(Visitor visitor);
+}
@@ -0,0 +1,374 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.core.Member;
+
+import java.util.*;
+
+/**
+ * Bindings in primitive arrays, for registries with many locations.
+ *
+ * Service names and members are interned to int ids. Each binding takes a slot in
+ * parallel arrays, that hold its service and member ids and link it in two doubly linked
+ * lists: the bindings of its service, in the order they were put, and the bindings of its member.
+ * Statuses are bits in a BitSet, indexed by slot. Bindings are found by member and location
+ * in an open addressing hash table of slots (linear probing, with backward shift deletion).
+ *
+ * Per binding, this takes about 50 bytes besides the binding itself, and no objects:
+ * a HashBindingIndex takes about three times as much, in several objects per binding.
+ * Slots and ids are reused, arrays grow but never shrink.
+ */
+final class CompactBindingIndex implements BindingIndex {
+
+    private static final int NONE = -1;
+
+    // interned services: name -> id, and per id its name, first and last binding, and count
+    private final Map<String, Integer> serviceIds = new HashMap<String, Integer>();
+    private String[] serviceNames = new String[16];
+    private int[] serviceHead = new int[16];
+    private int[] serviceTail = new int[16];
+    private int[] serviceSize = new int[16];
+    private final IdPool serviceIdPool = new IdPool();
+
+    // interned members: member -> id, and per id its first binding and count
+    private final Map<Member, Integer> memberIds = new HashMap<Member, Integer>();
+    private int[] memberHead = new int[16];
+    private int[] memberSize = new int[16];
+    private final IdPool memberIdPool = new IdPool();
+
+    // bindings by slot
+    private LocationBinding[] bindings = new LocationBinding[64];
+    private int[] serviceOf = new int[64];
+    private int[] memberOf = new int[64];
+    private int[] nextInService = new int[64];
+    private int[] previousInService = new int[64];
+    private int[] nextInMember = new int[64];
+    private int[] previousInMember = new int[64];
+    private final BitSet enabled = new BitSet();
+    private final IdPool slotPool = new IdPool();
+    private int size;
+
+    // slot + 1 of the binding for a member and location, 0 if empty. The length is a power of two
+    private int[] table = new int[128];
+
+    @Override
+    public LocationBinding get(Member member, ServiceLocation location) {
+        Integer memberId = memberIds.get(member);
+        if (memberId == null) {
+            return null;
+        }
+        int position = position(memberId, location);
+        return position == NONE ? null : bindings[table[position] - 1];
+    }
+
+    @Override
+    public void put(LocationBinding binding, boolean status) {
+        remove(binding.getMember(), binding.getServiceInstance());
+
+        int serviceId = internService(binding.getService());
+        int memberId = internMember(binding.getMember());
+        int slot = slotPool.acquire();
+        ensureSlots(slot + 1);
+        bindings[slot] = binding;
+        serviceOf[slot] = serviceId;
+        memberOf[slot] = memberId;
+        enabled.set(slot, status);
+
+        // last of its service
+        nextInService[slot] = NONE;
+        previousInService[slot] = serviceTail[serviceId];
+        if (serviceTail[serviceId] == NONE) {
+            serviceHead[serviceId] = slot;
+        }
+        else {
+            nextInService[serviceTail[serviceId]] = slot;
+        }
+        serviceTail[serviceId] = slot;
+        serviceSize[serviceId]++;
+
+        // first of its member
+        previousInMember[slot] = NONE;
+        nextInMember[slot] = memberHead[memberId];
+        if (memberHead[memberId] != NONE) {
+            previousInMember[memberHead[memberId]] = slot;
+        }
+        memberHead[memberId] = slot;
+        memberSize[memberId]++;
+
+        size++;
+        if (size * 2 > table.length) {
+            // inserts the new slot too
+            rehash(table.length * 2);
+        }
+        else {
+            insert(slot);
+        }
+    }
+
+    @Override
+    public boolean remove(Member member, ServiceLocation location) {
+        Integer memberId = memberIds.get(member);
+        if (memberId == null) {
+            return false;
+        }
+        int position = position(memberId, location);
+        if (position == NONE) {
+            return false;
+        }
+        int slot = table[position] - 1;
+        delete(position);
+
+        int serviceId = serviceOf[slot];
+        if (previousInService[slot] == NONE) {
+            serviceHead[serviceId] = nextInService[slot];
+        }
+        else {
+            nextInService[previousInService[slot]] = nextInService[slot];
+        }
+        if (nextInService[slot] == NONE) {
+            serviceTail[serviceId] = previousInService[slot];
+        }
+        else {
+            previousInService[nextInService[slot]] = previousInService[slot];
+        }
+        if (--serviceSize[serviceId] == 0) {
+            serviceIds.remove(serviceNames[serviceId]);
+            serviceNames[serviceId] = null;
+            serviceIdPool.release(serviceId);
+        }
+
+        if (previousInMember[slot] == NONE) {
+            memberHead[memberId] = nextInMember[slot];
+        }
+        else {
+            nextInMember[previousInMember[slot]] = nextInMember[slot];
+        }
+        if (nextInMember[slot] != NONE) {
+            previousInMember[nextInMember[slot]] = previousInMember[slot];
+        }
+        if (--memberSize[memberId] == 0) {
+            memberIds.remove(member);
+            memberIdPool.release(memberId);
+        }
+
+        bindings[slot] = null;
+        enabled.clear(slot);
+        slotPool.release(slot);
+        size--;
+        return true;
+    }
+
+    @Override
+    public List<LocationBinding> getBindings(Member member) {
+        Integer memberId = memberIds.get(member);
+        if (memberId == null) {
+            return Collections.emptyList();
+        }
+        List<LocationBinding> result = new ArrayList<LocationBinding>(memberSize[memberId]);
+        for (int slot = memberHead[memberId]; slot != NONE; slot = nextInMember[slot]) {
+            result.add(bindings[slot]);
+        }
+        return result;
+    }
+
+    @Override
+    public Set<String> setMemberStatus(Member member, boolean status) {
+        Integer memberId = memberIds.get(member);
+        if (memberId == null) {
+            return Collections.emptySet();
+        }
+        Set<String> affected = new HashSet<String>();
+        for (int slot = memberHead[memberId]; slot != NONE; slot = nextInMember[slot]) {
+            enabled.set(slot, status);
+            affected.add(serviceNames[serviceOf[slot]]);
+        }
+        return affected;
+    }
+
+    @Override
+    public Set<String> getServices(LocationAddress address) {
+        Set<String> services = new HashSet<String>();
+        for (int slot = 0; slot < slotPool.limit(); slot++) {
+            if (bindings[slot] != null && bindings[slot].getServiceInstance().getKey().equals(address)) {
+                services.add(serviceNames[serviceOf[slot]]);
+            }
+        }
+        return services;
+    }
+
+    @Override
+    public void visitService(String service, Visitor visitor) {
+        Integer serviceId = serviceIds.get(service);
+        if (serviceId == null) {
+            return;
+        }
+        for (int slot = serviceHead[serviceId]; slot != NONE; slot = nextInService[slot]) {
+            visitor.visit(bindings[slot], enabled.get(slot));
+        }
+    }
+
+    @Override
+    public void visitAll(Visitor visitor) {
+        for (int slot = 0; slot < slotPool.limit(); slot++) {
+            if (bindings[slot] != null) {
+                visitor.visit(bindings[slot], enabled.get(slot));
+            }
+        }
+    }
+
+    private int internService(String service) {
+        Integer id = serviceIds.get(service);
+        if (id != null) {
+            return id;
+        }
+        int serviceId = serviceIdPool.acquire();
+        if (serviceId >= serviceNames.length) {
+            int length = serviceNames.length * 2;
+            serviceNames = Arrays.copyOf(serviceNames, length);
+            serviceHead = Arrays.copyOf(serviceHead, length);
+            serviceTail = Arrays.copyOf(serviceTail, length);
+            serviceSize = Arrays.copyOf(serviceSize, length);
+        }
+        serviceIds.put(service, serviceId);
+        serviceNames[serviceId] = service;
+        serviceHead[serviceId] = NONE;
+        serviceTail[serviceId] = NONE;
+        serviceSize[serviceId] = 0;
+        return serviceId;
+    }
+
+    private int internMember(Member member) {
+        Integer id = memberIds.get(member);
+        if (id != null) {
+            return id;
+        }
+        int memberId = memberIdPool.acquire();
+        if (memberId >= memberHead.length) {
+            int length = memberHead.length * 2;
+            memberHead = Arrays.copyOf(memberHead, length);
+            memberSize = Arrays.copyOf(memberSize, length);
+        }
+        memberIds.put(member, memberId);
+        memberHead[memberId] = NONE;
+        memberSize[memberId] = 0;
+        return memberId;
+    }
+
+    private void ensureSlots(int slots) {
+        if (slots <= bindings.length) {
+            return;
+        }
+        int length = bindings.length * 2;
+        bindings = Arrays.copyOf(bindings, length);
+        serviceOf = Arrays.copyOf(serviceOf, length);
+        memberOf = Arrays.copyOf(memberOf, length);
+        nextInService = Arrays.copyOf(nextInService, length);
+        previousInService = Arrays.copyOf(previousInService, length);
+        nextInMember = Arrays.copyOf(nextInMember, length);
+        previousInMember = Arrays.copyOf(previousInMember, length);
+    }
+
+    private static int hash(int memberId, ServiceLocation location) {
+        int hash = memberId * 0x9E3779B9 + location.hashCode();
+        // spread the high bits, as HashMap does
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return the position of the binding in the table, or NONE
+     */
+    private int position(int memberId, ServiceLocation location) {
+        int mask = table.length - 1;
+        for (int position = hash(memberId, location) & mask; ; position = (position + 1) & mask) {
+            int entry = table[position];
+            if (entry == 0) {
+                return NONE;
+            }
+            int slot = entry - 1;
+            if (memberOf[slot] == memberId && bindings[slot].getServiceInstance().equals(location)) {
+                return position;
+            }
+        }
+    }
+
+    private void insert(int slot) {
+        int mask = table.length - 1;
+        int position = hash(memberOf[slot], bindings[slot].getServiceInstance()) & mask;
+        while (table[position] != 0) {
+            position = (position + 1) & mask;
+        }
+        table[position] = slot + 1;
+    }
+
+    /**
+     * Empty a position, moving back the entries that probed past it
+     */
+    private void delete(int position) {
+        int mask = table.length - 1;
+        int empty = position;
+        table[empty] = 0;
+        for (int current = (empty + 1) & mask; table[current] != 0; current = (current + 1) & mask) {
+            int slot = table[current] - 1;
+            int home = hash(memberOf[slot], bindings[slot].getServiceInstance()) & mask;
+            // the entry can move to the empty position if its home is not cyclically in (empty, current]
+            boolean reachable = empty <= current
+                    ? home > empty && home <= current
+                    : home > empty || home <= current;
+            if (!reachable) {
+                table[empty] = table[current];
+                table[current] = 0;
+                empty = current;
+            }
+        }
+    }
+
+    private void rehash(int length) {
+        table = new int[length];
+        for (int slot = 0; slot < slotPool.limit(); slot++) {
+            if (bindings[slot] != null) {
+                insert(slot);
+            }
+        }
+    }
+
+    /**
+     * Hands out the lowest ids first, and reuses released ids
+     */
+    private static final class IdPool {
+        private int[] released = new int[16];
+        private int releasedCount;
+        private int limit;
+
+        int acquire() {
+            return releasedCount > 0 ? released[--releasedCount] : limit++;
+        }
+
+        void release(int id) {
+            if (releasedCount == released.length) {
+                released = Arrays.copyOf(released, released.length * 2);
+            }
+            released[releasedCount++] = id;
+        }
+
+        /**
+         * @return one more than the highest id ever acquired
+         */
+        int limit() {
+            return limit;
+        }
+    }
+}
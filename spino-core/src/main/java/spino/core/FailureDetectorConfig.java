@@ -0,0 +1,123 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings of failure detection, see SpinoConfig.setFailureDetector.
+ *
+ * A member that misses heartbeats is first suspected: its locations are demoted on this node,
+ * and only used if no other location of their service is available. If it stays unreachable
+ * until the removal timeout, it is removed from the cluster, and its locations are disabled everywhere.
+ *
+ * With the Hazelcast backend, nodes exchange heartbeats every heartbeat interval, and a member is
+ * suspected when it misses them for the suspicion timeout or, if a phi threshold is set, when
+ * the phi accrual detector exceeds it. The heartbeat interval and the removal timeout also
+ * configure the Hazelcast heartbeats, in whole seconds.
+ *
+ * With the gossip backend, a member is probed every heartbeat interval, and suspected when
+ * it fails a probe: the suspicion timeout and the phi threshold are not used.
+ *
+ * <pre>
+ * Spino.start(new SpinoConfig().setFailureDetector(new FailureDetectorConfig()
+ *     .setHeartbeatInterval(500, TimeUnit.MILLISECONDS)
+ *     .setPhiThreshold(8)
+ *     .setRemovalTimeout(10, TimeUnit.SECONDS)));
+ * </pre>
+ */
+public class FailureDetectorConfig {
+
+    private long heartbeatIntervalMillis = 1000;
+    private long suspicionTimeoutMillis = 3000;
+    private double phiThreshold = 0;
+    private long removalTimeoutMillis = 30000;
+
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    /**
+     * How often members send heartbeats, or are probed. Defaults to one second.
+     * @param interval
+     * @param unit
+     * @return this config
+     */
+    public FailureDetectorConfig setHeartbeatInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("heartbeat interval must be positive: " + interval);
+        }
+        this.heartbeatIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    public long getSuspicionTimeoutMillis() {
+        return suspicionTimeoutMillis;
+    }
+
+    /**
+     * Suspect a member that sent no heartbeat for this long. Defaults to three seconds.
+     * Not used if a phi threshold is set.
+     * @param timeout
+     * @param unit
+     * @return this config
+     */
+    public FailureDetectorConfig setSuspicionTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("suspicion timeout must be positive: " + timeout);
+        }
+        this.suspicionTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public double getPhiThreshold() {
+        return phiThreshold;
+    }
+
+    /**
+     * Suspect members with a phi accrual failure detector, that adapts to the observed
+     * heartbeat intervals: a member is suspected when phi exceeds the threshold.
+     * With a threshold of 8, the probability of a false suspicion is about 10^-8.
+     * Disabled by default.
+     * @param phiThreshold - zero to use the suspicion timeout instead
+     * @return this config
+     */
+    public FailureDetectorConfig setPhiThreshold(double phiThreshold) {
+        if (phiThreshold < 0) {
+            throw new IllegalArgumentException("phi threshold must not be negative: " + phiThreshold);
+        }
+        this.phiThreshold = phiThreshold;
+        return this;
+    }
+
+    public long getRemovalTimeoutMillis() {
+        return removalTimeoutMillis;
+    }
+
+    /**
+     * Remove a member that is unreachable for this long. Defaults to 30 seconds.
+     * @param timeout
+     * @param unit
+     * @return this config
+     */
+    public FailureDetectorConfig setRemovalTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("removal timeout must be positive: " + timeout);
+        }
+        this.removalTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+}
@@ -0,0 +1,1357 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.Member;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A SWIM-style gossip backend over UDP, with no shared storage: each node keeps
+ * the state of all nodes (status and locations record) and disseminates changes.
+ *
+ * Failure detection:
+ *      Every PROBE_INTERVAL, a node pings the next member of a shuffled list. If the ack
+ *      does not arrive within PROBE_TIMEOUT, INDIRECT_PROBES other members are asked to ping it
+ *      (PING_REQ) and relay the ack. A member that is not acked within the interval is suspected,
+ *      and declared dead if it does not refute the suspicion within SUSPICION_TIMEOUT.
+ *      A member refutes a suspicion by gossiping itself alive with a higher incarnation.
+ *      With a FailureDetectorConfig, the probe interval is the heartbeat interval, the probe timeout
+ *      half of it, and the suspicion timeout is the removal timeout.
+ *
+ * Dissemination:
+ *      Each change to the state of a node (its status, or a new version of its record) is queued
+ *      as a broadcast, and sent a few times (a multiple of log(members)): piggybacked on
+ *      pings and acks, and pushed to GOSSIP_FANOUT random members every GOSSIP_INTERVAL.
+ *      Only the state of changed nodes is sent, never the whole state.
+ *      Packets are kept under MAX_PACKET, so that they are never fragmented: a record that does not
+ *      fit is gossiped as omitted, and the nodes that receive it fetch it with an anti-entropy sync.
+ *
+ * Anti-entropy:
+ *      Every SYNC_INTERVAL, a node connects over TCP (on the gossip port) to a random member and
+ *      sends the digest of its state (node, incarnation, status, record version). The member replies
+ *      with the newer states it has and with its own digest, and the node sends the states that are
+ *      newer than that digest. Joining nodes sync with their seeds before start returns, and so does
+ *      a node that knows no other member.
+ *
+ * A record belongs to its node, and only its node publishes new versions of it.
+ * Records of leased nodes expire on each node, unless a new version is received within the lease.
+ * Records of dead nodes are kept until MemberReaper removes them, then their node is remembered
+ * (as a tombstone) so that older gossip can not bring it back.
+ *
+ * Packets are written with DataOutput, and records in the MemberLocations format:
+ * <pre>
+ *   int     MAGIC
+ *   byte    protocol version
+ *   byte    type
+ *   UTF     sender uuid
+ *   ...     type specific fields
+ *   short   number of node states, then for each node:
+ *     UTF   uuid
+ *     UTF   host
+ *     int   port
+ *     int   incarnation
+ *     byte  status
+ *     long  record version
+ *     long  lease, in millis, or 0
+ *     byte  NO_RECORD, RECORD then the record, or RECORD_OMITTED
+ * </pre>
+ * A sync connection carries the same header, and digests and node states as above.
+ *
+ * UDP I/O happens on a single thread, and syncs on two more: one that accepts connections and one
+ * that initiates them. The state is guarded by a lock, and the listener is invoked without holding it:
+ * on one of these threads, on the thread that starts the backend, or on the thread that publishes a record.
+ * A second lock, held from applying changes to notifying them, keeps the events of all these threads
+ * in the order the changes were applied.
+ */
+final class GossipBackend implements SpinoBackend, Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(GossipBackend.class);
+
+    private static final int MAGIC = 0x5350494e;
+    private static final byte PROTOCOL_VERSION = 2;
+
+    private static final byte PING = 1;
+    private static final byte ACK = 2;
+    private static final byte PING_REQ = 3;
+    private static final byte SYNC = 4;
+    private static final byte UPDATES = 5;
+
+    private static final byte NO_RECORD = 0;
+    private static final byte RECORD = 1;
+    private static final byte RECORD_OMITTED = 2;
+
+    // fits the common 1500 bytes MTU with IP and UDP headers, so that datagrams are not fragmented
+    private static final int MAX_PACKET = 1400;
+    private static final int PORT_ATTEMPTS = 100;
+
+    private static final long PROBE_INTERVAL = 1000;
+    private static final long PROBE_TIMEOUT = 500;
+    private static final int INDIRECT_PROBES = 3;
+    private static final long SUSPICION_TIMEOUT = 5000;
+
+    // the timings above, unless a failure detector is configured
+    private long probeInterval = PROBE_INTERVAL;
+    private long probeTimeout = PROBE_TIMEOUT;
+    private long suspicionTimeout = SUSPICION_TIMEOUT;
+
+    private static final long GOSSIP_INTERVAL = 200;
+    private static final int GOSSIP_FANOUT = 3;
+    private static final int RETRANSMIT_MULTIPLIER = 3;
+
+    private static final long SYNC_INTERVAL = 10000;
+    // connect and read timeout of a sync connection
+    private static final int SYNC_TIMEOUT = 5000;
+
+    private static final long TOMBSTONE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private enum Status {
+        // in order of precedence, for states with the same incarnation
+        ALIVE, SUSPECT, DEAD, LEFT;
+
+        boolean isLive() {
+            return this == ALIVE || this == SUSPECT;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    // held from applying changes under lock to firing their events, so that the listener sees
+    // the events of all threads in the order they were applied. Taken before lock, never after
+    private final Object delivery = new Object();
+
+    // all known nodes by uuid, including the local one, guarded by lock
+    private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+
+    // uuid -> tombstone of forgotten nodes, guarded by lock
+    private final Map<String, Tombstone> forgotten = new HashMap<String, Tombstone>();
+
+    // uuid -> transmissions left, of nodes whose state changed, guarded by lock
+    private final Map<String, Integer> broadcasts = new HashMap<String, Integer>();
+
+    // addresses of the syncs that are queued or running, guarded by lock
+    private final Set<InetSocketAddress> syncing = new HashSet<InetSocketAddress>();
+
+    private volatile boolean joined;
+
+    // set when the local record changes, to push it without waiting for the next gossip
+    private final AtomicBoolean pushRequested = new AtomicBoolean();
+
+    private Node local;
+    private volatile Listener listener;
+    private List<InetSocketAddress> seeds = new ArrayList<InetSocketAddress>();
+
+    private volatile boolean running;
+    private Thread thread;
+    private DatagramChannel channel;
+    private Selector selector;
+    private ServerSocket server;
+    private Thread acceptor;
+    private ExecutorService syncer;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(64 * 1024);
+
+    // only accessed by the gossip thread
+    private long sequence;
+    private Probe probe;
+    private final List<Node> probeOrder = new ArrayList<Node>();
+    private int probeIndex;
+    private final Map<Long, Relay> relays = new HashMap<Long, Relay>();
+
+    @Override
+    public void start(SpinoConfig config, Listener listener) {
+        if (config.isLiteMember() || config.isLegacyServicesMap()) {
+            throw new IllegalStateException("lite members and the spino-services map need the Hazelcast backend");
+        }
+        this.listener = listener;
+        FailureDetectorConfig failureDetector = config.getFailureDetector();
+        if (failureDetector != null) {
+            probeInterval = failureDetector.getHeartbeatIntervalMillis();
+            probeTimeout = Math.max(1, probeInterval / 2);
+            suspicionTimeout = failureDetector.getRemovalTimeoutMillis();
+        }
+        try {
+            String host = config.getGossipHost() != null
+                    ? config.getGossipHost() : InetAddress.getLocalHost().getHostAddress();
+            bind(host, config.getGossipPort());
+            if (config.getSeeds() != null) {
+                for (String seed : config.getSeeds()) {
+                    InetSocketAddress address = parseAddress(seed, config.getGossipPort());
+                    if (!address.equals(channel.socket().getLocalSocketAddress())) {
+                        seeds.add(address);
+                    }
+                }
+            }
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("Could not start the gossip backend", ex);
+        }
+
+        running = true;
+        syncer = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-gossip-sync").setDaemon(true).build());
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "spino-gossip-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // join before the gossip thread starts probing, so that the listener sees the whole cluster first
+        for (InetSocketAddress seed : seeds) {
+            if (syncWith(seed)) {
+                break;
+            }
+        }
+        if (!seeds.isEmpty() && !joined) {
+            LOG.warn("No seed answered, starting alone: {}", seeds);
+        }
+
+        thread = new Thread(this, "spino-gossip");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void bind(String host, int port) throws IOException {
+        selector = Selector.open();
+        for (int attempt = 0; attempt < PORT_ATTEMPTS; attempt++) {
+            DatagramChannel candidate = DatagramChannel.open();
+            ServerSocket candidateServer = new ServerSocket();
+            try {
+                candidate.socket().bind(new InetSocketAddress(host, port + attempt));
+                candidateServer.setReuseAddress(true);
+                candidateServer.bind(new InetSocketAddress(host, port + attempt));
+            }
+            catch (IOException ex) {
+                candidate.close();
+                candidateServer.close();
+                continue;
+            }
+            candidate.configureBlocking(false);
+            candidate.register(selector, SelectionKey.OP_READ);
+            channel = candidate;
+            server = candidateServer;
+            MemberImpl member = new MemberImpl(new Address(host, port + attempt), true, NodeType.MEMBER,
+                    UUID.randomUUID().toString());
+            local = new Node(member);
+            nodes.put(member.getUuid(), local);
+            LOG.info("Gossip backend listening on {}:{} as {}", host, port + attempt, member.getUuid());
+            return;
+        }
+        throw new IOException("No free port between " + port + " and " + (port + PORT_ATTEMPTS - 1));
+    }
+
+    private static InetSocketAddress parseAddress(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon == -1) {
+            return new InetSocketAddress(address, defaultPort);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            server.close();
+        }
+        catch (IOException ex) {
+            LOG.warn("Could not close gossip sync socket", ex);
+        }
+        syncer.shutdownNow();
+        selector.wakeup();
+        try {
+            thread.join(probeInterval);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Member getLocalMember() {
+        return local.member;
+    }
+
+    @Override
+    public Set<Member> getMembers() {
+        Set<Member> members = new LinkedHashSet<Member>();
+        synchronized (lock) {
+            for (Node node : nodes.values()) {
+                if (node.status.isLive()) {
+                    members.add(node.member);
+                }
+            }
+        }
+        return members;
+    }
+
+    @Override
+    public Collection<MemberLocations> getRecords() {
+        List<MemberLocations> records = new ArrayList<MemberLocations>();
+        synchronized (lock) {
+            for (Node node : nodes.values()) {
+                if (node.record != null) {
+                    records.add(node.record);
+                }
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void publish(Collection<ServiceLocation> locations, long leaseMillis) {
+        MemberLocations removed;
+        MemberLocations record = locations.isEmpty() ? null : new MemberLocations(local.member, locations);
+        synchronized (delivery) {
+            synchronized (lock) {
+                removed = record == null ? local.record : null;
+                local.record = record;
+                local.recordVersion++;
+                local.leaseMillis = leaseMillis;
+                local.recordExpires = leaseMillis > 0 ? now() + leaseMillis : 0;
+                broadcast(local);
+            }
+            if (record != null) {
+                listener.recordUpdated(record);
+            }
+            else if (removed != null) {
+                listener.recordRemoved(removed);
+            }
+        }
+        pushRequested.set(true);
+        selector.wakeup();
+    }
+
+    @Override
+    public boolean isCoordinator() {
+        // each node forgets departed members on its own
+        return true;
+    }
+
+    @Override
+    public boolean removeRecord(Member member) {
+        synchronized (lock) {
+            Node node = nodes.get(member.getUuid());
+            if (node == null || node.status.isLive()) {
+                return false;
+            }
+            nodes.remove(member.getUuid());
+            broadcasts.remove(member.getUuid());
+            forgotten.put(member.getUuid(), new Tombstone(node.incarnation, now() + TOMBSTONE_MILLIS));
+            return node.record != null;
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextProbe = 0;
+        long nextGossip = 0;
+        long nextSync = 0;
+        while (running) {
+            try {
+                long now = now();
+                synchronized (delivery) {
+                    List<Runnable> events = new ArrayList<Runnable>();
+                    if (probe != null) {
+                        checkProbe(now, events);
+                    }
+                    synchronized (lock) {
+                        expire(now, events);
+                    }
+                    fire(events);
+                }
+                if (probe == null && now >= nextProbe) {
+                    startProbe(now);
+                    nextProbe = now + probeInterval;
+                }
+                if (now >= nextGossip || pushRequested.getAndSet(false)) {
+                    gossip();
+                    nextGossip = now + GOSSIP_INTERVAL;
+                }
+                if (now >= nextSync) {
+                    sync();
+                    nextSync = now + (joined ? SYNC_INTERVAL : probeInterval);
+                }
+
+                long wakeup = Math.min(Math.min(nextProbe, nextGossip), nextSync);
+                if (probe != null) {
+                    wakeup = Math.min(wakeup, probe.deadline);
+                }
+                selector.select(Math.max(1, wakeup - now));
+                selector.selectedKeys().clear();
+                receive();
+            }
+            catch (Exception ex) {
+                LOG.error("Error in gossip backend", ex);
+            }
+        }
+        leave();
+    }
+
+    private void receive() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            if (sender == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            try {
+                handle((InetSocketAddress) sender, new DataInputStream(new ByteArrayInputStream(
+                        receiveBuffer.array(), 0, receiveBuffer.limit())));
+            }
+            catch (IOException ex) {
+                LOG.warn("Discarding invalid packet from " + sender, ex);
+            }
+        }
+    }
+
+    private void handle(InetSocketAddress sender, DataInput in) throws IOException {
+        byte type = readHeader(in);
+        switch (type) {
+            case PING: {
+                long seq = in.readLong();
+                String target = in.readUTF();
+                merge(in, sender);
+                // a previous incarnation of this node does not ack
+                if (target.equals(local.member.getUuid())) {
+                    send(sender, ACK, seq, null, null);
+                }
+                break;
+            }
+            case ACK: {
+                long seq = in.readLong();
+                merge(in, sender);
+                if (probe != null && probe.seq == seq) {
+                    probe.acked = true;
+                }
+                Relay relay = relays.remove(seq);
+                if (relay != null) {
+                    send(relay.requester, ACK, relay.seq, null, null);
+                }
+                break;
+            }
+            case PING_REQ: {
+                long seq = in.readLong();
+                String target = in.readUTF();
+                InetSocketAddress address = new InetSocketAddress(in.readUTF(), in.readInt());
+                merge(in, sender);
+                long relaySeq = ++sequence;
+                relays.put(relaySeq, new Relay(sender, seq, now() + probeInterval));
+                send(address, PING, relaySeq, target, null);
+                break;
+            }
+            case UPDATES:
+                merge(in, sender);
+                break;
+            default:
+                throw new IOException("Unknown packet type: " + type);
+        }
+    }
+
+    /**
+     * Reads the node states in a packet, and applies the newer ones. Records omitted
+     * from the packet are fetched from the sender.
+     */
+    private void merge(DataInput in, InetSocketAddress sender) throws IOException {
+        int count = in.readShort();
+        boolean omitted = false;
+        synchronized (delivery) {
+            List<Runnable> events = new ArrayList<Runnable>();
+            synchronized (lock) {
+                for (int i = 0; i < count; i++) {
+                    omitted |= merge(readState(in), events);
+                }
+            }
+            fire(events);
+        }
+        if (omitted) {
+            requestSync(sender);
+        }
+    }
+
+    /**
+     * Applies a node state if newer. Must be called while holding the lock.
+     * @return true if the state has a newer record, that was omitted
+     */
+    private boolean merge(State state, List<Runnable> events) {
+        long now = now();
+        Tombstone tombstone = forgotten.get(state.uuid);
+        if (tombstone != null) {
+            if (state.status != Status.ALIVE || state.incarnation <= tombstone.incarnation) {
+                return false;
+            }
+            // it was declared dead by mistake, and refuted it
+            forgotten.remove(state.uuid);
+        }
+
+        if (state.uuid.equals(local.member.getUuid())) {
+            if (state.status != Status.ALIVE && state.incarnation >= local.incarnation) {
+                LOG.info("Refuting {} status", state.status);
+                local.incarnation = state.incarnation + 1;
+                broadcast(local);
+            }
+            return false;
+        }
+
+        Node node = nodes.get(state.uuid);
+        if (node == null) {
+            node = new Node(new MemberImpl(state.address, false, NodeType.MEMBER, state.uuid));
+            node.incarnation = state.incarnation;
+            node.status = state.status;
+            node.statusChanged = now;
+            if (!state.recordOmitted) {
+                node.record = state.record;
+                node.recordVersion = state.recordVersion;
+                node.leaseMillis = state.leaseMillis;
+                node.recordExpires = state.leaseMillis > 0 ? now + state.leaseMillis : 0;
+            }
+            nodes.put(state.uuid, node);
+            if (node.member.equals(local.member) && node.status.isLive()) {
+                // a previous incarnation of this node, that is certainly not running
+                node.status = Status.DEAD;
+            }
+            if (node.status.isLive()) {
+                events.add(memberAdded(node.member));
+                deliverRecord(node, null, events);
+                if (node.status == Status.SUSPECT) {
+                    events.add(memberSuspected(node.member));
+                }
+            }
+            else {
+                // only remembered until the reaper forgets it
+                memberDown(node, events);
+            }
+            broadcast(node);
+            return state.recordOmitted;
+        }
+
+        Status previousStatus = node.status;
+        boolean wasLive = previousStatus.isLive();
+        boolean changed = false;
+        if (state.incarnation > node.incarnation
+                || (state.incarnation == node.incarnation && state.status.compareTo(node.status) > 0)) {
+            node.incarnation = state.incarnation;
+            node.status = state.status;
+            node.statusChanged = now;
+            changed = true;
+        }
+        MemberLocations previous = node.delivered ? node.record : null;
+        boolean omitted = state.recordOmitted && state.recordVersion > node.recordVersion;
+        if (state.recordVersion > node.recordVersion && !omitted) {
+            node.record = state.record;
+            node.recordVersion = state.recordVersion;
+            node.leaseMillis = state.leaseMillis;
+            node.recordExpires = state.leaseMillis > 0 ? now + state.leaseMillis : 0;
+            changed = true;
+            if (node.status.isLive() && wasLive) {
+                deliverRecord(node, previous, events);
+            }
+            else if (previous != null && node.record == null) {
+                node.delivered = false;
+                events.add(recordRemoved(previous));
+            }
+        }
+        if (!wasLive && node.status.isLive()) {
+            events.add(memberAdded(node.member));
+            deliverRecord(node, previous, events);
+        }
+        else if (wasLive && !node.status.isLive()) {
+            memberDown(node, events);
+        }
+        else if (previousStatus == Status.ALIVE && node.status == Status.SUSPECT) {
+            events.add(memberSuspected(node.member));
+        }
+        else if (previousStatus == Status.SUSPECT && node.status == Status.ALIVE) {
+            LOG.info("{} refuted the suspicion", node.member);
+            events.add(memberRecovered(node.member));
+        }
+        if (changed) {
+            broadcast(node);
+        }
+        return omitted;
+    }
+
+    // must be called while holding the lock
+    private void deliverRecord(Node node, MemberLocations previous, List<Runnable> events) {
+        if (node.record != null) {
+            node.delivered = true;
+            events.add(recordUpdated(node.record));
+        }
+        else if (previous != null) {
+            node.delivered = false;
+            events.add(recordRemoved(previous));
+        }
+    }
+
+    // must be called while holding the lock
+    private void memberDown(Node node, List<Runnable> events) {
+        LOG.info("{} is {}", node.member, node.status);
+        events.add(memberRemoved(node.member));
+        // members are equal by address: restore a newer incarnation at the same address
+        for (Node other : nodes.values()) {
+            if (other != node && other.status.isLive() && other.member.equals(node.member)) {
+                events.add(memberAdded(other.member));
+            }
+        }
+    }
+
+    /**
+     * Suspects members that did not ack, declares dead the suspects that did not refute,
+     * expires leased records and forgets old tombstones. Must be called while holding the lock.
+     */
+    private void expire(long now, List<Runnable> events) {
+        for (Node node : nodes.values()) {
+            if (node.status == Status.SUSPECT && node != local && now - node.statusChanged >= suspicionTimeout) {
+                node.status = Status.DEAD;
+                node.statusChanged = now;
+                broadcast(node);
+                memberDown(node, events);
+            }
+            if (node.record != null && node.recordExpires > 0 && now >= node.recordExpires) {
+                LOG.info("Lease of {} expired", node.member);
+                MemberLocations expired = node.record;
+                node.record = null;
+                if (node.delivered || node == local) {
+                    node.delivered = false;
+                    events.add(recordRemoved(expired));
+                }
+            }
+        }
+        Iterator<Tombstone> tombstones = forgotten.values().iterator();
+        while (tombstones.hasNext()) {
+            if (tombstones.next().expires <= now) {
+                tombstones.remove();
+            }
+        }
+        Iterator<Relay> expiredRelays = relays.values().iterator();
+        while (expiredRelays.hasNext()) {
+            if (expiredRelays.next().expires <= now) {
+                expiredRelays.remove();
+            }
+        }
+    }
+
+    private void startProbe(long now) {
+        Node target = null;
+        synchronized (lock) {
+            if (probeIndex >= probeOrder.size()) {
+                probeOrder.clear();
+                for (Node node : nodes.values()) {
+                    if (node != local && node.status.isLive()) {
+                        probeOrder.add(node);
+                    }
+                }
+                Collections.shuffle(probeOrder, ThreadLocalRandom.current());
+                probeIndex = 0;
+            }
+            while (probeIndex < probeOrder.size() && target == null) {
+                Node candidate = probeOrder.get(probeIndex++);
+                if (candidate.status.isLive() && nodes.get(candidate.member.getUuid()) == candidate) {
+                    target = candidate;
+                }
+            }
+        }
+        if (target != null) {
+            probe = new Probe(target, ++sequence, now, now + probeInterval);
+            send(target.socketAddress(), PING, probe.seq, target.member.getUuid(), null);
+        }
+    }
+
+    private void checkProbe(long now, List<Runnable> events) {
+        if (probe.acked) {
+            probe = null;
+            return;
+        }
+        if (!probe.indirect && now >= probe.started + probeTimeout) {
+            probe.indirect = true;
+            for (Node helper : randomMembers(INDIRECT_PROBES, probe.target)) {
+                send(helper.socketAddress(), PING_REQ, probe.seq, probe.target.member.getUuid(), probe.target);
+            }
+        }
+        if (now >= probe.deadline) {
+            synchronized (lock) {
+                Node target = probe.target;
+                if (target.status == Status.ALIVE && nodes.get(target.member.getUuid()) == target) {
+                    LOG.info("Suspecting {}, no ack within {} ms", target.member, probeInterval);
+                    target.status = Status.SUSPECT;
+                    target.statusChanged = now;
+                    broadcast(target);
+                    events.add(memberSuspected(target.member));
+                }
+            }
+            probe = null;
+        }
+    }
+
+    private void gossip() {
+        synchronized (lock) {
+            if (broadcasts.isEmpty()) {
+                return;
+            }
+        }
+        for (Node node : randomMembers(GOSSIP_FANOUT, null)) {
+            send(node.socketAddress(), UPDATES, 0, null, null);
+        }
+    }
+
+    private void sync() {
+        List<Node> members = randomMembers(1, null);
+        if (!joined || members.isEmpty()) {
+            for (InetSocketAddress seed : seeds) {
+                requestSync(seed);
+            }
+        }
+        else {
+            requestSync(members.get(0).socketAddress());
+        }
+    }
+
+    /**
+     * Queues a sync with a node, unless one is already queued or running.
+     */
+    private void requestSync(final InetSocketAddress address) {
+        synchronized (lock) {
+            if (!syncing.add(address)) {
+                return;
+            }
+        }
+        try {
+            syncer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        syncWith(address);
+                    }
+                    finally {
+                        synchronized (lock) {
+                            syncing.remove(address);
+                        }
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            synchronized (lock) {
+                syncing.remove(address);
+            }
+        }
+    }
+
+    /**
+     * Sends the local digest to a node, applies the newer states it replies with,
+     * and sends the states that are newer than its digest.
+     * @return true if the sync completed
+     */
+    private boolean syncWith(InetSocketAddress address) {
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, SYNC_TIMEOUT);
+            socket.setSoTimeout(SYNC_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            writeHeader(out, SYNC);
+            writeDigest(out);
+            out.flush();
+
+            if (readHeader(in) != SYNC) {
+                throw new IOException("Not a sync reply");
+            }
+            mergeAll(in);
+            listener.synced();
+            writeNewer(out, readDigest(in));
+            out.flush();
+            joined = true;
+            return true;
+        }
+        catch (IOException ex) {
+            LOG.debug("Could not sync with " + address, ex);
+            return false;
+        }
+        finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * Answers the syncs of other nodes, one at a time.
+     */
+    private void accept() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            }
+            catch (IOException ex) {
+                if (running) {
+                    LOG.warn("Could not accept gossip sync", ex);
+                }
+                continue;
+            }
+            try {
+                socket.setSoTimeout(SYNC_TIMEOUT);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                if (readHeader(in) != SYNC) {
+                    throw new IOException("Not a sync request");
+                }
+                Map<String, Digest> digest = readDigest(in);
+                writeHeader(out, SYNC);
+                writeNewer(out, digest);
+                writeDigest(out);
+                out.flush();
+                mergeAll(in);
+                listener.synced();
+            }
+            catch (IOException ex) {
+                LOG.debug("Could not answer sync from " + socket.getRemoteSocketAddress(), ex);
+            }
+            finally {
+                close(socket);
+            }
+        }
+    }
+
+    /**
+     * Writes the states that are newer than a digest, with their records.
+     */
+    private void writeNewer(DataOutputStream out, Map<String, Digest> digest) throws IOException {
+        List<State> newer = new ArrayList<State>();
+        synchronized (lock) {
+            for (Node node : nodes.values()) {
+                Digest known = digest.get(node.member.getUuid());
+                if (known == null || known.isOlderThan(node)) {
+                    newer.add(new State(node));
+                }
+            }
+        }
+        out.writeInt(newer.size());
+        for (State state : newer) {
+            out.write(toBytes(state));
+        }
+    }
+
+    /**
+     * Applies the states read from a sync connection one at a time, so that the delivery
+     * of other events does not wait for the connection.
+     */
+    private void mergeAll(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            State state = readState(in);
+            synchronized (delivery) {
+                List<Runnable> events = new ArrayList<Runnable>();
+                synchronized (lock) {
+                    merge(state, events);
+                }
+                fire(events);
+            }
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        }
+        catch (IOException ex) {
+            LOG.debug("Could not close gossip sync connection", ex);
+        }
+    }
+
+    /**
+     * Tells live members that this node is leaving, and closes the channel.
+     */
+    private void leave() {
+        State left;
+        synchronized (lock) {
+            local.status = Status.LEFT;
+            left = new State(local);
+        }
+        for (Node node : randomMembers(Integer.MAX_VALUE, null)) {
+            byte[] packet = packet(UPDATES, 0, null, null, new ArrayList<State>(Collections.singletonList(left)));
+            if (packet != null) {
+                sendPacket(node.socketAddress(), packet);
+            }
+        }
+        try {
+            channel.close();
+            selector.close();
+        }
+        catch (IOException ex) {
+            LOG.warn("Could not close gossip channel", ex);
+        }
+    }
+
+    private List<Node> randomMembers(int count, Node excluded) {
+        List<Node> members = new ArrayList<Node>();
+        synchronized (lock) {
+            for (Node node : nodes.values()) {
+                if (node != local && node != excluded && node.status.isLive()) {
+                    members.add(node);
+                }
+            }
+        }
+        Collections.shuffle(members, ThreadLocalRandom.current());
+        return members.size() > count ? members.subList(0, count) : members;
+    }
+
+    /**
+     * Queues the state of a node for dissemination. Must be called while holding the lock.
+     */
+    private void broadcast(Node node) {
+        int live = 0;
+        for (Node other : nodes.values()) {
+            live += other.status.isLive() ? 1 : 0;
+        }
+        int transmissions = RETRANSMIT_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(live));
+        broadcasts.put(node.member.getUuid(), Math.max(1, transmissions));
+    }
+
+    private void send(InetSocketAddress address, byte type, long seq, String target, Node targetNode) {
+        byte[] packet = packet(type, seq, target, targetNode, null);
+        if (packet != null) {
+            sendPacket(address, packet);
+        }
+    }
+
+    private void sendPacket(InetSocketAddress address, byte[] packet) {
+        try {
+            channel.send(ByteBuffer.wrap(packet), address);
+        }
+        catch (IOException ex) {
+            LOG.debug("Could not send to " + address, ex);
+        }
+    }
+
+    /**
+     * Writes a packet, filling the remaining space with node states: the given ones
+     * (removed from the list as they are written), or the queued broadcasts.
+     * @return the packet, or null if it could not be written
+     */
+    private byte[] packet(byte type, long seq, String target, Node targetNode, List<State> states) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_PACKET);
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeHeader(out, type);
+            switch (type) {
+                case PING:
+                    out.writeLong(seq);
+                    out.writeUTF(target);
+                    break;
+                case ACK:
+                    out.writeLong(seq);
+                    break;
+                case PING_REQ:
+                    out.writeLong(seq);
+                    out.writeUTF(target);
+                    out.writeUTF(targetNode.address().getHost());
+                    out.writeInt(targetNode.address().getPort());
+                    break;
+                default:
+                    break;
+            }
+
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(MAX_PACKET);
+            DataOutputStream payloadOut = new DataOutputStream(payload);
+            int room = MAX_PACKET - bytes.size() - 2;
+            int count = states != null ? writeStates(payloadOut, room, states) : writeBroadcasts(payloadOut, room);
+            out.writeShort(count);
+            payloadOut.flush();
+            payload.writeTo(out);
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException ex) {
+            LOG.error("Could not write gossip packet", ex);
+            return null;
+        }
+    }
+
+    private void writeHeader(DataOutput out, byte type) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(PROTOCOL_VERSION);
+        out.writeByte(type);
+        out.writeUTF(local.member.getUuid());
+    }
+
+    /**
+     * Reads the header of a packet or sync connection.
+     * @return the type
+     */
+    private static byte readHeader(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a spino gossip packet");
+        }
+        byte version = in.readByte();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported gossip protocol version: " + version);
+        }
+        byte type = in.readByte();
+        in.readUTF();
+        return type;
+    }
+
+    private int writeStates(DataOutputStream out, int room, List<State> states) throws IOException {
+        int count = 0;
+        Iterator<State> iterator = states.iterator();
+        while (iterator.hasNext() && count < Short.MAX_VALUE) {
+            byte[] state = gossipBytes(iterator.next(), room);
+            if (out.size() + state.length > room) {
+                break;
+            }
+            out.write(state);
+            iterator.remove();
+            count++;
+        }
+        return count;
+    }
+
+    private int writeBroadcasts(DataOutputStream out, int room) throws IOException {
+        List<State> states = new ArrayList<State>();
+        synchronized (lock) {
+            // most recent changes, with the most transmissions left, first
+            List<Map.Entry<String, Integer>> queued = new ArrayList<Map.Entry<String, Integer>>(broadcasts.entrySet());
+            Collections.sort(queued, new Comparator<Map.Entry<String, Integer>>() {
+                @Override
+                public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                    return b.getValue().compareTo(a.getValue());
+                }
+            });
+            int size = 0;
+            for (Map.Entry<String, Integer> entry : queued) {
+                Node node = nodes.get(entry.getKey());
+                if (node == null) {
+                    broadcasts.remove(entry.getKey());
+                    continue;
+                }
+                State state = new State(node);
+                size += gossipBytes(state, room).length;
+                if (size > room) {
+                    break;
+                }
+                states.add(state);
+                if (entry.getValue() <= 1) {
+                    broadcasts.remove(entry.getKey());
+                }
+                else {
+                    broadcasts.put(entry.getKey(), entry.getValue() - 1);
+                }
+            }
+        }
+        return writeStates(out, room, states);
+    }
+
+    private void writeDigest(DataOutputStream out) throws IOException {
+        synchronized (lock) {
+            out.writeInt(nodes.size());
+            for (Node node : nodes.values()) {
+                out.writeUTF(node.member.getUuid());
+                out.writeInt(node.incarnation);
+                out.writeByte(node.status.ordinal());
+                out.writeLong(node.recordVersion);
+            }
+        }
+    }
+
+    private static Map<String, Digest> readDigest(DataInput in) throws IOException {
+        int count = in.readInt();
+        Map<String, Digest> digest = new HashMap<String, Digest>(count * 2);
+        for (int i = 0; i < count; i++) {
+            digest.put(in.readUTF(), new Digest(in.readInt(), status(in.readByte()), in.readLong()));
+        }
+        return digest;
+    }
+
+    private static byte[] toBytes(State state) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(state.uuid);
+        out.writeUTF(state.address.getHost());
+        out.writeInt(state.address.getPort());
+        out.writeInt(state.incarnation);
+        out.writeByte(state.status.ordinal());
+        out.writeLong(state.recordVersion);
+        out.writeLong(state.leaseMillis);
+        if (state.recordOmitted) {
+            out.writeByte(RECORD_OMITTED);
+        }
+        else if (state.record != null) {
+            out.writeByte(RECORD);
+            state.record.writeData(out);
+        }
+        else {
+            out.writeByte(NO_RECORD);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a state to gossip, without its record if it does not fit in a packet on its own.
+     */
+    private static byte[] gossipBytes(State state, int room) throws IOException {
+        byte[] bytes = toBytes(state);
+        if (bytes.length > room && state.record != null) {
+            LOG.debug("Omitting a record of {} bytes from gossip", bytes.length);
+            return toBytes(state.withoutRecord());
+        }
+        return bytes;
+    }
+
+    private static State readState(DataInput in) throws IOException {
+        String uuid = in.readUTF();
+        String host = in.readUTF();
+        int port = in.readInt();
+        int incarnation = in.readInt();
+        Status status = status(in.readByte());
+        long recordVersion = in.readLong();
+        long leaseMillis = in.readLong();
+        MemberLocations record = null;
+        byte recordType = in.readByte();
+        if (recordType == RECORD) {
+            record = new MemberLocations();
+            record.readData(in);
+        }
+        else if (recordType != NO_RECORD && recordType != RECORD_OMITTED) {
+            throw new IOException("Unknown record type: " + recordType);
+        }
+        try {
+            return new State(uuid, new Address(host, port), incarnation, status, recordVersion, leaseMillis,
+                    record, recordType == RECORD_OMITTED);
+        }
+        catch (UnknownHostException ex) {
+            throw new IOException("Invalid address for node " + uuid + ": " + host, ex);
+        }
+    }
+
+    private static Status status(byte ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= Status.values().length) {
+            throw new IOException("Unknown node status: " + ordinal);
+        }
+        return Status.values()[ordinal];
+    }
+
+    private void fire(List<Runnable> events) {
+        for (Runnable event : events) {
+            try {
+                event.run();
+            }
+            catch (Exception ex) {
+                LOG.error("Error notifying gossip event", ex);
+            }
+        }
+    }
+
+    private Runnable memberAdded(final Member member) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.memberAdded(member);
+            }
+        };
+    }
+
+    private Runnable memberRemoved(final Member member) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.memberRemoved(member);
+            }
+        };
+    }
+
+    private Runnable memberSuspected(final Member member) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.memberSuspected(member);
+            }
+        };
+    }
+
+    private Runnable memberRecovered(final Member member) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.memberRecovered(member);
+            }
+        };
+    }
+
+    private Runnable recordUpdated(final MemberLocations record) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.recordUpdated(record);
+            }
+        };
+    }
+
+    private Runnable recordRemoved(final MemberLocations record) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                listener.recordRemoved(record);
+            }
+        };
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static final class Node {
+        private final MemberImpl member;
+        private int incarnation;
+        private Status status = Status.ALIVE;
+        private long statusChanged;
+        private MemberLocations record;
+        private long recordVersion;
+        private long leaseMillis;
+        private long recordExpires;
+        // whether the listener was told about the current record
+        private boolean delivered;
+
+        private Node(MemberImpl member) {
+            this.member = member;
+        }
+
+        private Address address() {
+            return member.getAddress();
+        }
+
+        private InetSocketAddress socketAddress() {
+            return new InetSocketAddress(address().getHost(), address().getPort());
+        }
+    }
+
+    /**
+     * The state of a node, as gossiped
+     */
+    private static final class State {
+        private final String uuid;
+        private final Address address;
+        private final int incarnation;
+        private final Status status;
+        private final long recordVersion;
+        private final long leaseMillis;
+        private final MemberLocations record;
+        // too large for a packet, fetched with a sync
+        private final boolean recordOmitted;
+
+        private State(String uuid, Address address, int incarnation, Status status,
+                      long recordVersion, long leaseMillis, MemberLocations record, boolean recordOmitted) {
+            this.uuid = uuid;
+            this.address = address;
+            this.incarnation = incarnation;
+            this.status = status;
+            this.recordVersion = recordVersion;
+            this.leaseMillis = leaseMillis;
+            this.record = record;
+            this.recordOmitted = recordOmitted;
+        }
+
+        private State(Node node) {
+            this(node.member.getUuid(), node.address(), node.incarnation, node.status,
+                    node.recordVersion, node.leaseMillis, node.record, false);
+        }
+
+        private State withoutRecord() {
+            return new State(uuid, address, incarnation, status, recordVersion, leaseMillis, null, true);
+        }
+    }
+
+    private static final class Digest {
+        private final int incarnation;
+        private final Status status;
+        private final long recordVersion;
+
+        private Digest(int incarnation, Status status, long recordVersion) {
+            this.incarnation = incarnation;
+            this.status = status;
+            this.recordVersion = recordVersion;
+        }
+
+        private boolean isOlderThan(Node node) {
+            return incarnation < node.incarnation
+                    || (incarnation == node.incarnation && status.compareTo(node.status) < 0)
+                    || recordVersion < node.recordVersion;
+        }
+    }
+
+    private static final class Tombstone {
+        private final int incarnation;
+        private final long expires;
+
+        private Tombstone(int incarnation, long expires) {
+            this.incarnation = incarnation;
+            this.expires = expires;
+        }
+    }
+
+    private static final class Probe {
+        private final Node target;
+        private final long seq;
+        private final long started;
+        private final long deadline;
+        private boolean indirect;
+        private boolean acked;
+
+        private Probe(Node target, long seq, long started, long deadline) {
+            this.target = target;
+            this.seq = seq;
+            this.started = started;
+            this.deadline = deadline;
+        }
+    }
+
+    private static final class Relay {
+        private final InetSocketAddress requester;
+        private final long seq;
+        private final long expires;
+
+        private Relay(InetSocketAddress requester, long seq, long expires) {
+            this.requester = requester;
+            this.seq = seq;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.collect.HashBasedTable;
+import com.hazelcast.core.Member;
+
+import java.util.*;
+
+/**
+ * Bindings in a Guava table, with their status in a map per service.
+ */
+final class HashBindingIndex implements BindingIndex {
+
+    // a table  | Member | ServiceLocation | LocationBinding |
+    // to maintain a double index on LocationBinding.
+    // A member can bind several locations of the same service.
+    private final HashBasedTable<Member, ServiceLocation, LocationBinding> serviceTable = HashBasedTable.create();
+
+    // maintains enabled/disabled status for getLocations, indexed by service
+    // so that a snapshot can be rebuilt without scanning the whole table
+    private final HashMap<String, Map<LocationBinding, Boolean>> statusIndex = new HashMap<String, Map<LocationBinding, Boolean>>();
+
+    @Override
+    public LocationBinding get(Member member, ServiceLocation location) {
+        return serviceTable.get(member, location);
+    }
+
+    @Override
+    public void put(LocationBinding binding, boolean enabled) {
+        LocationBinding previous = serviceTable.put(binding.getMember(), binding.getServiceInstance(), binding);
+        if (previous != null) {
+            serviceStatus(binding.getService()).remove(previous);
+        }
+        serviceStatus(binding.getService()).put(binding, enabled);
+    }
+
+    @Override
+    public boolean remove(Member member, ServiceLocation location) {
+        LocationBinding removed = serviceTable.remove(member, location);
+        if (removed == null) {
+            return false;
+        }
+        Map<LocationBinding, Boolean> status = serviceStatus(removed.getService());
+        status.remove(removed);
+        if (status.isEmpty()) {
+            statusIndex.remove(removed.getService());
+        }
+        return true;
+    }
+
+    @Override
+    public List<LocationBinding> getBindings(Member member) {
+        return new ArrayList<LocationBinding>(serviceTable.row(member).values());
+    }
+
+    @Override
+    public Set<String> setMemberStatus(Member member, boolean enabled) {
+        Set<String> affected = new HashSet<String>();
+        for (LocationBinding binding: serviceTable.row(member).values()) {
+            serviceStatus(binding.getService()).put(binding, enabled);
+            affected.add(binding.getService());
+        }
+        return affected;
+    }
+
+    @Override
+    public Set<String> getServices(LocationAddress address) {
+        Set<String> services = new HashSet<String>();
+        for (Map.Entry<String, Map<LocationBinding, Boolean>> entry : statusIndex.entrySet()) {
+            for (LocationBinding binding : entry.getValue().keySet()) {
+                if (binding.getServiceInstance().getKey().equals(address)) {
+                    services.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return services;
+    }
+
+    @Override
+    public void visitService(String service, Visitor visitor) {
+        Map<LocationBinding, Boolean> status = statusIndex.get(service);
+        if (status != null) {
+            for (Map.Entry<LocationBinding, Boolean> entry : status.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void visitAll(Visitor visitor) {
+        for (Map<LocationBinding, Boolean> status : statusIndex.values()) {
+            for (Map.Entry<LocationBinding, Boolean> entry : status.entrySet()) {
+                visitor.visit(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Map<LocationBinding, Boolean> serviceStatus(String service) {
+        Map<LocationBinding, Boolean> status = statusIndex.get(service);
+        if (status == null) {
+            status = new LinkedHashMap<LocationBinding, Boolean>();
+            statusIndex.put(service, status);
+        }
+        return status;
+    }
+}
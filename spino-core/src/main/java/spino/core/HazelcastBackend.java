@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.Join;
+import com.hazelcast.config.NetworkConfig;
+import com.hazelcast.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the locations records in the spino-locations Hazelcast map, keyed by member uuid,
+ * and tracks members with the Hazelcast cluster membership.
+ *
+ * Leases are implemented as the time to live of the record.
+ * The oldest member of the cluster is the coordinator.
+ */
+final class HazelcastBackend implements SpinoBackend {
+    private static final Logger LOG = LoggerFactory.getLogger(HazelcastBackend.class);
+
+    private static final String LOCATIONS_MAP = "spino-locations";
+    private static final String GROUP_NAME = "SPINO";
+
+    private HazelcastInstance hz;
+    private Cluster cluster;
+    private HazelcastListener handler;
+
+    // null unless failure detection is configured
+    private HeartbeatDetector heartbeatDetector;
+
+    @Override
+    public void start(SpinoConfig config, Listener listener) {
+        Config hzConfig = new Config();
+
+        String[] seeds = config.getSeeds();
+        if (seeds != null) {
+            NetworkConfig networkConfig = hzConfig.getNetworkConfig();
+            Join join = networkConfig.getJoin();
+            join.getMulticastConfig().setEnabled(false);
+            for(String address : seeds) {
+                join.getTcpIpConfig().addMember(address);
+            }
+            join.getTcpIpConfig().setEnabled(true);
+        }
+
+        hzConfig.getGroupConfig().setName(GROUP_NAME);
+        hzConfig.setLiteMember(config.isLiteMember());
+        FailureDetectorConfig failureDetector = config.getFailureDetector();
+        if (failureDetector != null) {
+            hzConfig.setProperties(heartbeatProperties(failureDetector));
+        }
+        this.hz = Hazelcast.newHazelcastInstance(hzConfig);
+        this.cluster = hz.getCluster();
+        this.handler = new HazelcastListener(listener);
+        cluster.addMembershipListener(handler);
+        getLocationsMap().addEntryListener(handler, true);
+        if (failureDetector != null) {
+            heartbeatDetector = new HeartbeatDetector(listener);
+            heartbeatDetector.start(failureDetector, hz);
+        }
+    }
+
+    /**
+     * Hazelcast heartbeats, in whole seconds
+     */
+    private static Properties heartbeatProperties(FailureDetectorConfig failureDetector) {
+        Properties properties = new Properties();
+        properties.setProperty("hazelcast.heartbeat.interval.seconds",
+                String.valueOf(toSeconds(failureDetector.getHeartbeatIntervalMillis())));
+        properties.setProperty("hazelcast.max.no.heartbeat.seconds",
+                String.valueOf(toSeconds(failureDetector.getRemovalTimeoutMillis())));
+        return properties;
+    }
+
+    private static long toSeconds(long millis) {
+        return Math.max(1, (millis + 999) / 1000);
+    }
+
+    @Override
+    public void shutdown() {
+        if (heartbeatDetector != null) {
+            heartbeatDetector.shutdown();
+        }
+        cluster.removeMembershipListener(handler);
+        getLocationsMap().removeEntryListener(handler);
+    }
+
+    HazelcastInstance getHazelcastInstance() {
+        return hz;
+    }
+
+    @Override
+    public Member getLocalMember() {
+        return cluster.getLocalMember();
+    }
+
+    @Override
+    public Set<Member> getMembers() {
+        return cluster.getMembers();
+    }
+
+    @Override
+    public Collection<MemberLocations> getRecords() {
+        return getLocationsMap().values();
+    }
+
+    @Override
+    public void publish(Collection<ServiceLocation> locations, long leaseMillis) {
+        Member localMember = cluster.getLocalMember();
+        if (locations.isEmpty()) {
+            getLocationsMap().remove(localMember.getUuid());
+        }
+        else if (leaseMillis > 0) {
+            getLocationsMap().put(localMember.getUuid(), new MemberLocations(localMember, locations),
+                    leaseMillis, TimeUnit.MILLISECONDS);
+        }
+        else {
+            getLocationsMap().put(localMember.getUuid(), new MemberLocations(localMember, locations));
+        }
+    }
+
+    @Override
+    public boolean isCoordinator() {
+        return cluster.getMembers().iterator().next().localMember();
+    }
+
+    @Override
+    public boolean removeRecord(Member member) {
+        return getLocationsMap().remove(member.getUuid()) != null;
+    }
+
+    /**
+     * @return true if the member publishes a record in the locations map
+     */
+    boolean hasRecord(Member member) {
+        return getLocationsMap().containsKey(member.getUuid());
+    }
+
+    private IMap<String, MemberLocations> getLocationsMap() {
+        return hz.getMap(LOCATIONS_MAP);
+    }
+
+    /**
+     * Handles events for
+     *  - members added and removed to a cluster
+     *  - entries added/removed/updated to the locations map
+     */
+    private static class HazelcastListener implements MembershipListener, EntryListener<String, MemberLocations> {
+
+        private final Listener listener;
+
+        private HazelcastListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void entryAdded(EntryEvent<String, MemberLocations> event) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("entryAdded {}", event);
+            listener.recordUpdated(event.getValue());
+        }
+
+        @Override
+        public void entryRemoved(EntryEvent<String, MemberLocations> event) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("entryRemoved {}", event);
+            listener.recordRemoved(event.getValue());
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, MemberLocations> event) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("entryUpdated {}", event);
+            listener.recordUpdated(event.getValue());
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<String, MemberLocations> event) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("entryEvicted {}", event);
+            listener.recordRemoved(event.getValue());
+        }
+
+        @Override
+        public void memberAdded(MembershipEvent membershipEvent) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("memberAdded {}", membershipEvent);
+            listener.memberAdded(membershipEvent.getMember());
+        }
+
+        @Override
+        public void memberRemoved(MembershipEvent membershipEvent) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("memberRemoved {}", membershipEvent);
+            listener.memberRemoved(membershipEvent.getMember());
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Probes the locations in the routing table, and ejects the ones that fail.
+ *
+ * All probes run on a single thread, with non-blocking sockets and one Selector.
+ * Host names are resolved on another thread, so that a slow DNS lookup never delays
+ * the other probes, and cached for RESOLVE_TTL_MILLIS or until a probe fails.
+ * A lookup that takes longer than the probe timeout is a failed probe.
+ * A probe opens a TCP connection to the location and, if a health check path is configured,
+ * sends a GET request for that path and expects a 2xx or 3xx status. HTTPS locations
+ * are only checked for TCP connectivity.
+ *
+ * A location that fails FAILURES_TO_EJECT probes in a row is ejected from the local
+ * routing table, in all services. Ejected locations are probed again with exponential
+ * backoff, and readmitted as soon as one probe succeeds.
+ *
+ * Ejection is local to this node: nothing is written to the cluster.
+ */
+final class HealthChecker implements Runnable {
+    private static final Logger LOG = LoggerFactory.getLogger(HealthChecker.class);
+
+    private static final int FAILURES_TO_EJECT = 2;
+
+    // ejected locations are probed at most every 2^MAX_BACKOFF_SHIFT intervals
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private static final long RESOLVE_TTL_MILLIS = 60000;
+
+    private final RoutingTable routingTable;
+
+    // only accessed by the health checker thread
+    private final Map<LocationAddress, Target> targets = new HashMap<LocationAddress, Target>();
+
+    private long intervalMillis;
+    private long timeoutMillis;
+    private String path;
+
+    private volatile boolean running;
+    private Selector selector;
+    private ExecutorService resolver;
+
+    HealthChecker(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    void start(SpinoConfig config) {
+        if (config.getHealthCheckIntervalMillis() == 0) {
+            return;
+        }
+        this.intervalMillis = config.getHealthCheckIntervalMillis();
+        this.timeoutMillis = config.getHealthCheckTimeoutMillis();
+        this.path = config.getHealthCheckPath();
+        try {
+            selector = Selector.open();
+        }
+        catch (IOException ex) {
+            LOG.error("Health checks disabled, could not open a selector", ex);
+            return;
+        }
+        resolver = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-health-resolver").setDaemon(true).build());
+        running = true;
+        Thread thread = new Thread(this, "spino-health-checker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void shutdown() {
+        running = false;
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextRefresh = 0;
+        while (running) {
+            try {
+                long now = now();
+                if (now >= nextRefresh) {
+                    refreshTargets(now);
+                    nextRefresh = now + intervalMillis;
+                }
+                long wakeup = startProbes(now, nextRefresh);
+
+                selector.select(Math.max(1, wakeup - now));
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    handle(key);
+                }
+            }
+            catch (Exception ex) {
+                LOG.error("Error in health checker", ex);
+            }
+        }
+
+        for (Target target : targets.values()) {
+            if (target.probe != null) {
+                close(target.probe);
+            }
+        }
+        try {
+            selector.close();
+        }
+        catch (IOException ex) {
+            LOG.warn("Could not close selector", ex);
+        }
+    }
+
+    private void refreshTargets(long now) {
+        Map<LocationAddress, URL> current = routingTable.getProbeTargets();
+
+        Iterator<Target> existing = targets.values().iterator();
+        while (existing.hasNext()) {
+            Target target = existing.next();
+            if (!current.containsKey(target.address)) {
+                existing.remove();
+                if (target.probe != null) {
+                    close(target.probe);
+                }
+                if (target.ejected) {
+                    // forget about it, in case it comes back
+                    routingTable.readmit(target.address);
+                }
+            }
+        }
+
+        for (Map.Entry<LocationAddress, URL> entry : current.entrySet()) {
+            if (!targets.containsKey(entry.getKey())) {
+                targets.put(entry.getKey(), new Target(entry.getKey(), entry.getValue(), now));
+            }
+        }
+    }
+
+    /**
+     * Starts the probes that are due, and times out the ones that took too long.
+     * @return when the next probe is due, or the next probe will time out
+     */
+    private long startProbes(long now, long wakeup) {
+        for (Target target : targets.values()) {
+            Probe probe = target.probe;
+            if (probe != null) {
+                if (probe.deadline <= now) {
+                    LOG.debug("Health check of {} timed out", target.address);
+                    complete(probe, false);
+                }
+                else {
+                    wakeup = Math.min(wakeup, probe.deadline);
+                    continue;
+                }
+            }
+            if (target.nextProbe <= now) {
+                probe(target, now);
+            }
+            if (target.probe != null) {
+                wakeup = Math.min(wakeup, target.probe.deadline);
+            }
+            else if (target.resolving && target.nextProbe <= now) {
+                // the resolver wakes up the selector when done
+                wakeup = Math.min(wakeup, target.resolveDeadline);
+            }
+            else {
+                wakeup = Math.min(wakeup, target.nextProbe);
+            }
+        }
+        return wakeup;
+    }
+
+    private void probe(Target target, long now) {
+        if (target.resolving) {
+            if (now >= target.resolveDeadline) {
+                LOG.debug("Health check of {} timed out resolving its host", target.address);
+                failed(target);
+            }
+            return;
+        }
+        InetSocketAddress address = target.resolved;
+        if (address == null || now >= target.resolveExpires) {
+            resolve(target, now);
+            return;
+        }
+        if (address.isUnresolved()) {
+            LOG.debug("Health check of {} failed, unknown host", target.address);
+            failed(target);
+            return;
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Probe probe = new Probe(target, channel, now + timeoutMillis, request(target));
+            target.probe = probe;
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            if (channel.connect(address)) {
+                connected(key, probe);
+            }
+        }
+        catch (Exception ex) {
+            LOG.debug("Health check of " + target.address + " failed", ex);
+            if (target.probe != null) {
+                complete(target.probe, false);
+            }
+            else {
+                closeQuietly(channel);
+                failed(target);
+            }
+        }
+    }
+
+    /**
+     * Resolves the host of a target on the resolver thread.
+     */
+    private void resolve(final Target target, long now) {
+        target.resolving = true;
+        target.resolveDeadline = now + timeoutMillis;
+        try {
+            resolver.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // unresolved if the host is unknown
+                    target.resolved = new InetSocketAddress(target.address.getHost(), target.address.getPort());
+                    target.resolveExpires = now() + RESOLVE_TTL_MILLIS;
+                    target.resolving = false;
+                    selector.wakeup();
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            target.resolving = false;
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Probe probe = (Probe) key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                probe.channel.finishConnect();
+                connected(key, probe);
+            }
+            else if (key.isWritable()) {
+                probe.channel.write(probe.request);
+                if (!probe.request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            else if (key.isReadable()) {
+                int read = probe.channel.read(probe.response);
+                int status = parseStatus(probe.response);
+                if (status != -1) {
+                    complete(probe, status >= 200 && status < 400);
+                }
+                else if (read == -1 || !probe.response.hasRemaining()) {
+                    complete(probe, false);
+                }
+            }
+        }
+        catch (IOException ex) {
+            LOG.debug("Health check of " + probe.target.address + " failed", ex);
+            complete(probe, false);
+        }
+    }
+
+    private void connected(SelectionKey key, Probe probe) {
+        if (probe.request == null) {
+            complete(probe, true);
+        }
+        else {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void complete(Probe probe, boolean healthy) {
+        close(probe);
+        if (healthy) {
+            succeeded(probe.target);
+        }
+        else {
+            failed(probe.target);
+        }
+    }
+
+    private void succeeded(Target target) {
+        target.failures = 0;
+        target.nextProbe = now() + intervalMillis;
+        if (target.ejected) {
+            target.ejected = false;
+            routingTable.readmit(target.address);
+        }
+    }
+
+    private void failed(Target target) {
+        // the host may have moved
+        target.resolveExpires = 0;
+        target.failures++;
+        if (!target.ejected && target.failures >= FAILURES_TO_EJECT) {
+            target.ejected = true;
+            routingTable.eject(target.address);
+        }
+        int shift = target.ejected ? Math.min(target.failures - FAILURES_TO_EJECT, MAX_BACKOFF_SHIFT) : 0;
+        target.nextProbe = now() + (intervalMillis << shift);
+    }
+
+    private void close(Probe probe) {
+        probe.target.probe = null;
+        closeQuietly(probe.channel);
+    }
+
+    private ByteBuffer request(Target target) {
+        if (path == null || !"http".equals(target.address.getScheme())) {
+            return null;
+        }
+        String request = "GET " + path + " HTTP/1.0\r\n"
+                + "Host: " + target.url.getHost() + ":" + target.address.getPort() + "\r\n"
+                + "User-Agent: spino-health-check\r\n"
+                + "Connection: close\r\n\r\n";
+        return ByteBuffer.wrap(request.getBytes(Charsets.US_ASCII));
+    }
+
+    /**
+     * @return the status code of a complete status line, or -1
+     */
+    private static int parseStatus(ByteBuffer response) {
+        String received = new String(response.array(), 0, response.position(), Charsets.US_ASCII);
+        int end = received.indexOf("\r\n");
+        if (end == -1) {
+            return -1;
+        }
+        // HTTP/1.1 200 OK
+        String[] statusLine = received.substring(0, end).split(" ");
+        if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(statusLine[1]);
+        }
+        catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            // nothing to do
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static final class Target {
+        private final LocationAddress address;
+        private final URL url;
+        private int failures;
+        private boolean ejected;
+        private long nextProbe;
+        private Probe probe;
+        // written by the resolver thread: resolved, then resolveExpires, then resolving
+        private volatile InetSocketAddress resolved;
+        private volatile long resolveExpires;
+        private volatile boolean resolving;
+        private long resolveDeadline;
+
+        private Target(LocationAddress address, URL url, long nextProbe) {
+            this.address = address;
+            this.url = url;
+            this.nextProbe = nextProbe;
+        }
+    }
+
+    private static final class Probe {
+        private final Target target;
+        private final SocketChannel channel;
+        private final long deadline;
+        private final ByteBuffer request;
+        private final ByteBuffer response = ByteBuffer.allocate(256);
+
+        private Probe(Target target, SocketChannel channel, long deadline, ByteBuffer request) {
+            this.target = target;
+            this.channel = channel;
+            this.deadline = deadline;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Suspects Hazelcast members that stop sending heartbeats, before Hazelcast removes them.
+ *
+ * Every heartbeat interval, each node publishes its uuid on the spino-heartbeats topic.
+ * A member is suspected when no heartbeat arrived for the suspicion timeout or, if a phi threshold
+ * is configured, when phi exceeds it. Phi is computed from the mean and standard deviation of the
+ * last HISTORY_SIZE intervals between heartbeats, as in "The phi accrual failure detector"
+ * (Hayashibara et al.), using a logistic approximation of the normal distribution.
+ *
+ * Each heartbeat is delivered to every node, so a cluster of n nodes exchanges n^2 messages
+ * per interval: larger clusters need a longer interval.
+ */
+final class HeartbeatDetector {
+    private static final Logger LOG = LoggerFactory.getLogger(HeartbeatDetector.class);
+
+    private static final String HEARTBEATS_TOPIC = "spino-heartbeats";
+
+    private static final int HISTORY_SIZE = 100;
+
+    private final SpinoBackend.Listener listener;
+
+    // uuid -> heartbeat history, of online members
+    private final ConcurrentHashMap<String, History> histories = new ConcurrentHashMap<String, History>();
+
+    // only accessed by the timer thread
+    private final Set<Member> suspected = new HashSet<Member>();
+
+    private HazelcastInstance hz;
+    private Cluster cluster;
+    private ITopic<String> topic;
+    private MessageListener<String> messageListener;
+    private ScheduledExecutorService timer;
+
+    private long intervalMillis;
+    private long suspicionTimeoutMillis;
+    private double phiThreshold;
+
+    HeartbeatDetector(SpinoBackend.Listener listener) {
+        this.listener = listener;
+    }
+
+    void start(FailureDetectorConfig config, final HazelcastInstance hz) {
+        this.intervalMillis = config.getHeartbeatIntervalMillis();
+        this.suspicionTimeoutMillis = config.getSuspicionTimeoutMillis();
+        this.phiThreshold = config.getPhiThreshold();
+        this.hz = hz;
+        this.cluster = hz.getCluster();
+        this.topic = hz.getTopic(HEARTBEATS_TOPIC);
+        this.messageListener = new MessageListener<String>() {
+            @Override
+            public void onMessage(Message<String> message) {
+                heartbeat(message.getMessageObject());
+            }
+        };
+        topic.addMessageListener(messageListener);
+
+        // publishing can block while the cluster is in trouble: checks run on another thread
+        timer = Executors.newScheduledThreadPool(2,
+                new ThreadFactoryBuilder().setNameFormat("spino-heartbeats-%d").setDaemon(true).build());
+        final String uuid = cluster.getLocalMember().getUuid();
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (!hz.getLifecycleService().isRunning()) {
+                    // Hazelcast was shut down before Spino, for example by its shutdown hook
+                    return;
+                }
+                try {
+                    topic.publish(uuid);
+                }
+                catch (Exception ex) {
+                    LOG.warn("Could not publish heartbeat", ex);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        // check often enough to notice a missed heartbeat within a fraction of the interval
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!hz.getLifecycleService().isRunning()) {
+                    return;
+                }
+                try {
+                    check();
+                }
+                catch (Exception ex) {
+                    LOG.error("Error checking heartbeats", ex);
+                }
+            }
+        }, intervalMillis, Math.max(10, intervalMillis / 4), TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+            topic.removeMessageListener(messageListener);
+        }
+    }
+
+    private void heartbeat(String uuid) {
+        long now = now();
+        History history = histories.get(uuid);
+        if (history == null) {
+            histories.putIfAbsent(uuid, new History(intervalMillis, now));
+        }
+        else {
+            history.heartbeat(now);
+        }
+    }
+
+    private void check() {
+        long now = now();
+        Set<String> online = new HashSet<String>();
+        for (Member member : cluster.getMembers()) {
+            online.add(member.getUuid());
+            if (member.localMember()) {
+                continue;
+            }
+            History history = histories.get(member.getUuid());
+            if (history == null) {
+                // no heartbeat yet: the member gets a full timeout from now
+                histories.putIfAbsent(member.getUuid(), new History(intervalMillis, now));
+                continue;
+            }
+            boolean failed = phiThreshold > 0
+                    ? history.phi(now) > phiThreshold
+                    : now - history.last() > suspicionTimeoutMillis;
+            if (failed && suspected.add(member)) {
+                LOG.warn("Suspecting {}, no heartbeat for {} ms", member, now - history.last());
+                listener.memberSuspected(member);
+            }
+            else if (!failed && suspected.remove(member)) {
+                LOG.info("{} is sending heartbeats again", member);
+                listener.memberRecovered(member);
+            }
+        }
+        histories.keySet().retainAll(online);
+        Iterator<Member> departed = suspected.iterator();
+        while (departed.hasNext()) {
+            if (!online.contains(departed.next().getUuid())) {
+                departed.remove();
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Arrival times of the heartbeats of a member
+     */
+    private static final class History {
+        private final long[] intervals = new long[HISTORY_SIZE];
+        private final long minDeviation;
+        private int count;
+        private int next;
+        private long sum;
+        private long squares;
+        private volatile long last;
+
+        private History(long expectedInterval, long now) {
+            // start from the expected interval, with some deviation, until real samples arrive
+            this.minDeviation = Math.max(1, expectedInterval / 4);
+            this.last = now;
+            add(expectedInterval);
+            add(expectedInterval + minDeviation);
+            add(expectedInterval - minDeviation);
+        }
+
+        private synchronized void heartbeat(long now) {
+            add(now - last);
+            last = now;
+        }
+
+        private void add(long interval) {
+            if (count == HISTORY_SIZE) {
+                sum -= intervals[next];
+                squares -= intervals[next] * intervals[next];
+            }
+            else {
+                count++;
+            }
+            intervals[next] = interval;
+            sum += interval;
+            squares += interval * interval;
+            next = (next + 1) % HISTORY_SIZE;
+        }
+
+        private long last() {
+            return last;
+        }
+
+        private synchronized double phi(long now) {
+            double mean = (double) sum / count;
+            double deviation = Math.max(minDeviation, Math.sqrt(Math.max(0, (double) squares / count - mean * mean)));
+            double elapsed = now - last;
+            double y = (elapsed - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if (elapsed > mean) {
+                return -Math.log10(e / (1 + e));
+            }
+            return -Math.log10(1 - 1 / (1 + e));
+        }
+    }
+}
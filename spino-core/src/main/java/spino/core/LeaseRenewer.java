@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renews the lease on the locations of this node.
+ *
+ * With leases enabled, the locations record of a node expires unless it is published again
+ * within the lease duration. Renewals happen every third of the lease duration, and
+ * republish the whole record of the node: one operation per interval, however many
+ * locations the node has.
+ *
+ * With automatic renewal, the lease is renewed as long as the node is running.
+ * Otherwise it is only renewed if the application called renew() since the last renewal,
+ * so that the locations of an application that stops working expire.
+ */
+final class LeaseRenewer {
+    private static final Logger LOG = LoggerFactory.getLogger(LeaseRenewer.class);
+
+    private final Runnable renewal;
+
+    private final AtomicBoolean renewRequested = new AtomicBoolean();
+
+    private volatile boolean autoRenewal;
+    private volatile ScheduledExecutorService timer;
+
+    /**
+     * @param renewal - publishes the locations of this node again
+     */
+    LeaseRenewer(Runnable renewal) {
+        this.renewal = renewal;
+    }
+
+    void start(SpinoConfig config) {
+        if (config.getLeaseDurationMillis() == 0) {
+            return;
+        }
+        this.autoRenewal = config.isLeaseAutoRenewal();
+        long interval = Math.max(1, config.getLeaseDurationMillis() / 3);
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-lease-renewer").setDaemon(true).build());
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!renewRequested.getAndSet(false) && !autoRenewal) {
+                    LOG.debug("Lease not renewed by the application");
+                    return;
+                }
+                try {
+                    renewal.run();
+                }
+                catch (Exception ex) {
+                    LOG.error("Could not renew lease", ex);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Requests a renewal of the lease at the next interval.
+     */
+    void renew() {
+        renewRequested.set(true);
+    }
+}
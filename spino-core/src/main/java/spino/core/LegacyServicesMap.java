@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compatibility with nodes that still use the spino-services map,
+ * a MultiMap service -> (member, service, address).
+ *
+ * Keying by service puts every location of a service in one partition, whose owner
+ * handles all updates and event fan-out of that service. The locations map is keyed
+ * by member instead, so updates spread across partitions.
+ *
+ * To upgrade a cluster without downtime, enable the legacy map on upgraded nodes:
+ * they import the locations of old nodes, and publish their own locations in both maps
+ * so that old nodes can see them. Once all nodes are upgraded, disable it.
+ *
+ * Entries of upgraded nodes are ignored: their record in the locations map carries the metadata
+ * and activation time of their locations, that the legacy map does not serialize. They publish
+ * their record before their legacy entries, so the record is there when the entries are seen.
+ */
+final class LegacyServicesMap implements EntryListener<String, LocationBinding> {
+    private static final Logger LOG = LoggerFactory.getLogger(LegacyServicesMap.class);
+
+    static final String SERVICES_MAP = "spino-services";
+
+    private final RoutingTable routingTable;
+
+    private MultiMap<String, LocationBinding> servicesMap;
+
+    private HazelcastBackend backend;
+
+    LegacyServicesMap(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    /**
+     * Imports the locations of old nodes, and starts listening for their changes.
+     */
+    void start(HazelcastBackend backend) {
+        this.backend = backend;
+        HazelcastInstance hz = backend.getHazelcastInstance();
+        servicesMap = hz.getMultiMap(SERVICES_MAP);
+        servicesMap.addEntryListener(this, true);
+
+        Set<Member> onlineMembers = hz.getCluster().getMembers();
+        Map<Member, Boolean> upgraded = new HashMap<Member, Boolean>();
+        for (LocationBinding binding : servicesMap.values()) {
+            if (!onlineMembers.contains(binding.getMember())) {
+                LOG.info("Skipping legacy endpoint import, because its member is not online: {} ", binding);
+                continue;
+            }
+            Boolean hasRecord = upgraded.get(binding.getMember());
+            if (hasRecord == null) {
+                hasRecord = backend.hasRecord(binding.getMember());
+                upgraded.put(binding.getMember(), hasRecord);
+            }
+            if (hasRecord) {
+                continue;
+            }
+            LOG.info("Importing legacy endpoint: {}", binding);
+            routingTable.addLocation(new LocationBinding(binding.getServiceInstance(), binding.getMember(), 0));
+        }
+    }
+
+    void shutdown() {
+        if (servicesMap != null) {
+            servicesMap.removeEntryListener(this);
+        }
+    }
+
+    /**
+     * Publishes changes to the locations of this member, for old nodes.
+     */
+    void publish(Member localMember, Collection<ServiceLocation> activated, Collection<ServiceLocation> deactivated) {
+        for (ServiceLocation location : deactivated) {
+            servicesMap.remove(location.getService(), new LocationBinding(location, localMember));
+        }
+        for (ServiceLocation location : activated) {
+            servicesMap.put(location.getService(), new LocationBinding(location, localMember));
+        }
+    }
+
+    /**
+     * Removes all the entries of a member that left the cluster.
+     */
+    void removeMember(Member member) {
+        for (Map.Entry<String, LocationBinding> entry : servicesMap.entrySet()) {
+            if (entry.getValue().getMember().equals(member)) {
+                servicesMap.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void entryAdded(EntryEvent<String, LocationBinding> event) {
+        added(event.getValue());
+    }
+
+    @Override
+    public void entryRemoved(EntryEvent<String, LocationBinding> event) {
+        removed(event.getValue());
+    }
+
+    @Override
+    public void entryUpdated(EntryEvent<String, LocationBinding> event) {
+        added(event.getValue());
+    }
+
+    @Override
+    public void entryEvicted(EntryEvent<String, LocationBinding> event) {
+        removed(event.getValue());
+    }
+
+    private void added(LocationBinding binding) {
+        if (backend.hasRecord(binding.getMember())) {
+            return;
+        }
+        // the activation time is not serialized: activated now
+        routingTable.addLocation(new LocationBinding(binding.getServiceInstance(), binding.getMember()));
+    }
+
+    private void removed(LocationBinding binding) {
+        if (backend.hasRecord(binding.getMember())) {
+            return;
+        }
+        routingTable.removeLocation(binding);
+    }
+}
@@ -0,0 +1,291 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers service change notifications to service listeners,
+ * away from the thread that modified the routing table.
+ *
+ * Changes to a service are coalesced within a notification window, so a burst
+ * of changes (for example, a member leaving) results in one notification per service.
+ * Notifications for the same service are never delivered concurrently, and a change
+ * that happens while listeners are running always triggers a new notification,
+ * so the last notification a listener receives always follows the latest change.
+ *
+ * Each notification carries the difference between the snapshot delivered last time
+ * and the latest snapshot of the service. It is computed once and shared by all listeners.
+ */
+final class ListenerDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+    // delivery state of a service
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_DIRTY = 3;
+
+    private final ConcurrentMap<String, List<SpinoServiceChangeListener>> listeners = new ConcurrentHashMap<String, List<SpinoServiceChangeListener>>();
+
+    private final ConcurrentMap<String, ServiceState> states = new ConcurrentHashMap<String, ServiceState>();
+
+    private final RoutingTable routingTable;
+
+    private final Metrics metrics;
+
+    private volatile long windowMillis;
+    private volatile ScheduledExecutorService timer;
+    private volatile ExecutorService executor;
+
+    ListenerDispatcher(RoutingTable routingTable, Metrics metrics) {
+        this.routingTable = routingTable;
+        this.metrics = metrics;
+    }
+
+    void start(SpinoConfig config) {
+        this.windowMillis = config.getNotificationWindowMillis();
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-dispatcher-timer").setDaemon(true).build());
+        this.executor = new ThreadPoolExecutor(config.getListenerThreads(), config.getListenerThreads(),
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(config.getListenerQueueCapacity()),
+                new ThreadFactoryBuilder().setNameFormat("spino-listener-%d").setDaemon(true).build());
+    }
+
+    void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        for (ServiceState state : states.values()) {
+            state.set(IDLE);
+        }
+    }
+
+    void addServiceListener(String service, SpinoServiceListener listener) {
+        addServiceChangeListener(service, new LegacyListenerAdapter(listener));
+    }
+
+    void addServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        List<SpinoServiceChangeListener> list = listeners.get(service);
+        if (list == null) {
+            List<SpinoServiceChangeListener> created = new CopyOnWriteArrayList<SpinoServiceChangeListener>();
+            list = listeners.putIfAbsent(service, created);
+            if (list == null) {
+                list = created;
+            }
+        }
+        stateOf(service);
+        list.add(listener);
+    }
+
+    void removeServiceListener(String service, SpinoServiceListener listener) {
+        removeServiceChangeListener(service, new LegacyListenerAdapter(listener));
+    }
+
+    void removeServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        List<SpinoServiceChangeListener> list = listeners.get(service);
+        if (list != null) {
+            list.remove(listener);
+        }
+    }
+
+    /**
+     * Request a notification for each of these services.
+     * Returns immediately, listeners are invoked later on a listener thread.
+     * @param services
+     */
+    void servicesChanged(Collection<String> services) {
+        for (String service : services) {
+            if (listeners.containsKey(service)) {
+                serviceChanged(service);
+            }
+        }
+    }
+
+    private void serviceChanged(String service) {
+        ServiceState state = stateOf(service);
+        while (true) {
+            int current = state.get();
+            switch (current) {
+                case IDLE:
+                    if (state.compareAndSet(IDLE, SCHEDULED)) {
+                        state.changedNanos = System.nanoTime();
+                        schedule(service, state);
+                        return;
+                    }
+                    break;
+                case RUNNING:
+                    if (state.compareAndSet(RUNNING, RUNNING_DIRTY)) {
+                        state.changedNanos = System.nanoTime();
+                        return;
+                    }
+                    break;
+                default:
+                    // SCHEDULED or RUNNING_DIRTY: a notification is already due
+                    return;
+            }
+        }
+    }
+
+    private ServiceState stateOf(String service) {
+        ServiceState state = states.get(service);
+        if (state == null) {
+            // changes are reported relative to what the routing table contains now
+            ServiceState created = new ServiceState(routingTable.getSnapshot(service));
+            state = states.putIfAbsent(service, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private void schedule(final String service, final ServiceState state) {
+        ScheduledExecutorService timer = this.timer;
+        if (timer == null || timer.isShutdown()) {
+            state.set(IDLE);
+            return;
+        }
+        try {
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    submit(service, state);
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException ex) {
+            // shutting down
+            state.set(IDLE);
+        }
+    }
+
+    private void submit(final String service, final ServiceState state) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(service, state);
+                }
+            });
+        }
+        catch (RejectedExecutionException ex) {
+            if (executor.isShutdown()) {
+                state.set(IDLE);
+                return;
+            }
+            LOG.warn("Listener queue is full, delaying notification for {}", service);
+            schedule(service, state);
+        }
+    }
+
+    private void deliver(String service, ServiceState state) {
+        state.set(RUNNING);
+        metrics.listenerNotified(System.nanoTime() - state.changedNanos);
+
+        ServiceSnapshot current = routingTable.getSnapshot(service);
+        if (current.getVersion() > state.delivered.getVersion()) {
+            ServiceChangeEvent event = ServiceChangeEvent.between(service, state.delivered, current);
+            state.delivered = current;
+            if (!event.isEmpty()) {
+                notifyListeners(event);
+            }
+        }
+
+        if (!state.compareAndSet(RUNNING, IDLE)) {
+            // changed again while listeners were running
+            state.set(SCHEDULED);
+            schedule(service, state);
+        }
+    }
+
+    private void notifyListeners(ServiceChangeEvent event) {
+        List<SpinoServiceChangeListener> list = listeners.get(event.getService());
+        if (list == null) {
+            return;
+        }
+        for (SpinoServiceChangeListener listener : list) {
+            try {
+                listener.onServiceChange(event);
+            }
+            catch(Exception ex) {
+                metrics.listenerFailed();
+                LOG.error("listener.OnServiceChange(" + event.getService() + ") threw an Exception. Listener: " + listener, ex);
+            }
+        }
+    }
+
+    /**
+     * Delivery status of a service, and the snapshot its listeners have last been told about.
+     */
+    private static final class ServiceState extends AtomicInteger {
+        // only accessed by the thread delivering notifications for this service
+        private volatile ServiceSnapshot delivered;
+
+        // when the oldest change not yet delivered happened
+        private volatile long changedNanos;
+
+        ServiceState(ServiceSnapshot delivered) {
+            super(IDLE);
+            this.delivered = delivered;
+        }
+    }
+
+    /**
+     * Adapts a SpinoServiceListener, which is only told the name of the service.
+     */
+    private static final class LegacyListenerAdapter implements SpinoServiceChangeListener {
+        private final SpinoServiceListener listener;
+
+        LegacyListenerAdapter(SpinoServiceListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onServiceChange(ServiceChangeEvent event) {
+            listener.onServiceChange(event.getService());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            return listener.equals(((LegacyListenerAdapter) o).listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return listener.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return listener.toString();
+        }
+    }
+}
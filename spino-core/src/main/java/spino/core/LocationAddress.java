@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Locale;
+
+/**
+ * A normalized, resolver-free identity for the address of a location.
+ *
+ * java.net.URL equality resolves host names, which can block on DNS.
+ * LocationAddress is canonicalized once, when the location is created,
+ * and then compares and hashes a plain string.
+ */
+final class LocationAddress implements Serializable {
+
+    private final String scheme;
+    private final String host;
+    private final int port;
+    private final String path;
+
+    // canonical form, used for equality and hashing
+    private final String key;
+
+    private LocationAddress(String scheme, String host, int port, String path) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.path = path;
+        this.key = scheme + "://" + host + ":" + port + path;
+    }
+
+    /**
+     * Canonicalizes an URL without resolving its host:
+     * scheme and host are lower-cased, a missing port is replaced
+     * by the default port of the scheme and an empty path becomes "/".
+     * @param url
+     * @return
+     */
+    static LocationAddress of(URL url) {
+        String scheme = url.getProtocol().toLowerCase(Locale.ENGLISH);
+        String host = url.getHost().toLowerCase(Locale.ENGLISH);
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        return new LocationAddress(scheme, host, port, path);
+    }
+
+    String getScheme() {
+        return scheme;
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        return key.equals(((LocationAddress) o).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
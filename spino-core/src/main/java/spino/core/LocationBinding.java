@@ -24,18 +24,34 @@ import java.net.URL;
  * Binds an ServiceLocation to a Member.
  */
 final class LocationBinding implements Serializable {
+    // compatible with nodes that still use the spino-services map
+    private static final long serialVersionUID = 8088983360501251862L;
 
     private final Member member;
     private final ServiceLocation serviceInstance;
+    // when this node learned about the binding, or 0 if it was already active
+    // when this node started. Local to this node, so not serialized
+    private final transient long activatedAt;
 
     /**
-     * Creates a new instance of LocationBinding
+     * Creates a new instance of LocationBinding, activated now
      * @param serviceInstance - the serviceInstance
      * @param member - the cluster member that published information about the serviceInstance
      */
     LocationBinding(ServiceLocation serviceInstance, Member member) {
+        this(serviceInstance, member, System.currentTimeMillis());
+    }
+
+    /**
+     * Creates a new instance of LocationBinding
+     * @param serviceInstance - the serviceInstance
+     * @param member - the cluster member that published information about the serviceInstance
+     * @param activatedAt - local time of activation, in millis, or 0 if unknown
+     */
+    LocationBinding(ServiceLocation serviceInstance, Member member, long activatedAt) {
         this.member = member;
         this.serviceInstance = serviceInstance;
+        this.activatedAt = activatedAt;
     }
 
     /**
@@ -56,10 +72,18 @@ final class LocationBinding implements Serializable {
         return member;
     }
 
+    long getActivatedAt() {
+        return activatedAt;
+    }
+
     String getService() {
         return serviceInstance.getService();
     }
 
+    LocationMetadata getMetadata() {
+        return serviceInstance.getMetadata();
+    }
+
     ServiceLocation getServiceInstance() {
         return serviceInstance;
     }
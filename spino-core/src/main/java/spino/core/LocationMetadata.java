@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+/**
+ * Describes a location: the zone it runs in, its relative weight,
+ * and the version of the service it runs.
+ *
+ * <pre>
+ * Spino.activateLocation("database-v1", "http://db-0:8001", new LocationMetadata("eu-west-1a", 2, "1.4.0"));
+ * </pre>
+ */
+public final class LocationMetadata {
+
+    /**
+     * Metadata of locations activated without any: no zone, weight 1, no version.
+     */
+    public static final LocationMetadata DEFAULT = new LocationMetadata(null, 1, null);
+
+    /**
+     * The largest weight: clients scale and add up weights, that must not overflow.
+     */
+    public static final int MAX_WEIGHT = 1000000;
+
+    private final String zone;
+    private final int weight;
+    private final String version;
+
+    /**
+     * @param zone - the zone (e.g. availability zone, rack) the location runs in, or null
+     * @param weight - the share of traffic the location should receive, relative to others.
+     *               Between zero and MAX_WEIGHT.
+     * @param version - a version tag, or null
+     */
+    public LocationMetadata(String zone, int weight, String version) {
+        if (weight < 0 || weight > MAX_WEIGHT) {
+            throw new IllegalArgumentException("weight must be between 0 and " + MAX_WEIGHT + ": " + weight);
+        }
+        this.zone = zone;
+        this.weight = weight;
+        this.version = version;
+    }
+
+    /**
+     * @return the zone, or null
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the version tag, or null
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        LocationMetadata other = (LocationMetadata) o;
+
+        if (weight != other.weight) return false;
+        if (zone != null ? !zone.equals(other.zone) : other.zone != null) return false;
+        if (version != null ? !version.equals(other.version) : other.version != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = zone != null ? zone.hashCode() : 0;
+        result = 31 * result + weight;
+        result = 31 * result + (version != null ? version.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Metadata(zone=%s, weight=%d, version=%s)", zone, weight, version);
+    }
+}
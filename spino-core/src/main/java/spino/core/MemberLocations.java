@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.core.Member;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.nio.DataSerializable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * All the locations a member has activated.
+ *
+ * This is the value stored in the distributed locations map, keyed by member uuid:
+ * a member publishes all its locations with a single put, and other nodes
+ * receive them with a single entry event.
+ *
+ * It is replicated to every node, so it uses a compact binary format
+ * rather than java serialization:
+ * <pre>
+ *   byte    format version
+ *   member  as written by Member.writeData (address, node type, uuid)
+ *   int     number of locations
+ *   then, for each location:
+ *     UTF   service name
+ *     UTF   address, in URL external form
+ *     from format version 2 only:
+ *     byte  metadata flags: 1 zone, 2 weight, 4 version
+ *     UTF   zone, if flagged
+ *     int   weight, if flagged (otherwise, the default weight)
+ *     UTF   version, if flagged
+ * </pre>
+ *
+ * Format version 1 is still written when no location has metadata,
+ * so that nodes that do not know about metadata can read it.
+ */
+final class MemberLocations implements DataSerializable {
+
+    private static final byte FORMAT_VERSION = 1;
+    private static final byte METADATA_FORMAT_VERSION = 2;
+
+    private static final int ZONE = 1;
+    private static final int WEIGHT = 2;
+    private static final int VERSION = 4;
+
+    private Member member;
+    private List<ServiceLocation> locations;
+
+    MemberLocations(Member member, Collection<ServiceLocation> locations) {
+        this.member = member;
+        this.locations = Collections.unmodifiableList(new ArrayList<ServiceLocation>(locations));
+    }
+
+    // used by Hazelcast and GossipBackend when deserializing
+    MemberLocations() {
+    }
+
+    Member getMember() {
+        return member;
+    }
+
+    List<ServiceLocation> getLocations() {
+        return locations;
+    }
+
+    @Override
+    public void writeData(DataOutput out) throws IOException {
+        boolean withMetadata = false;
+        for (ServiceLocation location : locations) {
+            withMetadata |= !location.getMetadata().equals(LocationMetadata.DEFAULT);
+        }
+        out.writeByte(withMetadata ? METADATA_FORMAT_VERSION : FORMAT_VERSION);
+        member.writeData(out);
+        out.writeInt(locations.size());
+        for (ServiceLocation location : locations) {
+            out.writeUTF(location.getService());
+            out.writeUTF(location.getAddress().toExternalForm());
+            if (withMetadata) {
+                writeMetadata(out, location.getMetadata());
+            }
+        }
+    }
+
+    private static void writeMetadata(DataOutput out, LocationMetadata metadata) throws IOException {
+        int flags = (metadata.getZone() != null ? ZONE : 0)
+                | (metadata.getWeight() != LocationMetadata.DEFAULT.getWeight() ? WEIGHT : 0)
+                | (metadata.getVersion() != null ? VERSION : 0);
+        out.writeByte(flags);
+        if ((flags & ZONE) != 0) {
+            out.writeUTF(metadata.getZone());
+        }
+        if ((flags & WEIGHT) != 0) {
+            out.writeInt(metadata.getWeight());
+        }
+        if ((flags & VERSION) != 0) {
+            out.writeUTF(metadata.getVersion());
+        }
+    }
+
+    private static LocationMetadata readMetadata(DataInput in) throws IOException {
+        int flags = in.readByte();
+        if (flags == 0) {
+            return LocationMetadata.DEFAULT;
+        }
+        String zone = (flags & ZONE) != 0 ? in.readUTF() : null;
+        int weight = (flags & WEIGHT) != 0 ? in.readInt() : LocationMetadata.DEFAULT.getWeight();
+        String version = (flags & VERSION) != 0 ? in.readUTF() : null;
+        return new LocationMetadata(zone, weight, version);
+    }
+
+    @Override
+    public void readData(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION && version != METADATA_FORMAT_VERSION) {
+            throw new IOException("Unsupported MemberLocations format version: " + version);
+        }
+        MemberImpl member = new MemberImpl();
+        member.readData(in);
+        int size = in.readInt();
+        List<ServiceLocation> locations = new ArrayList<ServiceLocation>(size);
+        for (int i = 0; i < size; i++) {
+            String service = in.readUTF();
+            String address = in.readUTF();
+            LocationMetadata metadata = version == METADATA_FORMAT_VERSION ? readMetadata(in) : LocationMetadata.DEFAULT;
+            try {
+                locations.add(new ServiceLocation(service, new URL(address), metadata));
+            }
+            catch (MalformedURLException e) {
+                throw new IOException("Invalid address for service " + service + ": " + address, e);
+            }
+        }
+        this.member = member;
+        this.locations = Collections.unmodifiableList(locations);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemberLocations(member=%s, %s)", member, locations);
+    }
+}
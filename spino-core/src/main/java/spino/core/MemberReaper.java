@@ -0,0 +1,126 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.Member;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes the locations of members that left the cluster and did not come back.
+ *
+ * When a member leaves, its locations are only disabled, in case it comes back.
+ * Members that restart get a new identity, so without reaping the routing table and
+ * the locations map would keep growing with the locations of dead members.
+ *
+ * Every node tracks departures and, once the grace period has expired, purges the
+ * departed member from its own routing table. Only the coordinator (with Hazelcast, the oldest
+ * member of the cluster) removes the member's record from the locations map: the removal is a no-op
+ * if the record is already gone, so the record is removed and its removal is published only once,
+ * even if the oldest member changes in the meantime.
+ */
+final class MemberReaper {
+    private static final Logger LOG = LoggerFactory.getLogger(MemberReaper.class);
+
+    private final RoutingTable routingTable;
+
+    private volatile SpinoBackend backend;
+    private volatile LegacyServicesMap legacyServicesMap;
+
+    private volatile long gracePeriodMillis;
+    private volatile ScheduledExecutorService timer;
+
+    MemberReaper(RoutingTable routingTable) {
+        this.routingTable = routingTable;
+    }
+
+    /**
+     * @param legacyServicesMap - null unless compatibility with the spino-services map is enabled
+     */
+    void start(SpinoConfig config, SpinoBackend backend, LegacyServicesMap legacyServicesMap) {
+        this.gracePeriodMillis = config.getReaperGracePeriodMillis();
+        this.backend = backend;
+        this.legacyServicesMap = legacyServicesMap;
+        this.timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-reaper").setDaemon(true).build());
+    }
+
+    void shutdown() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Schedules the removal of the locations of a member that is no longer part of the cluster.
+     * @param member
+     */
+    void memberDeparted(final Member member) {
+        ScheduledExecutorService timer = this.timer;
+        if (timer == null || timer.isShutdown()) {
+            return;
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap(member);
+                }
+                catch (Exception ex) {
+                    LOG.error("Could not purge locations of departed " + member, ex);
+                }
+            }
+        }, gracePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void reap(Member member) {
+        // a member that restarts at the same address is equal to the departed one,
+        // but has a different uuid: its current locations must be kept
+        Member current = onlineMember(member);
+        if (current != null && current.getUuid().equals(member.getUuid())) {
+            return;
+        }
+
+        if (current == null) {
+            LOG.info("Purging locations of departed {}", member);
+            routingTable.updateMember(member, Collections.<ServiceLocation>emptyList());
+        }
+
+        if (backend.isCoordinator()) {
+            if (backend.removeRecord(member)) {
+                LOG.info("Removed locations record of departed {}", member);
+            }
+            if (current == null && legacyServicesMap != null) {
+                legacyServicesMap.removeMember(member);
+            }
+        }
+    }
+
+    private Member onlineMember(Member member) {
+        for (Member online : backend.getMembers()) {
+            if (online.equals(member)) {
+                return online;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects runtime metrics of a Spino node.
+ *
+ * Recording is lock-free and does not allocate; the (allocating) work
+ * of building a SpinoMetrics snapshot is only done when one is requested.
+ */
+final class Metrics {
+    private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+    static final String OBJECT_NAME = "spino:type=Metrics";
+
+    private final AtomicLong entryEvents = new AtomicLong();
+    private final AtomicLong membershipEvents = new AtomicLong();
+    private final AtomicLong listenerFailures = new AtomicLong();
+    private final LatencyHistogram routingUpdates = new LatencyHistogram();
+    private final LatencyHistogram listenerLag = new LatencyHistogram();
+
+    private volatile long lastSyncMillis = -1;
+    private volatile long lastEventMillis = -1;
+
+    void entryEvent() {
+        entryEvents.incrementAndGet();
+        event();
+    }
+
+    void membershipEvent() {
+        membershipEvents.incrementAndGet();
+        event();
+    }
+
+    private void event() {
+        long now = System.currentTimeMillis();
+        lastEventMillis = now;
+        // an applied event also brings the routing table up to date
+        lastSyncMillis = now;
+    }
+
+    /**
+     * The routing table was loaded from the cluster, or a resync with another node was applied
+     */
+    void synced() {
+        lastSyncMillis = System.currentTimeMillis();
+    }
+
+    void routingUpdate(long nanos) {
+        routingUpdates.record(nanos);
+    }
+
+    void listenerNotified(long lagNanos) {
+        listenerLag.record(lagNanos);
+    }
+
+    void listenerFailed() {
+        listenerFailures.incrementAndGet();
+    }
+
+    SpinoMetrics snapshot(RoutingTable routingTable) {
+        return new SpinoMetrics(routingTable.getLocationCounts(true), routingTable.getLocationCounts(false),
+                entryEvents.get(), membershipEvents.get(),
+                routingUpdates.snapshot(), listenerLag.snapshot(), listenerFailures.get(),
+                since(lastSyncMillis), since(lastEventMillis));
+    }
+
+    private static long since(long millis) {
+        return millis < 0 ? -1 : System.currentTimeMillis() - millis;
+    }
+
+    /**
+     * Registers the metrics of this node with the platform MBeanServer.
+     */
+    void registerMBean(RoutingTable routingTable) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MXBean(routingTable), name);
+        }
+        catch (Exception ex) {
+            LOG.warn("Could not register " + OBJECT_NAME + " MBean", ex);
+        }
+    }
+
+    void unregisterMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (Exception ex) {
+            LOG.warn("Could not unregister " + OBJECT_NAME + " MBean", ex);
+        }
+    }
+
+    private final class MXBean implements SpinoMetricsMXBean {
+        private final RoutingTable routingTable;
+
+        MXBean(RoutingTable routingTable) {
+            this.routingTable = routingTable;
+        }
+
+        @Override
+        public Map<String, Integer> getLocationCounts() {
+            return routingTable.getLocationCounts(true);
+        }
+
+        @Override
+        public Map<String, Integer> getDisabledLocationCounts() {
+            return routingTable.getLocationCounts(false);
+        }
+
+        @Override
+        public long getEntryEvents() {
+            return entryEvents.get();
+        }
+
+        @Override
+        public long getMembershipEvents() {
+            return membershipEvents.get();
+        }
+
+        @Override
+        public long getRoutingUpdates() {
+            return routingUpdates.snapshot().getCount();
+        }
+
+        @Override
+        public long getRoutingUpdateMeanMicros() {
+            return routingUpdates.snapshot().getMeanNanos() / 1000;
+        }
+
+        @Override
+        public long getRoutingUpdateP99Micros() {
+            return routingUpdates.snapshot().getP99Nanos() / 1000;
+        }
+
+        @Override
+        public long getRoutingUpdateMaxMicros() {
+            return routingUpdates.snapshot().getMaxNanos() / 1000;
+        }
+
+        @Override
+        public long getListenerNotifications() {
+            return listenerLag.snapshot().getCount();
+        }
+
+        @Override
+        public long getListenerLagMeanMicros() {
+            return listenerLag.snapshot().getMeanNanos() / 1000;
+        }
+
+        @Override
+        public long getListenerLagP99Micros() {
+            return listenerLag.snapshot().getP99Nanos() / 1000;
+        }
+
+        @Override
+        public long getListenerLagMaxMicros() {
+            return listenerLag.snapshot().getMaxNanos() / 1000;
+        }
+
+        @Override
+        public long getListenerFailures() {
+            return listenerFailures.get();
+        }
+
+        @Override
+        public long getMillisSinceLastSync() {
+            return since(lastSyncMillis);
+        }
+
+        @Override
+        public long getMillisSinceLastEvent() {
+            return since(lastEventMillis);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.hazelcast.core.Member;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A copy of the available locations, kept on local disk so that a restarted
+ * node can route requests before it has synchronized with the cluster.
+ *
+ * At startup the saved locations are loaded in the routing table as bound to STALE_MEMBER,
+ * a placeholder that is never part of the cluster. Once the node has imported
+ * the locations map, the stale locations are removed: locations that are still
+ * active remain available through their real members, without interruption.
+ *
+ * The file is rewritten shortly after routing changes, and on shutdown.
+ * It is written to a temporary file and then renamed, so that readers never see
+ * a partial snapshot.
+ *
+ * Format:
+ *  int magic, byte version, int services,
+ *  for each service: string name, int addresses, then for each address:
+ *      string address, byte metadata flags, [string zone], [int weight], [string version tag]
+ *  where a string is an int length followed by UTF-8 bytes.
+ *  Version 1 files, with no metadata flags and fields, are still read.
+ */
+final class RoutingSnapshotFile {
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingSnapshotFile.class);
+
+    private static final int MAGIC = 0x5350494E;
+    private static final byte ADDRESSES_FORMAT_VERSION = 1;
+    private static final byte FORMAT_VERSION = 2;
+
+    // metadata flags, for the fields that differ from LocationMetadata.DEFAULT
+    private static final int ZONE = 1;
+    private static final int WEIGHT = 2;
+    private static final int VERSION = 4;
+
+    // coalesces bursts of routing changes into one write
+    private static final long WRITE_DELAY_MILLIS = 1000;
+
+    static final Member STALE_MEMBER = staleMember();
+
+    private final File file;
+
+    private final RoutingTable routingTable;
+
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+    private volatile ScheduledExecutorService writer;
+
+    RoutingSnapshotFile(File file, RoutingTable routingTable) {
+        this.file = file;
+        this.routingTable = routingTable;
+    }
+
+    /**
+     * Adds the saved locations to the routing table, as stale locations.
+     * A missing or unreadable file is ignored.
+     */
+    void load() {
+        if (!file.isFile()) {
+            LOG.info("No routing snapshot at {}", file);
+            return;
+        }
+        try {
+            List<ServiceLocation> locations = read(file);
+            LOG.info("Loaded {} stale locations from {}", locations.size(), file);
+            routingTable.updateMember(STALE_MEMBER, locations, 0);
+        }
+        catch (Exception ex) {
+            LOG.warn("Ignoring unreadable routing snapshot " + file, ex);
+        }
+    }
+
+    /**
+     * Removes the stale locations, once the routing table is in sync with the cluster,
+     * and starts saving routing changes.
+     */
+    void start() {
+        routingTable.updateMember(STALE_MEMBER, Collections.<ServiceLocation>emptyList());
+        writer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("spino-snapshot-writer").setDaemon(true).build());
+        routingChanged();
+    }
+
+    void shutdown() {
+        if (writer == null) {
+            return;
+        }
+        writer.shutdownNow();
+        writer = null;
+        save();
+    }
+
+    /**
+     * Schedules a write of the snapshot, unless one is already pending.
+     */
+    void routingChanged() {
+        ScheduledExecutorService writer = this.writer;
+        if (writer == null || !writeScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                writeScheduled.set(false);
+                save();
+            }
+        }, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void save() {
+        try {
+            write(file, routingTable.getAllServiceLocations());
+        }
+        catch (IOException ex) {
+            LOG.warn("Could not write routing snapshot " + file, ex);
+        }
+    }
+
+    static List<ServiceLocation> read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("not a routing snapshot");
+            }
+            byte version = buffer.get();
+            if (version != FORMAT_VERSION && version != ADDRESSES_FORMAT_VERSION) {
+                throw new IOException("unsupported routing snapshot version " + version);
+            }
+
+            List<ServiceLocation> locations = new ArrayList<ServiceLocation>();
+            int services = buffer.getInt();
+            for (int i = 0; i < services; i++) {
+                String service = readString(buffer);
+                int addresses = buffer.getInt();
+                for (int j = 0; j < addresses; j++) {
+                    URL address = new URL(readString(buffer));
+                    LocationMetadata metadata = version == FORMAT_VERSION
+                            ? readMetadata(buffer) : LocationMetadata.DEFAULT;
+                    locations.add(new ServiceLocation(service, address, metadata));
+                }
+            }
+            return locations;
+        }
+        catch (RuntimeException ex) {
+            // BufferUnderflowException and friends
+            throw new IOException("corrupted routing snapshot", ex);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    static void write(File file, Map<String, List<ServiceLocation>> locations) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(locations.size());
+            for (Map.Entry<String, List<ServiceLocation>> entry : locations.entrySet()) {
+                writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (ServiceLocation location : entry.getValue()) {
+                    writeString(out, location.getAddress().toExternalForm());
+                    writeMetadata(out, location.getMetadata());
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static LocationMetadata readMetadata(ByteBuffer buffer) throws IOException {
+        int flags = buffer.get();
+        if (flags == 0) {
+            return LocationMetadata.DEFAULT;
+        }
+        String zone = (flags & ZONE) != 0 ? readString(buffer) : null;
+        int weight = (flags & WEIGHT) != 0 ? buffer.getInt() : LocationMetadata.DEFAULT.getWeight();
+        String version = (flags & VERSION) != 0 ? readString(buffer) : null;
+        return new LocationMetadata(zone, weight, version);
+    }
+
+    private static void writeMetadata(DataOutputStream out, LocationMetadata metadata) throws IOException {
+        int flags = (metadata.getZone() != null ? ZONE : 0)
+                | (metadata.getWeight() != LocationMetadata.DEFAULT.getWeight() ? WEIGHT : 0)
+                | (metadata.getVersion() != null ? VERSION : 0);
+        out.writeByte(flags);
+        if ((flags & ZONE) != 0) {
+            writeString(out, metadata.getZone());
+        }
+        if ((flags & WEIGHT) != 0) {
+            out.writeInt(metadata.getWeight());
+        }
+        if ((flags & VERSION) != 0) {
+            writeString(out, metadata.getVersion());
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        // a corrupted length must not allocate more than the file holds
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("corrupted routing snapshot: string of " + length + " bytes, "
+                    + buffer.remaining() + " left");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Member staleMember() {
+        try {
+            // 0.0.0.0:0 is never the address of a cluster member
+            Address address = new Address(InetAddress.getByAddress(new byte[4]), 0);
+            return new MemberImpl(address, false, NodeType.MEMBER, "spino-routing-snapshot");
+        }
+        catch (UnknownHostException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
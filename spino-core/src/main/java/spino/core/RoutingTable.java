@@ -15,10 +15,7 @@
  */
 package spino.core;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.HashBasedTable;
-import com.google.common.collect.Multimap;
-import com.google.common.collect.Table;
+import com.google.common.collect.ImmutableMap;
 import com.hazelcast.core.Member;
 
 import org.slf4j.Logger;
@@ -26,10 +23,17 @@ import org.slf4j.LoggerFactory;
 
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 final class RoutingTable {
 
-    private volatile Multimap<String, URL> serviceMap = ArrayListMultimap.create();
+    // immutable per-service snapshots.
+    // Written only under lock, read without locking.
+    private final ConcurrentMap<String, ServiceSnapshot> serviceMap = new ConcurrentHashMap<String, ServiceSnapshot>();
+
+    // version of the last published snapshot, guarded by lock
+    private long version = 0;
 
     public interface RoutingTableListener {
         /**
@@ -41,77 +45,309 @@ final class RoutingTable {
 
     private final RoutingTableListener listener;
 
+    private final Metrics metrics;
+
     private final Object lock = new Object();
 
     private final Logger LOG = LoggerFactory.getLogger(RoutingTable.class);
 
-    // a table  | Member | Service | LocationBinding |
-    // to maintain a double index on LocationBinding
-    private HashBasedTable<Member, String, LocationBinding> serviceTable = HashBasedTable.create();
+    // bindings by member and by service, with their enabled/disabled status
+    private BindingIndex index = new HashBindingIndex();
+
+    // true if index is a CompactBindingIndex, and snapshots are built from arrays
+    private boolean compact = false;
+
+    // builds the snapshots of a compact table, guarded by lock
+    private final ArraySnapshotBuilder arraySnapshotBuilder = new ArraySnapshotBuilder();
+
+    // addresses that failed local health checks
+    private Set<LocationAddress> ejected = new HashSet<LocationAddress>();
 
-    // maintains enabled/disabled status for getLocations
-    private HashMap<LocationBinding, Boolean> statusIndex = new HashMap<LocationBinding, Boolean>();
+    // members suspected by the failure detector
+    private Set<Member> suspected = new HashSet<Member>();
 
-    RoutingTable(RoutingTableListener listener) {
+    RoutingTable(RoutingTableListener listener, Metrics metrics) {
         this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Use a CompactBindingIndex and array snapshots, that take less memory with many locations,
+     * or go back to the default hash index. Bindings are moved to the new index.
+     * @param compact
+     */
+    void setCompact(boolean compact) {
+        synchronized (lock) {
+            if (compact == this.compact) {
+                return;
+            }
+            final BindingIndex moved = compact ? new CompactBindingIndex() : new HashBindingIndex();
+            BindingIndex.Visitor mover = new BindingIndex.Visitor() {
+                @Override
+                public void visit(LocationBinding binding, boolean enabled) {
+                    moved.put(binding, enabled);
+                }
+            };
+            // service by service, so that locations keep their order.
+            // Every service with bindings has a snapshot
+            for (String service : serviceMap.keySet()) {
+                index.visitService(service, mover);
+            }
+            index = moved;
+            this.compact = compact;
+        }
     }
 
     /**
      * Retrieve all addresses by service
      * @param service
-     * @return a Collection of URLs available for this service
+     * @return an immutable snapshot of the URLs available for this service
      */
      Collection<URL> getServiceAddresses(String service) {
-        return serviceMap.get(service);
+        return getSnapshot(service).getAddresses();
      }
 
+    /**
+     * Retrieve the latest snapshot of a service
+     * @param service
+     * @return the snapshot, empty if the service is unknown
+     */
+    ServiceSnapshot getSnapshot(String service) {
+        ServiceSnapshot snapshot = serviceMap.get(service);
+        return snapshot == null ? ServiceSnapshot.EMPTY : snapshot;
+    }
+
+    /**
+     * Retrieve all available locations, by service
+     * @return services with at least one available location, and their locations with metadata
+     */
+    Map<String, List<ServiceLocation>> getAllServiceLocations() {
+        Map<String, List<ServiceLocation>> locations = new TreeMap<String, List<ServiceLocation>>();
+        for (Map.Entry<String, ServiceSnapshot> entry : serviceMap.entrySet()) {
+            if (entry.getValue().getEnabledCount() > 0) {
+                locations.put(entry.getKey(), entry.getValue().getLocations(entry.getKey()));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * Count locations by service
+     * @param enabled - true to count available locations, false to count disabled ones
+     * @return services with at least one such location, and their count
+     */
+    Map<String, Integer> getLocationCounts(boolean enabled) {
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for (Map.Entry<String, ServiceSnapshot> entry : serviceMap.entrySet()) {
+            ServiceSnapshot snapshot = entry.getValue();
+            int count = enabled ? snapshot.getEnabledCount() : snapshot.getDisabledCount();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
     void addLocation(LocationBinding binding) {
         LOG.info("Adding {}", binding);
+        long start = System.nanoTime();
         synchronized (lock) {
-            serviceTable.put(binding.getMember(), binding.getService(), binding);
-            statusIndex.put(binding, true);
-            updateCaches();
+            putBinding(binding);
+            updateSnapshot(binding.getService());
         }
+        metrics.routingUpdate(System.nanoTime() - start);
         notifyChange(Arrays.asList(binding.getService()));
     }
 
     void removeLocation(LocationBinding binding) {
         LOG.info("Removing {}", binding);
+        long start = System.nanoTime();
         synchronized (lock) {
-            serviceTable.remove(binding.getMember(), binding.getService());
-            statusIndex.remove(binding);
-            updateCaches();
+            removeBinding(binding);
+            updateSnapshot(binding.getService());
         }
+        metrics.routingUpdate(System.nanoTime() - start);
         notifyChange(Arrays.asList(binding.getService()));
     }
 
-    void removeMember(Member member) {
-        LOG.info("Disabling all entries for removed [{}]", member);
+    /**
+     * Replace all the locations bound to a member with a new set,
+     * publishing each affected service once. New locations are activated now.
+     * @param member
+     * @param locations - all the locations the member has activated, possibly empty
+     */
+    void updateMember(Member member, Collection<ServiceLocation> locations) {
+        updateMember(member, locations, System.currentTimeMillis());
+    }
+
+    /**
+     * Replace all the locations bound to a member with a new set,
+     * publishing each affected service once.
+     * @param member
+     * @param locations - all the locations the member has activated, possibly empty
+     * @param activatedAt - activation time of new locations, or 0 if they were already active
+     */
+    void updateMember(Member member, Collection<ServiceLocation> locations, long activatedAt) {
         Set<String> affected = new HashSet<String>();
+        long start = System.nanoTime();
         synchronized (lock) {
-            for (LocationBinding binding: serviceTable.row(member).values()) {
-                statusIndex.put(binding, false);
-                affected.add(binding.getService());
-                updateCaches();
+            Set<ServiceLocation> current = new LinkedHashSet<ServiceLocation>(locations);
+            for (LocationBinding binding : index.getBindings(member)) {
+                if (!current.contains(binding.getServiceInstance())) {
+                    LOG.info("Removing {}", binding);
+                    removeBinding(binding);
+                    affected.add(binding.getService());
+                }
+            }
+            for (ServiceLocation location : current) {
+                LocationBinding existing = index.get(member, location);
+                if (existing == null || !existing.getMetadata().equals(location.getMetadata())) {
+                    // updating metadata does not activate the location again
+                    LocationBinding binding = new LocationBinding(location, member,
+                            existing == null ? activatedAt : existing.getActivatedAt());
+                    LOG.info(existing == null ? "Adding {}" : "Updating {}", binding);
+                    putBinding(binding);
+                    affected.add(binding.getService());
+                }
+            }
+            for (String service : affected) {
+                updateSnapshot(service);
             }
         }
+        metrics.routingUpdate(System.nanoTime() - start);
+        notifyChange(affected);
+    }
+
+    void removeMember(Member member) {
+        LOG.info("Disabling all entries for removed [{}]", member);
+        Set<String> affected = setMemberStatus(member, false);
         notifyChange(affected);
     }
 
     void addMember(Member member) {
         LOG.info("Enabling all entries for added [{}]", member);
+        Set<String> affected = setMemberStatus(member, true);
+        notifyChange(affected);
+    }
+
+    /**
+     * Demote the entries of a member that might have failed, until it recovers or is removed.
+     * The change is local to this node.
+     * @param member
+     */
+    void suspectMember(Member member) {
+        LOG.warn("Demoting all entries for suspected [{}]", member);
+        notifyChange(setSuspected(member, true));
+    }
+
+    void clearSuspicion(Member member) {
+        LOG.info("Restoring all entries for [{}]", member);
+        notifyChange(setSuspected(member, false));
+    }
+
+    /**
+     * Stop using an address that failed local health checks, in all services.
+     * The change is local to this node.
+     * @param address
+     */
+    void eject(LocationAddress address) {
+        LOG.warn("Ejecting {}", address);
+        notifyChange(setEjected(address, true));
+    }
+
+    /**
+     * Use again an address that was ejected.
+     * @param address
+     */
+    void readmit(LocationAddress address) {
+        LOG.info("Readmitting {}", address);
+        notifyChange(setEjected(address, false));
+    }
+
+    /**
+     * @return addresses bound by members that are part of the cluster, ejected or not
+     */
+    Map<LocationAddress, URL> getProbeTargets() {
+        final Map<LocationAddress, URL> targets = new HashMap<LocationAddress, URL>();
+        synchronized (lock) {
+            index.visitAll(new BindingIndex.Visitor() {
+                @Override
+                public void visit(LocationBinding binding, boolean enabled) {
+                    if (enabled) {
+                        targets.put(binding.getServiceInstance().getKey(), binding.getAddress());
+                    }
+                }
+            });
+        }
+        return targets;
+    }
+
+    private Set<String> setEjected(LocationAddress address, boolean eject) {
+        Set<String> affected = new HashSet<String>();
+        long start = System.nanoTime();
+        synchronized (lock) {
+            boolean changed = eject ? ejected.add(address) : ejected.remove(address);
+            if (!changed) {
+                return affected;
+            }
+            affected.addAll(index.getServices(address));
+            for (String service : affected) {
+                updateSnapshot(service);
+            }
+        }
+        metrics.routingUpdate(System.nanoTime() - start);
+        return affected;
+    }
+
+    private Set<String> setSuspected(Member member, boolean suspect) {
         Set<String> affected = new HashSet<String>();
+        long start = System.nanoTime();
         synchronized (lock) {
-            for (LocationBinding binding: serviceTable.row(member).values()) {
-                statusIndex.put(binding, true);
+            boolean changed = suspect ? suspected.add(member) : suspected.remove(member);
+            if (!changed) {
+                return affected;
+            }
+            for (LocationBinding binding: index.getBindings(member)) {
                 affected.add(binding.getService());
-                updateCaches();
+            }
+            for (String service : affected) {
+                updateSnapshot(service);
             }
         }
-        notifyChange(affected);
+        metrics.routingUpdate(System.nanoTime() - start);
+        return affected;
+    }
+
+    private Set<String> setMemberStatus(Member member, boolean enabled) {
+        Set<String> affected = new HashSet<String>();
+        long start = System.nanoTime();
+        synchronized (lock) {
+            // a member that is added or removed is no longer suspected
+            suspected.remove(member);
+            affected.addAll(index.setMemberStatus(member, enabled));
+            for (String service : affected) {
+                updateSnapshot(service);
+            }
+        }
+        metrics.routingUpdate(System.nanoTime() - start);
+        return affected;
+    }
+
+    // must be called while holding the lock
+    private void putBinding(LocationBinding binding) {
+        index.put(binding, true);
+    }
+
+    // must be called while holding the lock
+    private void removeBinding(LocationBinding binding) {
+        index.remove(binding.getMember(), binding.getServiceInstance());
     }
 
     private void notifyChange(Collection<String> services) {
+        if (services.isEmpty()) {
+            return;
+        }
+
         try {
             listener.onRoutingTableChange(services);
         }
@@ -124,23 +360,190 @@ final class RoutingTable {
         }
     }
 
-    private void updateCaches() {
-        ArrayListMultimap<String, URL> tempServiceMap = ArrayListMultimap.create();
-        for(Map.Entry<String, Map<Member, LocationBinding>> entry : serviceTable.columnMap().entrySet()) {
-            for(LocationBinding binding : entry.getValue().values()) {
-                if (statusIndex.get(binding)) {
-                    tempServiceMap.put(entry.getKey(), binding.getAddress());
+    /**
+     * Rebuilds and publishes the snapshot of a single service.
+     * Must be called while holding the lock.
+     */
+    private void updateSnapshot(String service) {
+        if (compact) {
+            index.visitService(service, arraySnapshotBuilder);
+            serviceMap.put(service, arraySnapshotBuilder.build(++version));
+            return;
+        }
+        final Map<LocationAddress, URL> enabled = new LinkedHashMap<LocationAddress, URL>();
+        final Map<LocationAddress, URL> disabled = new LinkedHashMap<LocationAddress, URL>();
+        final Map<LocationAddress, URL> demoted = new LinkedHashMap<LocationAddress, URL>();
+        final Map<LocationAddress, LocationMetadata> metadata = new HashMap<LocationAddress, LocationMetadata>();
+        final Map<LocationAddress, Long> activatedAt = new HashMap<LocationAddress, Long>();
+        index.visitService(service, new BindingIndex.Visitor() {
+            @Override
+            public void visit(LocationBinding binding, boolean status) {
+                LocationAddress key = binding.getServiceInstance().getKey();
+                // an address bound by several members takes the metadata of an enabled binding, if any
+                if (status || !metadata.containsKey(key)) {
+                    metadata.put(key, binding.getMetadata());
+                }
+                // and is as old as its oldest binding
+                Long previous = activatedAt.get(key);
+                if (previous == null || binding.getActivatedAt() < previous) {
+                    activatedAt.put(key, binding.getActivatedAt());
+                }
+                if (!status) {
+                    disabled.put(key, binding.getAddress());
+                }
+                else if (ejected.contains(key) || suspected.contains(binding.getMember())) {
+                    demoted.put(key, binding.getAddress());
+                }
+                else {
+                    enabled.put(key, binding.getAddress());
                 }
             }
+        });
+        // if every available location has been ejected or suspected, health checks and failure
+        // detection are more likely to be wrong than the whole service to be down: keep using them
+        if (enabled.isEmpty()) {
+            enabled.putAll(demoted);
+        }
+        else {
+            disabled.putAll(demoted);
+        }
+        // the same address can be bound by several members: it is available if any of them is
+        disabled.keySet().removeAll(enabled.keySet());
+
+        // empty snapshots are kept, so that versions never go backwards
+        serviceMap.put(service, new ServiceSnapshot(++version, ImmutableMap.copyOf(enabled), ImmutableMap.copyOf(disabled),
+                ImmutableMap.copyOf(metadata), ImmutableMap.copyOf(activatedAt)));
+    }
+
+    /**
+     * Builds the arrays of a compact snapshot while visiting the bindings of a service,
+     * with the same rules as updateSnapshot, and without a map per property.
+     * Reused for every snapshot, must be used while holding the lock.
+     */
+    private final class ArraySnapshotBuilder implements BindingIndex.Visitor {
+        private final Map<LocationAddress, Slot> slots = new HashMap<LocationAddress, Slot>();
+        // slots in the order their address is first bound with each status
+        private final List<Slot> enabled = new ArrayList<Slot>();
+        private final List<Slot> demoted = new ArrayList<Slot>();
+        private final List<Slot> disabled = new ArrayList<Slot>();
+        private final List<Slot> unavailable = new ArrayList<Slot>();
+
+        @Override
+        public void visit(LocationBinding binding, boolean status) {
+            LocationAddress key = binding.getServiceInstance().getKey();
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot(key, binding.getMetadata(), binding.getActivatedAt());
+                slots.put(key, slot);
+            }
+            else {
+                if (status) {
+                    slot.metadata = binding.getMetadata();
+                }
+                slot.activatedAt = Math.min(slot.activatedAt, binding.getActivatedAt());
+            }
+            if (!status) {
+                if (slot.disabledUrl == null) {
+                    disabled.add(slot);
+                }
+                slot.disabledUrl = binding.getAddress();
+            }
+            else if (ejected.contains(key) || suspected.contains(binding.getMember())) {
+                if (slot.demotedUrl == null) {
+                    demoted.add(slot);
+                }
+                slot.demotedUrl = binding.getAddress();
+            }
+            else {
+                if (slot.enabledUrl == null) {
+                    enabled.add(slot);
+                }
+                slot.enabledUrl = binding.getAddress();
+            }
+        }
+
+        /**
+         * @return the snapshot of the bindings visited since the last call
+         */
+        ServiceSnapshot build(long version) {
+            // demoted locations are used if there is nothing else
+            boolean promote = enabled.isEmpty();
+            List<Slot> available = promote ? demoted : enabled;
+            for (Slot slot : disabled) {
+                if ((promote ? slot.demotedUrl : slot.enabledUrl) == null) {
+                    if (slot.demotedUrl != null) {
+                        slot.disabledUrl = slot.demotedUrl;
+                    }
+                    unavailable.add(slot);
+                }
+            }
+            if (!promote) {
+                for (Slot slot : demoted) {
+                    if (slot.disabledUrl == null && slot.enabledUrl == null) {
+                        slot.disabledUrl = slot.demotedUrl;
+                        unavailable.add(slot);
+                    }
+                }
+            }
+
+            int size = available.size() + unavailable.size();
+            LocationAddress[] keys = new LocationAddress[size];
+            URL[] urls = new URL[size];
+            LocationMetadata[] metadata = new LocationMetadata[size];
+            long[] activatedAt = new long[size];
+            int i = 0;
+            for (Slot slot : available) {
+                keys[i] = slot.key;
+                urls[i] = promote ? slot.demotedUrl : slot.enabledUrl;
+                metadata[i] = slot.metadata;
+                activatedAt[i] = slot.activatedAt;
+                i++;
+            }
+            for (Slot slot : unavailable) {
+                keys[i] = slot.key;
+                urls[i] = slot.disabledUrl;
+                metadata[i] = slot.metadata;
+                activatedAt[i] = slot.activatedAt;
+                i++;
+            }
+            int enabledCount = available.size();
+
+            slots.clear();
+            enabled.clear();
+            demoted.clear();
+            disabled.clear();
+            unavailable.clear();
+            return new ServiceSnapshot(version, keys, urls, metadata, activatedAt, enabledCount);
+        }
+    }
+
+    /**
+     * An address of a service, while building its snapshot
+     */
+    private static final class Slot {
+        private final LocationAddress key;
+        private LocationMetadata metadata;
+        private long activatedAt;
+        // the URL of the last binding of the address with each status, or null
+        private URL enabledUrl;
+        private URL demotedUrl;
+        private URL disabledUrl;
+
+        private Slot(LocationAddress key, LocationMetadata metadata, long activatedAt) {
+            this.key = key;
+            this.metadata = metadata;
+            this.activatedAt = activatedAt;
         }
-        serviceMap = tempServiceMap;
     }
 
     private void DumpTable() {
         synchronized (lock) {
-            for(Table.Cell<Member, String, LocationBinding> cell : serviceTable.cellSet()) {
-                LOG.info("{} | {} | {} | {}", cell.getRowKey(), cell.getColumnKey(), cell.getValue(), statusIndex.get(cell.getValue()));
-            }
+            index.visitAll(new BindingIndex.Visitor() {
+                @Override
+                public void visit(LocationBinding binding, boolean enabled) {
+                    LOG.info("{} | {} | {} | {}", binding.getMember(), binding.getServiceInstance(), binding, enabled);
+                }
+            });
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Describes how the locations of a service changed since the previous
+ * notification for the same service.
+ *
+ * Consecutive changes may be coalesced into a single event. Versions grow
+ * monotonically, so a listener can always tell which of two events is newer.
+ */
+public final class ServiceChangeEvent {
+
+    private final String service;
+    private final long version;
+    private final ImmutableList<URL> added;
+    private final ImmutableList<URL> removed;
+    private final ImmutableList<URL> disabled;
+    private final ImmutableList<URL> updated;
+    private final ImmutableList<URL> locations;
+    private final ImmutableMap<String, LocationMetadata> metadata;
+    private final ImmutableMap<String, Long> activationTimes;
+
+    private ServiceChangeEvent(String service, long version,
+                               ImmutableList<URL> added, ImmutableList<URL> removed,
+                               ImmutableList<URL> disabled, ImmutableList<URL> updated,
+                               ImmutableList<URL> locations, ImmutableMap<String, LocationMetadata> metadata,
+                               ImmutableMap<String, Long> activationTimes) {
+        this.service = service;
+        this.version = version;
+        this.added = added;
+        this.removed = removed;
+        this.disabled = disabled;
+        this.updated = updated;
+        this.locations = locations;
+        this.metadata = metadata;
+        this.activationTimes = activationTimes;
+    }
+
+    /**
+     * Computes the difference between two snapshots of the same service.
+     */
+    static ServiceChangeEvent between(String service, ServiceSnapshot from, ServiceSnapshot to) {
+        ImmutableList.Builder<URL> added = ImmutableList.builder();
+        ImmutableList.Builder<URL> removed = ImmutableList.builder();
+        ImmutableList.Builder<URL> disabled = ImmutableList.builder();
+        ImmutableList.Builder<URL> updated = ImmutableList.builder();
+
+        // each call builds the maps of compact snapshots
+        Map<LocationAddress, URL> fromEnabled = from.getEnabled();
+        Map<LocationAddress, URL> fromDisabled = from.getDisabled();
+        Map<LocationAddress, LocationMetadata> fromMetadata = from.getMetadata();
+        Map<LocationAddress, URL> toEnabled = to.getEnabled();
+        Map<LocationAddress, URL> toDisabled = to.getDisabled();
+        Map<LocationAddress, LocationMetadata> toMetadata = to.getMetadata();
+
+        for (Map.Entry<LocationAddress, URL> entry : toEnabled.entrySet()) {
+            if (!fromEnabled.containsKey(entry.getKey())) {
+                added.add(entry.getValue());
+            }
+            else if (!toMetadata.get(entry.getKey()).equals(fromMetadata.get(entry.getKey()))) {
+                updated.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<LocationAddress, URL> entry : toDisabled.entrySet()) {
+            if (fromEnabled.containsKey(entry.getKey())) {
+                disabled.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<LocationAddress, URL> entry : fromEnabled.entrySet()) {
+            if (!toEnabled.containsKey(entry.getKey()) && !toDisabled.containsKey(entry.getKey())) {
+                removed.add(entry.getValue());
+            }
+        }
+        for (Map.Entry<LocationAddress, URL> entry : fromDisabled.entrySet()) {
+            if (!toEnabled.containsKey(entry.getKey()) && !toDisabled.containsKey(entry.getKey())) {
+                removed.add(entry.getValue());
+            }
+        }
+
+        return new ServiceChangeEvent(service, to.getVersion(),
+                added.build(), removed.build(), disabled.build(), updated.build(),
+                to.getAddresses(), to.getMetadataByAddress(), to.getActivationTimesByAddress());
+    }
+
+    /**
+     * @return the service name
+     */
+    public String getService() {
+        return service;
+    }
+
+    /**
+     * @return the version of the routing table this event brings the listener to
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return locations that became available, either activated or whose member came back
+     */
+    public Collection<URL> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return locations that have been deactivated
+     */
+    public Collection<URL> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return locations that are unavailable because their member left the cluster
+     */
+    public Collection<URL> getDisabled() {
+        return disabled;
+    }
+
+    /**
+     * @return available locations whose metadata changed
+     */
+    public Collection<URL> getUpdated() {
+        return updated;
+    }
+
+    /**
+     * @return all available locations for the service, after this change
+     */
+    public Collection<URL> getLocations() {
+        return locations;
+    }
+
+    /**
+     * @return metadata of all available locations, keyed by address in URL external form
+     */
+    public Map<String, LocationMetadata> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * When this node learned about each available location, in System.currentTimeMillis() time.
+     * Locations that were already active when this node joined the cluster have activation time 0.
+     * @return activation times, keyed by address in URL external form
+     */
+    public Map<String, Long> getActivationTimes() {
+        return activationTimes;
+    }
+
+    /**
+     * @return true if no location was added, removed, disabled or updated
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && disabled.isEmpty() && updated.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ServiceChange(%s v%d, added=%s, removed=%s, disabled=%s, updated=%s)",
+                service, version, added, removed, disabled, updated);
+    }
+}
@@ -19,15 +19,33 @@ import java.io.Serializable;
 import java.net.URL;
 
 /**
- * An instance of a service at an address
+ * An instance of a service at an address.
+ *
+ * Identity is based on the service name and the canonical LocationAddress,
+ * never on java.net.URL, so that comparing locations does not resolve host names.
+ * Metadata is not part of the identity: the metadata of a location can change.
  */
 final class ServiceLocation implements Serializable {
+    // compatible with nodes that still use the spino-services map
+    private static final long serialVersionUID = -8459577810601113206L;
+
     private final String service;
     private final URL address;
+    // derived from address, so it is not serialized
+    private final transient LocationAddress key;
+    // only carried by the compact MemberLocations format: nodes that still use
+    // java serialization (the spino-services map) do not know about metadata
+    private final transient LocationMetadata metadata;
 
     ServiceLocation(String service, URL address) {
+        this(service, address, LocationMetadata.DEFAULT);
+    }
+
+    ServiceLocation(String service, URL address, LocationMetadata metadata) {
         this.service = service;
         this.address = address;
+        this.key = LocationAddress.of(address);
+        this.metadata = metadata;
     }
 
     public String getService() {
@@ -38,6 +56,18 @@ final class ServiceLocation implements Serializable {
         return address;
     }
 
+    LocationAddress getKey() {
+        return key;
+    }
+
+    LocationMetadata getMetadata() {
+        return metadata;
+    }
+
+    private Object readResolve() {
+        return new ServiceLocation(service, address);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -45,7 +75,7 @@ final class ServiceLocation implements Serializable {
 
         ServiceLocation serviceInstance = (ServiceLocation) o;
 
-        if (!address.equals(serviceInstance.address)) return false;
+        if (!key.equals(serviceInstance.key)) return false;
         if (!service.equals(serviceInstance.service)) return false;
 
         return true;
@@ -54,7 +84,7 @@ final class ServiceLocation implements Serializable {
     @Override
     public int hashCode() {
         int result = service.hashCode();
-        result = 31 * result + address.hashCode();
+        result = 31 * result + key.hashCode();
         return result;
     }
 
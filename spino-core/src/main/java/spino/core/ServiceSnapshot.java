@@ -0,0 +1,209 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of the locations of a service, as published by the RoutingTable.
+ *
+ * Locations are keyed by their canonical LocationAddress. A location is enabled
+ * when at least one binding for it is enabled, disabled when all its bindings
+ * belong to members that have left the cluster.
+ *
+ * A snapshot holds its locations either in maps (default RoutingTable) or in arrays,
+ * enabled locations first (compact RoutingTable). The maps of a snapshot built from arrays
+ * are built on each call, and not kept. Activation times are always in an array,
+ * in the order of the locations: enabled, then disabled.
+ */
+final class ServiceSnapshot {
+
+    static final ServiceSnapshot EMPTY = new ServiceSnapshot(0,
+            ImmutableMap.<LocationAddress, URL>of(), ImmutableMap.<LocationAddress, URL>of(),
+            ImmutableMap.<LocationAddress, LocationMetadata>of(), ImmutableMap.<LocationAddress, Long>of());
+
+    private final long version;
+
+    private final ImmutableList<URL> addresses;
+
+    // null if built from arrays
+    private final ImmutableMap<LocationAddress, URL> enabled;
+    private final ImmutableMap<LocationAddress, URL> disabled;
+    private final ImmutableMap<LocationAddress, LocationMetadata> metadata;
+
+    // null if built from maps
+    private final LocationAddress[] keys;
+    private final URL[] urls;
+    private final LocationMetadata[] metadataArray;
+
+    private final long[] activatedAtArray;
+    private final int enabledCount;
+
+    ServiceSnapshot(long version, ImmutableMap<LocationAddress, URL> enabled, ImmutableMap<LocationAddress, URL> disabled,
+                    ImmutableMap<LocationAddress, LocationMetadata> metadata, ImmutableMap<LocationAddress, Long> activatedAt) {
+        this.version = version;
+        this.enabled = enabled;
+        this.disabled = disabled;
+        this.metadata = metadata;
+        this.addresses = enabled.values().asList();
+        this.keys = null;
+        this.urls = null;
+        this.metadataArray = null;
+        this.activatedAtArray = new long[enabled.size() + disabled.size()];
+        int i = 0;
+        for (LocationAddress key : enabled.keySet()) {
+            activatedAtArray[i++] = activatedAt.get(key);
+        }
+        for (LocationAddress key : disabled.keySet()) {
+            activatedAtArray[i++] = activatedAt.get(key);
+        }
+        this.enabledCount = enabled.size();
+    }
+
+    /**
+     * Build a snapshot from arrays, that must not be modified afterwards
+     * @param keys - the addresses of enabled locations, then of disabled ones
+     * @param urls - the URL of each address
+     * @param metadata - the metadata of each address
+     * @param activatedAt - the activation time of each address, in millis or 0 if unknown
+     * @param enabledCount - how many locations are enabled
+     */
+    ServiceSnapshot(long version, LocationAddress[] keys, URL[] urls, LocationMetadata[] metadata,
+                    long[] activatedAt, int enabledCount) {
+        this.version = version;
+        this.keys = keys;
+        this.urls = urls;
+        this.metadataArray = metadata;
+        this.activatedAtArray = activatedAt;
+        this.enabledCount = enabledCount;
+        this.addresses = ImmutableList.copyOf(Arrays.asList(urls).subList(0, enabledCount));
+        this.enabled = null;
+        this.disabled = null;
+        this.metadata = null;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    ImmutableMap<LocationAddress, URL> getEnabled() {
+        return enabled != null ? enabled : urlsByKey(0, enabledCount);
+    }
+
+    ImmutableMap<LocationAddress, URL> getDisabled() {
+        return disabled != null ? disabled : urlsByKey(enabledCount, keys.length);
+    }
+
+    int getEnabledCount() {
+        return enabledCount;
+    }
+
+    int getDisabledCount() {
+        return disabled != null ? disabled.size() : keys.length - enabledCount;
+    }
+
+    /**
+     * @return metadata of enabled and disabled locations
+     */
+    ImmutableMap<LocationAddress, LocationMetadata> getMetadata() {
+        if (metadata != null) {
+            return metadata;
+        }
+        ImmutableMap.Builder<LocationAddress, LocationMetadata> builder = ImmutableMap.builder();
+        for (int i = 0; i < keys.length; i++) {
+            builder.put(keys[i], metadataArray[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return metadata of enabled locations, keyed by address in URL external form
+     */
+    ImmutableMap<String, LocationMetadata> getMetadataByAddress() {
+        ImmutableMap.Builder<String, LocationMetadata> builder = ImmutableMap.builder();
+        if (enabled != null) {
+            for (Map.Entry<LocationAddress, URL> entry : enabled.entrySet()) {
+                builder.put(entry.getValue().toExternalForm(), metadata.get(entry.getKey()));
+            }
+        }
+        else {
+            for (int i = 0; i < enabledCount; i++) {
+                builder.put(urls[i].toExternalForm(), metadataArray[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return local activation time of enabled locations, in millis or 0 if unknown,
+     * keyed by address in URL external form
+     */
+    ImmutableMap<String, Long> getActivationTimesByAddress() {
+        ImmutableMap.Builder<String, Long> builder = ImmutableMap.builder();
+        if (enabled != null) {
+            int i = 0;
+            for (URL url : enabled.values()) {
+                builder.put(url.toExternalForm(), activatedAtArray[i++]);
+            }
+        }
+        else {
+            for (int i = 0; i < enabledCount; i++) {
+                builder.put(urls[i].toExternalForm(), activatedAtArray[i]);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the enabled locations, with their metadata
+     */
+    List<ServiceLocation> getLocations(String service) {
+        List<ServiceLocation> locations = new ArrayList<ServiceLocation>(enabledCount);
+        if (enabled != null) {
+            for (Map.Entry<LocationAddress, URL> entry : enabled.entrySet()) {
+                locations.add(new ServiceLocation(service, entry.getValue(), metadata.get(entry.getKey())));
+            }
+        }
+        else {
+            for (int i = 0; i < enabledCount; i++) {
+                locations.add(new ServiceLocation(service, urls[i], metadataArray[i]));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return the addresses of enabled locations
+     */
+    ImmutableList<URL> getAddresses() {
+        return addresses;
+    }
+
+    private ImmutableMap<LocationAddress, URL> urlsByKey(int from, int to) {
+        ImmutableMap.Builder<LocationAddress, URL> builder = ImmutableMap.builder();
+        for (int i = from; i < to; i++) {
+            builder.put(keys[i], urls[i]);
+        }
+        return builder.build();
+    }
+}
@@ -17,6 +17,7 @@ package spino.core;
 
 import java.net.URL;
 import java.util.Collection;
+import java.util.Map;
 
 public class Spino {
     private static final SpinoHazelcastImpl INSTANCE = new SpinoHazelcastImpl();
@@ -36,6 +37,15 @@ public class Spino {
         INSTANCE.start(seeds);
     }
 
+    /**
+     * Join the Spino cluster using a custom configuration.
+     * Returns once joined, unless the config joins in background.
+     * @param config
+     */
+    public static void start(SpinoConfig config) {
+        INSTANCE.start(config);
+    }
+
     /**
      * Leave the Spino cluster.
      */
@@ -59,6 +69,22 @@ public class Spino {
         INSTANCE.activateServiceLocation(service, address);
     }
 
+    /**
+     * Activate a Location for a service, describing it with metadata.
+     * Activating the same location again with different metadata updates it.
+     *
+     * @param service - the service name.
+     * @param address URL of the service instance
+     * @param metadata - zone, weight and version of the service instance
+     */
+    public static void activateLocation(String service, URL address, LocationMetadata metadata) {
+        INSTANCE.activateServiceLocation(service, address, metadata);
+    }
+
+    public static void activateLocation(String service, String address, LocationMetadata metadata) {
+        INSTANCE.activateServiceLocation(service, address, metadata);
+    }
+
     /**
      * Activate a Location for a service. The caller
      * is declaring that an instance of service `serviceName` is now available
@@ -75,6 +101,27 @@ public class Spino {
         INSTANCE.deactivateServiceLocation(service, address);
     }
 
+    /**
+     * Activate many Locations at once, possibly of different services.
+     * The whole batch is published to the cluster with a single operation,
+     * and other nodes apply it as a single update.
+     *
+     * @param locations - addresses of service instances, by service name
+     */
+    public static void activateLocations(Map<String, ? extends Collection<URL>> locations) {
+        INSTANCE.activateServiceLocations(locations);
+    }
+
+    /**
+     * Deactivate many Locations at once, possibly of different services.
+     * The whole batch is published to the cluster with a single operation.
+     *
+     * @param locations - addresses of service instances, by service name
+     */
+    public static void deactivateLocations(Map<String, ? extends Collection<URL>> locations) {
+        INSTANCE.deactivateServiceLocations(locations);
+    }
+
     /**
      * List all active location for a service
      * @param service - the service name
@@ -84,9 +131,47 @@ public class Spino {
         return INSTANCE.getServiceAddresses(service);
     }
 
+    /**
+     * Metadata of all active locations for a service
+     * @param service - the service name
+     * @return metadata, keyed by address in URL external form
+     */
+    public static Map<String, LocationMetadata> getLocationMetadata(String service) {
+        return INSTANCE.getServiceMetadata(service);
+    }
+
+    /**
+     * When this node learned about each active location of a service, see ServiceChangeEvent.getActivationTimes
+     * @param service - the service name
+     * @return activation times in millis, keyed by address in URL external form
+     */
+    public static Map<String, Long> getLocationActivationTimes(String service) {
+        return INSTANCE.getServiceActivationTimes(service);
+    }
+
+    /**
+     * Renew the lease on the locations of this node.
+     * Only needed if leases are enabled without automatic renewal, see SpinoConfig.setLeaseAutoRenewal:
+     * call it more often than the lease duration, for example after checking the health of the application.
+     */
+    public static void renewLease() {
+        INSTANCE.renewLease();
+    }
+
+    /**
+     * Take a snapshot of the runtime metrics of this node.
+     * The same metrics are available via JMX, as spino:type=Metrics
+     * @return
+     */
+    public static SpinoMetrics getMetrics() {
+        return INSTANCE.getMetrics();
+    }
+
     /**
      * Add a service listener.
-     * The listener is notified whenever locations are added or removed for this service
+     * The listener is notified whenever locations are added or removed for this service.
+     * Notifications are delivered on a Spino listener thread, and changes that happen
+     * close together may be reported by a single notification.
      * @param service - the service name
      * @param listener
      */
@@ -94,6 +179,17 @@ public class Spino {
         INSTANCE.addServiceListener(service, listener);
     }
 
+    /**
+     * Add a service listener that is told which locations changed.
+     * Each event carries the locations added, removed and disabled since the previous
+     * event for this service, and a version that grows with every change.
+     * @param service - the service name
+     * @param listener
+     */
+    public static void addServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        INSTANCE.addServiceChangeListener(service, listener);
+    }
+
     /**
      * Remove a service listener.
      * @param service - the service name
@@ -102,4 +198,13 @@ public class Spino {
     public static void removeServiceListener(String service, SpinoServiceListener listener) {
         INSTANCE.removeServiceListener(service, listener);
     }
+
+    /**
+     * Remove a service change listener.
+     * @param service - the service name
+     * @param listener
+     */
+    public static void removeServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        INSTANCE.removeServiceChangeListener(service, listener);
+    }
 }
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import com.hazelcast.core.Member;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Shares the locations records of the nodes of a cluster, and tracks which nodes are online.
+ *
+ * A node publishes all its locations as a single MemberLocations record, and the backend
+ * replicates it to all the other nodes. Nodes are identified by Hazelcast Members
+ * (an address and a uuid), whatever the backend, so that the routing table does not depend on it.
+ *
+ * Listener methods are invoked on backend threads, and must not block.
+ *
+ * See HazelcastBackend and GossipBackend. Backends are internal, chosen with SpinoConfig.setBackend:
+ * records and listener events are internal types, that change with the routing table.
+ */
+interface SpinoBackend {
+
+    /**
+     * Joins the cluster, and starts notifying the listener.
+     * When it returns, getMembers and getRecords reflect the state of the cluster.
+     * @param config
+     * @param listener
+     */
+    void start(SpinoConfig config, Listener listener);
+
+    /**
+     * Stops notifying the listener, and leaves the cluster.
+     */
+    void shutdown();
+
+    Member getLocalMember();
+
+    /**
+     * @return the online members, including the local one
+     */
+    Set<Member> getMembers();
+
+    /**
+     * @return the records of all members, online or not
+     */
+    Collection<MemberLocations> getRecords();
+
+    /**
+     * Replaces the record of the local member, or removes it if there are no locations.
+     * @param locations - all the locations of the local member
+     * @param leaseMillis - if positive, the record expires unless it is published again within this time
+     */
+    void publish(Collection<ServiceLocation> locations, long leaseMillis);
+
+    /**
+     * Whether this node removes the records of departed members, see MemberReaper.
+     */
+    boolean isCoordinator();
+
+    /**
+     * Removes the record of a member that left the cluster.
+     * @param member
+     * @return true if there was a record to remove
+     */
+    boolean removeRecord(Member member);
+
+    interface Listener {
+
+        void memberAdded(Member member);
+
+        void memberRemoved(Member member);
+
+        /**
+         * A member might have failed: it is still part of the cluster, but missed heartbeats or probes.
+         */
+        void memberSuspected(Member member);
+
+        /**
+         * A suspected member is reachable again.
+         */
+        void memberRecovered(Member member);
+
+        /**
+         * A record was added, or replaced.
+         */
+        void recordUpdated(MemberLocations record);
+
+        /**
+         * A record was removed, or expired.
+         */
+        void recordRemoved(MemberLocations record);
+
+        /**
+         * The backend compared its state with another node's, and applied what it was missing.
+         */
+        void synced();
+    }
+}
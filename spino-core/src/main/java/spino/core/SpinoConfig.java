@@ -0,0 +1,448 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration for a Spino node.
+ *
+ * <pre>
+ * Spino.start(new SpinoConfig()
+ *     .setSeeds("192.168.0.2", "192.168.0.3")
+ *     .setNotificationWindow(100, TimeUnit.MILLISECONDS));
+ * </pre>
+ */
+public class SpinoConfig {
+
+    /**
+     * How nodes share their locations and learn which nodes are online.
+     */
+    public enum Backend {
+        /**
+         * A Hazelcast cluster, that stores the locations in a distributed map. The default.
+         */
+        HAZELCAST,
+        /**
+         * A lightweight, SWIM-style gossip protocol over UDP. Each node keeps a copy of all
+         * the locations, and probes other nodes to detect failures.
+         * Lite members and the spino-services map are not supported.
+         */
+        GOSSIP
+    }
+
+    private Backend backend = Backend.HAZELCAST;
+
+    private String gossipHost = null;
+    private int gossipPort = 5801;
+
+    private String[] seeds = null;
+
+    private FailureDetectorConfig failureDetector = null;
+
+    private long notificationWindowMillis = 50;
+    private int listenerThreads = 1;
+    private int listenerQueueCapacity = 1024;
+
+    private boolean jmxEnabled = true;
+
+    private boolean liteMember = false;
+
+    private File snapshotFile = null;
+    private boolean joinInBackground = false;
+
+    private boolean legacyServicesMap = false;
+
+    private boolean compactRoutingTable = false;
+
+    private long reaperGracePeriodMillis = TimeUnit.MINUTES.toMillis(5);
+
+    private long leaseDurationMillis = 0;
+    private boolean leaseAutoRenewal = true;
+
+    private long healthCheckIntervalMillis = 0;
+    private long healthCheckTimeoutMillis = 1000;
+    private String healthCheckPath = null;
+
+    /**
+     * @return known nodes of the cluster, or null to use multicast
+     */
+    public String[] getSeeds() {
+        return seeds;
+    }
+
+    /**
+     * Join the Spino cluster using other known nodes as a starting point,
+     * instead of multicast.
+     * With the gossip backend, seeds are the only way to join a cluster.
+     * @param seeds - other known nodes of the cluster, as host or host:port
+     * @return this config
+     */
+    public SpinoConfig setSeeds(String... seeds) {
+        this.seeds = seeds;
+        return this;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Choose how nodes share locations. All nodes of a cluster must use the same backend.
+     * Defaults to Backend.HAZELCAST
+     * @param backend
+     * @return this config
+     */
+    public SpinoConfig setBackend(Backend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("backend must not be null");
+        }
+        this.backend = backend;
+        return this;
+    }
+
+    /**
+     * @return the address other nodes use to reach this node, or null to use the local host address
+     */
+    public String getGossipHost() {
+        return gossipHost;
+    }
+
+    /**
+     * The address of this node for the gossip backend: the node listens on this address,
+     * and other nodes use it to reach this node. Defaults to the local host address.
+     * @param gossipHost
+     * @return this config
+     */
+    public SpinoConfig setGossipHost(String gossipHost) {
+        this.gossipHost = gossipHost;
+        return this;
+    }
+
+    public int getGossipPort() {
+        return gossipPort;
+    }
+
+    /**
+     * The UDP port of the gossip backend, and the default port of seeds. Defaults to 5801.
+     * If the port is in use, the next free one is used instead.
+     * @param gossipPort
+     * @return this config
+     */
+    public SpinoConfig setGossipPort(int gossipPort) {
+        if (gossipPort < 1 || gossipPort > 65535) {
+            throw new IllegalArgumentException("gossip port out of range: " + gossipPort);
+        }
+        this.gossipPort = gossipPort;
+        return this;
+    }
+
+    /**
+     * @return the failure detection timings, or null to use the defaults of the backend
+     */
+    public FailureDetectorConfig getFailureDetector() {
+        return failureDetector;
+    }
+
+    /**
+     * Detect failed members faster than the backend does by default, and suspect them
+     * before they are removed, see FailureDetectorConfig.
+     * By default, Hazelcast removes a member after 300 seconds without heartbeats, and members are never suspected;
+     * the gossip backend probes members every second, and removes suspected members after 5 seconds.
+     * @param failureDetector - the timings, or null to use the defaults of the backend
+     * @return this config
+     */
+    public SpinoConfig setFailureDetector(FailureDetectorConfig failureDetector) {
+        this.failureDetector = failureDetector;
+        return this;
+    }
+
+    public long getNotificationWindowMillis() {
+        return notificationWindowMillis;
+    }
+
+    /**
+     * Changes to the same service that happen within this window are
+     * coalesced into a single listener notification.
+     * @param window - zero to notify as soon as possible
+     * @param unit
+     * @return this config
+     */
+    public SpinoConfig setNotificationWindow(long window, TimeUnit unit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("notification window must not be negative: " + window);
+        }
+        this.notificationWindowMillis = unit.toMillis(window);
+        return this;
+    }
+
+    public int getListenerThreads() {
+        return listenerThreads;
+    }
+
+    /**
+     * Number of threads used to notify service listeners.
+     * Notifications for the same service are never delivered concurrently.
+     * @param listenerThreads
+     * @return this config
+     */
+    public SpinoConfig setListenerThreads(int listenerThreads) {
+        if (listenerThreads < 1) {
+            throw new IllegalArgumentException("listener threads must be at least 1: " + listenerThreads);
+        }
+        this.listenerThreads = listenerThreads;
+        return this;
+    }
+
+    public int getListenerQueueCapacity() {
+        return listenerQueueCapacity;
+    }
+
+    /**
+     * Maximum number of services waiting for a listener thread.
+     * When the queue is full, notifications are retried after the notification window.
+     * @param listenerQueueCapacity
+     * @return this config
+     */
+    public SpinoConfig setListenerQueueCapacity(int listenerQueueCapacity) {
+        if (listenerQueueCapacity < 1) {
+            throw new IllegalArgumentException("listener queue capacity must be at least 1: " + listenerQueueCapacity);
+        }
+        this.listenerQueueCapacity = listenerQueueCapacity;
+        return this;
+    }
+
+    public boolean isJmxEnabled() {
+        return jmxEnabled;
+    }
+
+    /**
+     * Register SpinoMetrics with the platform MBeanServer, as spino:type=Metrics.
+     * Enabled by default.
+     * @param jmxEnabled
+     * @return this config
+     */
+    public SpinoConfig setJmxEnabled(boolean jmxEnabled) {
+        this.jmxEnabled = jmxEnabled;
+        return this;
+    }
+
+    public boolean isLiteMember() {
+        return liteMember;
+    }
+
+    /**
+     * Join the cluster as a lite member, that does not own any share of the
+     * locations map and takes no part in partition migrations.
+     * A lite node receives routing updates and can activate its own locations
+     * like any other node, but uses less heap, and does not trigger migrations
+     * when it joins or leaves. It takes as long to join as a full member:
+     * see setJoinInBackground to not wait for the join.
+     * At least one node of the cluster must be a full member.
+     *
+     * Hazelcast clients connect faster than members join, but are not supported:
+     * a client is not a member of the cluster, and Spino tracks which locations
+     * are online by the members that activated them.
+     * @param liteMember
+     * @return this config
+     */
+    public SpinoConfig setLiteMember(boolean liteMember) {
+        this.liteMember = liteMember;
+        return this;
+    }
+
+    /**
+     * @return the local routing snapshot, or null if disabled
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Keep a copy of the available locations in a local file.
+     * When the node restarts, the saved locations are available immediately,
+     * while the node joins the cluster, and replaced with the cluster state once joined.
+     * Lookups can only use them if the node joins in background, see setJoinInBackground.
+     * Disabled by default.
+     * @param snapshotFile - the file, or null to disable
+     * @return this config
+     */
+    public SpinoConfig setSnapshotFile(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        return this;
+    }
+
+    public boolean isJoinInBackground() {
+        return joinInBackground;
+    }
+
+    /**
+     * Return from Spino.start as soon as the snapshot file is loaded, and join the cluster in background.
+     * Until the node has joined, lookups are answered from the saved locations, and the locations
+     * it activates are published once it has joined.
+     * Disabled by default: start returns once joined, and the saved locations are never seen.
+     * @param joinInBackground
+     * @return this config
+     */
+    public SpinoConfig setJoinInBackground(boolean joinInBackground) {
+        this.joinInBackground = joinInBackground;
+        return this;
+    }
+
+    public boolean isLegacyServicesMap() {
+        return legacyServicesMap;
+    }
+
+    /**
+     * Interoperate with nodes of older versions, that publish locations in the spino-services map.
+     * Enable it on upgraded nodes while a cluster is being upgraded, then disable it.
+     * @param legacyServicesMap
+     * @return this config
+     */
+    public SpinoConfig setLegacyServicesMap(boolean legacyServicesMap) {
+        this.legacyServicesMap = legacyServicesMap;
+        return this;
+    }
+
+    public boolean isCompactRoutingTable() {
+        return compactRoutingTable;
+    }
+
+    /**
+     * Keep the routing table in primitive arrays, that take less memory and garbage
+     * with hundreds of thousands of locations, at the cost of slower scans when
+     * an address is ejected by health checks. Disabled by default.
+     * @param compactRoutingTable
+     * @return this config
+     */
+    public SpinoConfig setCompactRoutingTable(boolean compactRoutingTable) {
+        this.compactRoutingTable = compactRoutingTable;
+        return this;
+    }
+
+    public long getReaperGracePeriodMillis() {
+        return reaperGracePeriodMillis;
+    }
+
+    /**
+     * When a member leaves the cluster, its locations are disabled.
+     * If it does not come back within this period, they are removed.
+     * Defaults to 5 minutes.
+     * @param gracePeriod
+     * @param unit
+     * @return this config
+     */
+    public SpinoConfig setReaperGracePeriod(long gracePeriod, TimeUnit unit) {
+        if (gracePeriod < 0) {
+            throw new IllegalArgumentException("reaper grace period must not be negative: " + gracePeriod);
+        }
+        this.reaperGracePeriodMillis = unit.toMillis(gracePeriod);
+        return this;
+    }
+
+    public long getLeaseDurationMillis() {
+        return leaseDurationMillis;
+    }
+
+    /**
+     * Locations activated by this node expire, unless their lease is renewed within this duration.
+     * Expired locations are activated again by the next renewal.
+     * Disabled by default: locations are available as long as their node is part of the cluster.
+     * @param leaseDuration - zero to disable leases
+     * @param unit
+     * @return this config
+     */
+    public SpinoConfig setLeaseDuration(long leaseDuration, TimeUnit unit) {
+        if (leaseDuration < 0) {
+            throw new IllegalArgumentException("lease duration must not be negative: " + leaseDuration);
+        }
+        this.leaseDurationMillis = unit.toMillis(leaseDuration);
+        return this;
+    }
+
+    public boolean isLeaseAutoRenewal() {
+        return leaseAutoRenewal;
+    }
+
+    /**
+     * When enabled (the default) leases are renewed as long as this node is running.
+     * When disabled, they are only renewed if the application calls Spino.renewLease()
+     * regularly, for example after checking its own health.
+     * @param leaseAutoRenewal
+     * @return this config
+     */
+    public SpinoConfig setLeaseAutoRenewal(boolean leaseAutoRenewal) {
+        this.leaseAutoRenewal = leaseAutoRenewal;
+        return this;
+    }
+
+    public long getHealthCheckIntervalMillis() {
+        return healthCheckIntervalMillis;
+    }
+
+    /**
+     * Probe all available locations at this interval, and stop using the ones that fail.
+     * Health checks are local: a location that fails them is only ejected from this node's view.
+     * Disabled by default.
+     * @param interval - zero to disable health checks
+     * @param unit
+     * @return this config
+     */
+    public SpinoConfig setHealthCheckInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("health check interval must not be negative: " + interval);
+        }
+        this.healthCheckIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    public long getHealthCheckTimeoutMillis() {
+        return healthCheckTimeoutMillis;
+    }
+
+    /**
+     * A probe that takes longer than this fails. Defaults to one second.
+     * @param timeout
+     * @param unit
+     * @return this config
+     */
+    public SpinoConfig setHealthCheckTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("health check timeout must be positive: " + timeout);
+        }
+        this.healthCheckTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public String getHealthCheckPath() {
+        return healthCheckPath;
+    }
+
+    /**
+     * Probe locations with a GET request for this path, that must return a 2xx or 3xx status.
+     * By default probes only check that a TCP connection can be opened.
+     * @param healthCheckPath - for example "/health", or null
+     * @return this config
+     */
+    public SpinoConfig setHealthCheckPath(String healthCheckPath) {
+        if (healthCheckPath != null && !healthCheckPath.startsWith("/")) {
+            throw new IllegalArgumentException("health check path must start with /: " + healthCheckPath);
+        }
+        this.healthCheckPath = healthCheckPath;
+        return this;
+    }
+}
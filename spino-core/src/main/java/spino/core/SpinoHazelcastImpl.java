@@ -15,12 +15,7 @@
  */
 package spino.core;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
-import com.hazelcast.config.Config;
-import com.hazelcast.config.Join;
-import com.hazelcast.config.NetworkConfig;
-import com.hazelcast.core.*;
+import com.hazelcast.core.Member;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,28 +27,49 @@ import java.util.*;
  *  How it works:
  *
  *  Data:
- *      ServiceMap: an Hazelcast Multimap service -> (member, service, address)
- *      RoutingTable: a local Table (Hazelcat Member, Server, (member, service, address), Status)
+ *      LocationsMap: an Hazelcast Map member uuid -> (member, [(service, address), ...])
+ *      RoutingTable: a local Table (Hazelcat Member, (service, address), (member, service, address), Status)
+ *
+ *      LocationsMap and cluster membership are provided by a SpinoBackend: by default Hazelcast,
+ *      or a GossipBackend, that keeps a copy of LocationsMap on each node and replicates it over UDP.
  *
  *  Service Activation:
- *      When a service is activated on an address using activateLocation
- *      an element is added to ServiceMap  service -> (LocalMember, service, address)
+ *      When one or more services are activated using activateLocation(s)
+ *      the local member adds them to its set of locations, and publishes the whole set
+ *      with a single put: LocationsMap  LocalMember.uuid -> (LocalMember, locations)
  *
- *      When ServiceMap notifies entryAdded(sender, (member, service, address)),
- *      an entry is added to the Routing Table: (member, service, (member, service, address), Active)
+ *      When LocationsMap notifies entryAdded or entryUpdated(uuid, (member, locations)),
+ *      the Routing Table replaces all the entries of that member with
+ *      (member, (service, address), (member, service, address), Active)
+ *      and publishes each affected service once.
  *
  *      When Hazelcast notifies that a member has been added, all RoutingTable
  *      entries for that Member are set to Active.
  *
  *  Service Deactivation:
- *      When a service is deactivated on an address using deactivateLocation,
- *      an element is removed from the ServiceMap service -> (LocalMember, service, address)
+ *      When one or more services are deactivated using deactivateLocation(s),
+ *      the local member removes them from its set of locations and publishes the
+ *      set again (or removes its entry, when the set is empty)
  *
- *      When ServiceMap notifies entryRemoved, the entry is removed from RoutingTable
+ *      The Routing Table then removes the entries the member no longer has
  *
  *      When Hazelcast notifies that a member has been removed, all RoutingTable
  *      entries for that Member are set to Inactive.
  *
+ *      If failure detection is configured, a member that misses heartbeats is suspected
+ *      before it is removed: its entries are demoted, and only used if a service has no other.
+ *
+ *      If the member does not come back within a grace period, its entries are removed
+ *      from the RoutingTable, and the oldest member removes its record from LocationsMap.
+ *
+ *      If leases are enabled, the member puts its record with a time to live, and puts it again
+ *      every third of the lease. If the lease is not renewed the record expires, and
+ *      LocationsMap notifies entryEvicted: the Routing Table removes the member's entries.
+ *
+ *  Health Checks:
+ *      Optionally, each member probes the enabled locations of the Routing Table, and ejects
+ *      the ones that fail from its own Routing Table. Nothing is written to LocationsMap.
+ *
  *  Listing Active Service Locations:
  *      to list all locations for a service, it is enough to
  *      query the Routing Table by service.
@@ -63,65 +79,183 @@ import java.util.*;
  *      of the cluster.
  *
  *  Setting Initial State:
- *      At startup, populate
+ *      At startup, populate the Routing Table from LocationsMap, for members that are online.
+ *
+ *      If a snapshot file is configured, the locations saved there are loaded first,
+ *      as stale locations, so that they can be used while the node joins the cluster.
+ *      They are removed once LocationsMap has been imported. Unless the node joins in
+ *      background, start returns only then, and callers never see the stale locations.
+ *
+ *  Notifying Listeners:
+ *      RoutingTable changes are handed to a ListenerDispatcher, which coalesces them
+ *      per service and invokes SpinoServiceListeners on its own threads, so that
+ *      listeners never run on (or slow down) Hazelcast event threads.
  *
  *  TODO: before adding an entry in the routing table, always check if the member is active
- *  TODO: allow users to listen for changes in service availability
  *
  */
 final class SpinoHazelcastImpl implements RoutingTable.RoutingTableListener {
     private static final Logger LOG = LoggerFactory.getLogger(SpinoHazelcastImpl.class);
 
-    private final Multimap<String, SpinoServiceListener> listeners = ArrayListMultimap.create();
+    private final ListenerDispatcher dispatcher;
 
-    private static final String SERVICES_MAP = "spino-services";
-    private static final String GROUP_NAME = "SPINO";
+    private final Metrics metrics = new Metrics();
 
     private final RoutingTable routingTable;
 
+    private final MemberReaper reaper;
+
+    private final LeaseRenewer leaseRenewer;
+
+    private final HealthChecker healthChecker;
+
+    // zero unless leases are enabled
+    private volatile long leaseDurationMillis;
+
+    // null unless a snapshot file is configured
+    private volatile RoutingSnapshotFile snapshotFile;
+
+    // null unless compatibility with the spino-services map is enabled
+    private volatile LegacyServicesMap legacyServicesMap;
+
+    // false until the backend has joined the cluster: records received until then
+    // (such as the initial gossip sync) were active before this node joined
+    private volatile boolean joined;
+
+    // false until the backend has joined the cluster: locations activated until then
+    // are published once it has. Guarded by localLocations
+    private boolean publishing;
+
+    // null unless joining in background
+    private volatile Thread joinThread;
+
+    // locations activated by this member, guarded by itself.
+    // Each location maps to itself, so that it can be replaced when its metadata changes
+    private final Map<ServiceLocation, ServiceLocation> localLocations = new LinkedHashMap<ServiceLocation, ServiceLocation>();
+
     SpinoHazelcastImpl() {
-        routingTable = new RoutingTable(this);
+        routingTable = new RoutingTable(this, metrics);
+        dispatcher = new ListenerDispatcher(routingTable, metrics);
+        reaper = new MemberReaper(routingTable);
+        healthChecker = new HealthChecker(routingTable);
+        leaseRenewer = new LeaseRenewer(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (localLocations) {
+                    if (publishing && !localLocations.isEmpty()) {
+                        publishLocalLocations();
+                    }
+                }
+            }
+        });
     }
 
-    private HazelcastInstance hz;
-    private HazelcastListener handler;
-    private Cluster cluster;
+    private volatile SpinoBackend backend;
 
     void start() {
-        start(null);
+        start(new SpinoConfig());
     }
 
     void start(String... seeds) {
-        handler = this.new HazelcastListener();
-        Config hzConfig = new Config();
-
-        if (seeds != null) {
-            NetworkConfig networkConfig = hzConfig.getNetworkConfig();
-            Join join = networkConfig.getJoin();
-            join.getMulticastConfig().setEnabled(false);
-            for(String address : seeds) {
-                join.getTcpIpConfig().addMember(address);
-            }
-            join.getTcpIpConfig().setEnabled(true);
+        start(new SpinoConfig().setSeeds(seeds));
+    }
+
+    void start(final SpinoConfig config) {
+        leaseDurationMillis = config.getLeaseDurationMillis();
+        routingTable.setCompact(config.isCompactRoutingTable());
+        dispatcher.start(config);
+        if (config.isJmxEnabled()) {
+            metrics.registerMBean(routingTable);
+        }
+        if (config.getSnapshotFile() != null) {
+            snapshotFile = new RoutingSnapshotFile(config.getSnapshotFile(), routingTable);
+            snapshotFile.load();
         }
+        if (!config.isJoinInBackground()) {
+            join(config);
+            return;
+        }
+        joinThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    join(config);
+                }
+                catch (RuntimeException ex) {
+                    LOG.error("Could not join the cluster, only saved locations are available", ex);
+                }
+            }
+        }, "spino-join");
+        joinThread.setDaemon(true);
+        joinThread.start();
+    }
 
-        hzConfig.getGroupConfig().setName(GROUP_NAME);
-        this.hz = Hazelcast.newHazelcastInstance(hzConfig);
-        this.cluster = hz.getCluster();
-        cluster.addMembershipListener(handler);
-        getServicesMap().addEntryListener(handler, true);
-        syncServiceMap(cluster);
+    /**
+     * Joins the cluster, imports its locations, and publishes the locations activated meanwhile.
+     */
+    private void join(SpinoConfig config) {
+        if (config.getBackend() == SpinoConfig.Backend.GOSSIP) {
+            backend = new GossipBackend();
+        }
+        else {
+            backend = new HazelcastBackend();
+        }
+        if (config.isLegacyServicesMap()) {
+            legacyServicesMap = new LegacyServicesMap(routingTable);
+        }
+        reaper.start(config, backend, legacyServicesMap);
+        backend.start(config, this.new BackendListener());
+        joined = true;
+        syncServiceMap();
+        if (legacyServicesMap != null) {
+            legacyServicesMap.start((HazelcastBackend) backend);
+        }
+        if (snapshotFile != null) {
+            snapshotFile.start();
+        }
+        leaseRenewer.start(config);
+        healthChecker.start(config);
+        synchronized (localLocations) {
+            publishing = true;
+            if (!localLocations.isEmpty()) {
+                publishLocalLocations();
+                if (legacyServicesMap != null) {
+                    legacyServicesMap.publish(backend.getLocalMember(), localLocations.values(),
+                            Collections.<ServiceLocation>emptySet());
+                }
+            }
+        }
     }
 
     void shutdown() {
-        Cluster cluster = hz.getCluster();
-        cluster.removeMembershipListener(handler);
-        getServicesMap().removeEntryListener(handler);
+        Thread joinThread = this.joinThread;
+        if (joinThread != null) {
+            // let a background join complete, so that the node leaves the cluster cleanly
+            try {
+                joinThread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        backend.shutdown();
+        if (legacyServicesMap != null) {
+            legacyServicesMap.shutdown();
+        }
+        dispatcher.shutdown();
+        reaper.shutdown();
+        leaseRenewer.shutdown();
+        healthChecker.shutdown();
+        if (snapshotFile != null) {
+            snapshotFile.shutdown();
+        }
+        metrics.unregisterMBean();
     }
 
     void activateServiceLocation(String service, URL address) {
         LOG.info("Activating service " + service + " at " + address);
-        getServicesMap().put(service, new LocationBinding(service, address, cluster.getLocalMember()));
+        updateLocalLocations(Collections.singleton(new ServiceLocation(service, address)),
+                Collections.<ServiceLocation>emptySet());
     }
 
     void activateServiceLocation(String service, String address) {
@@ -132,9 +266,24 @@ final class SpinoHazelcastImpl implements RoutingTable.RoutingTableListener {
         }
     }
 
+    void activateServiceLocation(String service, URL address, LocationMetadata metadata) {
+        LOG.info("Activating service " + service + " at " + address + " with " + metadata);
+        updateLocalLocations(Collections.singleton(new ServiceLocation(service, address, metadata)),
+                Collections.<ServiceLocation>emptySet());
+    }
+
+    void activateServiceLocation(String service, String address, LocationMetadata metadata) {
+        try {
+            activateServiceLocation(service, new URL(address), metadata);
+        } catch (MalformedURLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     void deactivateServiceLocation(String service, URL address) {
         LOG.info("Deactivating " + service + " at " + address);
-        getServicesMap().remove(service, new LocationBinding(service, address, cluster.getLocalMember()));
+        updateLocalLocations(Collections.<ServiceLocation>emptySet(),
+                Collections.singleton(new ServiceLocation(service, address)));
     }
 
     void deactivateServiceLocation(String service, String address) {
@@ -145,17 +294,96 @@ final class SpinoHazelcastImpl implements RoutingTable.RoutingTableListener {
         }
     }
 
+    void activateServiceLocations(Map<String, ? extends Collection<URL>> locations) {
+        LOG.info("Activating services {}", locations);
+        updateLocalLocations(toServiceLocations(locations), Collections.<ServiceLocation>emptySet());
+    }
+
+    void deactivateServiceLocations(Map<String, ? extends Collection<URL>> locations) {
+        LOG.info("Deactivating services {}", locations);
+        updateLocalLocations(Collections.<ServiceLocation>emptySet(), toServiceLocations(locations));
+    }
+
+    private static List<ServiceLocation> toServiceLocations(Map<String, ? extends Collection<URL>> locations) {
+        List<ServiceLocation> serviceLocations = new ArrayList<ServiceLocation>();
+        for (Map.Entry<String, ? extends Collection<URL>> entry : locations.entrySet()) {
+            for (URL address : entry.getValue()) {
+                serviceLocations.add(new ServiceLocation(entry.getKey(), address));
+            }
+        }
+        return serviceLocations;
+    }
+
+    /**
+     * Applies a batch of changes to the locations of this member,
+     * and publishes them to the cluster with a single operation.
+     */
+    private void updateLocalLocations(Collection<ServiceLocation> activated, Collection<ServiceLocation> deactivated) {
+        synchronized (localLocations) {
+            boolean changed = localLocations.keySet().removeAll(deactivated);
+            for (ServiceLocation location : activated) {
+                ServiceLocation previous = localLocations.remove(location);
+                localLocations.put(location, location);
+                changed |= previous == null || !previous.getMetadata().equals(location.getMetadata());
+            }
+            if (!changed || !publishing) {
+                return;
+            }
+
+            publishLocalLocations();
+            if (legacyServicesMap != null) {
+                legacyServicesMap.publish(backend.getLocalMember(), activated, deactivated);
+            }
+        }
+    }
+
+    /**
+     * Publishes the record of this member, with a new lease if leases are enabled.
+     * Must be called while holding the lock on localLocations.
+     */
+    private void publishLocalLocations() {
+        backend.publish(localLocations.values(), leaseDurationMillis);
+    }
+
+    /**
+     * Renews the lease on the locations of this member, see SpinoConfig.setLeaseAutoRenewal
+     */
+    void renewLease() {
+        leaseRenewer.renew();
+    }
+
     Collection<URL> getServiceAddresses(String service) {
         return routingTable.getServiceAddresses(service);
     }
 
+    Map<String, LocationMetadata> getServiceMetadata(String service) {
+        return routingTable.getSnapshot(service).getMetadataByAddress();
+    }
+
+    Map<String, Long> getServiceActivationTimes(String service) {
+        return routingTable.getSnapshot(service).getActivationTimesByAddress();
+    }
+
+    SpinoMetrics getMetrics() {
+        return metrics.snapshot(routingTable);
+    }
+
     /**
      * Add a service listener. The listener is invoked whenever locations are added or removed.
      * @param service
      * @param listener
      */
     void addServiceListener(String service, SpinoServiceListener listener) {
-        listeners.put(service, listener);
+        dispatcher.addServiceListener(service, listener);
+    }
+
+    /**
+     * Add a service listener that receives the locations added, removed or disabled by each change.
+     * @param service
+     * @param listener
+     */
+    void addServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        dispatcher.addServiceChangeListener(service, listener);
     }
 
     /**
@@ -164,89 +392,110 @@ final class SpinoHazelcastImpl implements RoutingTable.RoutingTableListener {
      * @param listener
      */
     void removeServiceListener(String service, SpinoServiceListener listener) {
-        listeners.remove(service, listener);
+        dispatcher.removeServiceListener(service, listener);
     }
 
-    private MultiMap<String, LocationBinding> getServicesMap() {
-        return hz.getMultiMap(SERVICES_MAP);
+    /**
+     * Remove a service change listener for a service
+     * @param service
+     * @param listener
+     */
+    void removeServiceChangeListener(String service, SpinoServiceChangeListener listener) {
+        dispatcher.removeServiceChangeListener(service, listener);
     }
 
-    private void syncServiceMap(Cluster cluster) {
-        Set<Member> onlineMembers = cluster.getMembers();
-        ArrayList<LocationBinding> initialBindings = new ArrayList<LocationBinding>();
-        for (LocationBinding binding : getServicesMap().values()) {
-            LOG.info("Importing existing endpoint from distributed map: {}", binding);
-            if (!onlineMembers.contains(binding.getMember())) {
-                LOG.info("Skipping endpoint import from distributed map, because its member is not online: {} ", binding);
+    private void syncServiceMap() {
+        Set<Member> onlineMembers = backend.getMembers();
+        for (MemberLocations memberLocations : backend.getRecords()) {
+            LOG.info("Importing existing endpoints from distributed map: {}", memberLocations);
+            if (!onlineMembers.contains(memberLocations.getMember())) {
+                LOG.info("Skipping endpoints import from distributed map, because their member is not online: {} ", memberLocations);
+                reaper.memberDeparted(memberLocations.getMember());
                 continue;
             }
-            routingTable.addLocation(binding);
+            // already active before this node joined
+            routingTable.updateMember(memberLocations.getMember(), memberLocations.getLocations(), 0);
         }
+        metrics.synced();
     }
 
-    @Override
-    public void onRoutingTableChange(Collection<String> services) {
-        for (String service : services) {
-            for(SpinoServiceListener listener : listeners.get(service)) {
-                try {
-                    listener.onServiceChange(service);
-                }
-                catch(Exception ex) {
-                    LOG.error("listener.OnServiceChange(" + service + ") threw an Exception. Listener: " + listener, ex);
-                }
+    /**
+     * A member that restarts at the same address is equal to its previous incarnation,
+     * and shares its entries in the routing table. Removing the record of the previous
+     * incarnation must not remove the locations of the current one.
+     */
+    private boolean isPreviousIncarnation(Member member) {
+        for (Member online : backend.getMembers()) {
+            if (online.equals(member) && !online.getUuid().equals(member.getUuid())) {
+                return true;
             }
         }
+        return false;
+    }
 
+    @Override
+    public void onRoutingTableChange(Collection<String> services) {
+        dispatcher.servicesChanged(services);
+        RoutingSnapshotFile snapshotFile = this.snapshotFile;
+        if (snapshotFile != null) {
+            snapshotFile.routingChanged();
+        }
     }
 
     /**
-     * Handles events for
-     *  - members added and removed to a cluster
-     *  - entries added/removed/updated to a multimap
+     * Applies the changes notified by the backend to the routing table
      */
-    private class HazelcastListener implements  MembershipListener, EntryListener<String, LocationBinding> {
-        private final Logger LOG = LoggerFactory.getLogger(HazelcastListener.class);
+    private class BackendListener implements SpinoBackend.Listener {
 
         @Override
-        public void entryAdded(EntryEvent<String, LocationBinding> event) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("entryAdded {}", event);
-            routingTable.addLocation(event.getValue());
+        public void memberAdded(Member member) {
+            metrics.membershipEvent();
+            routingTable.addMember(member);
         }
 
         @Override
-        public void entryRemoved(EntryEvent<String, LocationBinding> event) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("entryRemoved {}", event);
-            routingTable.removeLocation(event.getValue());
+        public void memberRemoved(Member member) {
+            metrics.membershipEvent();
+            routingTable.removeMember(member);
+            reaper.memberDeparted(member);
         }
 
         @Override
-        public void entryUpdated(EntryEvent<String, LocationBinding> event) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("entryUpdated {}", event);
-            routingTable.addLocation(event.getValue());
+        public void memberSuspected(Member member) {
+            metrics.membershipEvent();
+            routingTable.suspectMember(member);
         }
 
         @Override
-        public void entryEvicted(EntryEvent<String, LocationBinding> event) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("entryEvicted {}", event);
-            routingTable.removeLocation(event.getValue());
+        public void memberRecovered(Member member) {
+            metrics.membershipEvent();
+            routingTable.clearSuspicion(member);
         }
 
         @Override
-        public void memberAdded(MembershipEvent membershipEvent) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("memberAdded {}", membershipEvent);
-            routingTable.addMember(membershipEvent.getMember());
+        public void recordUpdated(MemberLocations record) {
+            metrics.entryEvent();
+            if (joined) {
+                routingTable.updateMember(record.getMember(), record.getLocations());
+            }
+            else {
+                // already active before this node joined, as in syncServiceMap
+                routingTable.updateMember(record.getMember(), record.getLocations(), 0);
+            }
+        }
+
+        @Override
+        public void recordRemoved(MemberLocations record) {
+            metrics.entryEvent();
+            if (isPreviousIncarnation(record.getMember())) {
+                return;
+            }
+            routingTable.updateMember(record.getMember(), Collections.<ServiceLocation>emptyList());
         }
 
         @Override
-        public void memberRemoved(MembershipEvent membershipEvent) {
-            if (LOG.isDebugEnabled())
-                LOG.debug("memberRemoved {}", membershipEvent);
-            routingTable.removeMember(membershipEvent.getMember());
+        public void synced() {
+            metrics.synced();
         }
     }
 
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import java.util.Map;
+
+/**
+ * A point-in-time view of what a Spino node is doing.
+ *
+ * Counters are cumulative since the node started: rates can be
+ * derived by sampling them periodically.
+ */
+public final class SpinoMetrics {
+
+    /**
+     * Summary of a latency distribution, in nanoseconds.
+     * Percentiles are approximate (within a factor of two).
+     */
+    public static final class Latency {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        Latency(long count, long mean, long p50, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return mean;
+        }
+
+        public long getP50Nanos() {
+            return p50;
+        }
+
+        public long getP99Nanos() {
+            return p99;
+        }
+
+        public long getMaxNanos() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Latency(count=%d, mean=%dns, p50=%dns, p99=%dns, max=%dns)", count, mean, p50, p99, max);
+        }
+    }
+
+    private final Map<String, Integer> locationCounts;
+    private final Map<String, Integer> disabledLocationCounts;
+    private final long entryEvents;
+    private final long membershipEvents;
+    private final Latency routingUpdates;
+    private final Latency listenerLag;
+    private final long listenerFailures;
+    private final long millisSinceLastSync;
+    private final long millisSinceLastEvent;
+
+    SpinoMetrics(Map<String, Integer> locationCounts, Map<String, Integer> disabledLocationCounts,
+                 long entryEvents, long membershipEvents,
+                 Latency routingUpdates, Latency listenerLag, long listenerFailures,
+                 long millisSinceLastSync, long millisSinceLastEvent) {
+        this.locationCounts = locationCounts;
+        this.disabledLocationCounts = disabledLocationCounts;
+        this.entryEvents = entryEvents;
+        this.membershipEvents = membershipEvents;
+        this.routingUpdates = routingUpdates;
+        this.listenerLag = listenerLag;
+        this.listenerFailures = listenerFailures;
+        this.millisSinceLastSync = millisSinceLastSync;
+        this.millisSinceLastEvent = millisSinceLastEvent;
+    }
+
+    /**
+     * @return number of available locations, by service
+     */
+    public Map<String, Integer> getLocationCounts() {
+        return locationCounts;
+    }
+
+    /**
+     * @return number of locations disabled because their member left, by service
+     */
+    public Map<String, Integer> getDisabledLocationCounts() {
+        return disabledLocationCounts;
+    }
+
+    /**
+     * @return number of location entry events received from the cluster
+     */
+    public long getEntryEvents() {
+        return entryEvents;
+    }
+
+    /**
+     * @return number of members added or removed events received from the cluster
+     */
+    public long getMembershipEvents() {
+        return membershipEvents;
+    }
+
+    /**
+     * @return time spent by the routing table applying each change
+     */
+    public Latency getRoutingUpdates() {
+        return routingUpdates;
+    }
+
+    /**
+     * @return time between a routing change and the notification of its listeners,
+     * including the notification window
+     */
+    public Latency getListenerLag() {
+        return listenerLag;
+    }
+
+    /**
+     * @return number of exceptions thrown by service listeners
+     */
+    public long getListenerFailures() {
+        return listenerFailures;
+    }
+
+    /**
+     * @return milliseconds since the routing table last received state from the cluster:
+     * the initial load, an event, or a resync with another node (gossip backend).
+     * -1 if it never did
+     */
+    public long getMillisSinceLastSync() {
+        return millisSinceLastSync;
+    }
+
+    /**
+     * @return milliseconds since the last event was received from the cluster,
+     * or -1 if none was
+     */
+    public long getMillisSinceLastEvent() {
+        return millisSinceLastEvent;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SpinoMetrics(locations=%s, disabled=%s, entryEvents=%d, membershipEvents=%d, " +
+                "routingUpdates=%s, listenerLag=%s, listenerFailures=%d, sinceLastSync=%dms, sinceLastEvent=%dms)",
+                locationCounts, disabledLocationCounts, entryEvents, membershipEvents,
+                routingUpdates, listenerLag, listenerFailures, millisSinceLastSync, millisSinceLastEvent);
+    }
+}
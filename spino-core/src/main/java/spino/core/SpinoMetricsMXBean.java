@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+import java.util.Map;
+
+/**
+ * JMX view of SpinoMetrics, registered as spino:type=Metrics.
+ * Latencies are in microseconds.
+ */
+public interface SpinoMetricsMXBean {
+
+    Map<String, Integer> getLocationCounts();
+
+    Map<String, Integer> getDisabledLocationCounts();
+
+    long getEntryEvents();
+
+    long getMembershipEvents();
+
+    long getRoutingUpdates();
+
+    long getRoutingUpdateMeanMicros();
+
+    long getRoutingUpdateP99Micros();
+
+    long getRoutingUpdateMaxMicros();
+
+    long getListenerNotifications();
+
+    long getListenerLagMeanMicros();
+
+    long getListenerLagP99Micros();
+
+    long getListenerLagMaxMicros();
+
+    long getListenerFailures();
+
+    long getMillisSinceLastSync();
+
+    long getMillisSinceLastEvent();
+}
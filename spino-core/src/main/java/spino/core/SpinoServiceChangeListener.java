@@ -0,0 +1,28 @@
+/**
+ * Copyright 2013 Matteo Caprari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package spino.core;
+
+/**
+ * A service listener that is told which locations changed,
+ * so that it can update its own state incrementally.
+ *
+ * Events are relative to the previous event for the same service, which a listener
+ * added later may not have seen: initialize from Spino.getLocations() and apply
+ * changes idempotently (adding a known location or removing an unknown one is a no-op).
+ */
+public interface SpinoServiceChangeListener {
+    void onServiceChange(ServiceChangeEvent event);
+}
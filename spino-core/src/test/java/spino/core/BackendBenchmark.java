@@ -0,0 +1,109 @@
+package spino.core;
+
+import com.hazelcast.core.Hazelcast;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Hazelcast and the gossip backends, with a few nodes running in this JVM:
+ *  - time for all nodes to see a location activated on one of them (convergence)
+ *  - CPU used by an idle cluster
+ *  - heap retained per node
+ *
+ * Run with: java -cp ... spino.core.BackendBenchmark [nodes] [rounds]
+ */
+public class BackendBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        run(SpinoConfig.Backend.GOSSIP, nodes, rounds);
+        run(SpinoConfig.Backend.HAZELCAST, nodes, rounds);
+        System.exit(0);
+    }
+
+    private static void run(SpinoConfig.Backend backend, int nodes, int rounds) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<SpinoHazelcastImpl> cluster = new ArrayList<SpinoHazelcastImpl>();
+        for (int i = 0; i < nodes; i++) {
+            SpinoHazelcastImpl node = new SpinoHazelcastImpl();
+            node.start(config(backend, i > 0));
+            cluster.add(node);
+        }
+        long startMillis = (System.nanoTime() - start) / 1000000;
+        // let joins and partition migrations settle
+        Thread.sleep(5000);
+        long heap = usedHeap() - heapBefore;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = cpuTime(threads);
+        long idleStart = System.nanoTime();
+        Thread.sleep(10000);
+        double cpu = (double) (cpuTime(threads) - cpuBefore) / (System.nanoTime() - idleStart);
+
+        long total = 0;
+        long max = 0;
+        for (int round = 0; round < rounds; round++) {
+            SpinoHazelcastImpl publisher = cluster.get(round % nodes);
+            String address = "http://10.0.0." + (round % nodes) + ":" + (8000 + round);
+            start = System.nanoTime();
+            publisher.activateServiceLocation("benchmark", address);
+            for (SpinoHazelcastImpl node : cluster) {
+                while (node.getServiceAddresses("benchmark").size() != round + 1) {
+                    Thread.yield();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            total += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        System.out.printf("%-9s %d nodes: %5d ms to start, convergence mean %6.2f ms max %6.2f ms, "
+                        + "idle CPU %5.1f%% of a core, %6d KB retained per node%n",
+                backend, nodes, startMillis, total / 1e6 / rounds, max / 1e6, cpu * 100, heap / nodes / 1024);
+
+        for (SpinoHazelcastImpl node : cluster) {
+            node.shutdown();
+        }
+        if (backend == SpinoConfig.Backend.HAZELCAST) {
+            Hazelcast.shutdownAll();
+        }
+        Thread.sleep(2000);
+    }
+
+    private static SpinoConfig config(SpinoConfig.Backend backend, boolean join) {
+        SpinoConfig config = new SpinoConfig().setBackend(backend).setJmxEnabled(false)
+                .setNotificationWindow(0, TimeUnit.MILLISECONDS);
+        if (backend == SpinoConfig.Backend.GOSSIP) {
+            config.setGossipHost("127.0.0.1");
+            return join ? config.setSeeds("127.0.0.1:5801") : config;
+        }
+        return config.setSeeds("127.0.0.1:5701");
+    }
+
+    private static long cpuTime(ThreadMXBean threads) {
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
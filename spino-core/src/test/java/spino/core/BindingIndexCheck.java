@@ -0,0 +1,100 @@
+package spino.core;
+
+import com.hazelcast.core.Member;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Checks that a CompactBindingIndex finds the same bindings as a HashBindingIndex:
+ * while it grows past several rehashes, once all the bindings but one per member are removed
+ * (so that lookups probe the table of members still known), and under random puts and removes.
+ *
+ * Run with: java -cp ... spino.core.BindingIndexCheck [bindings]
+ */
+public class BindingIndexCheck {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        List<Member> members = new ArrayList<Member>();
+        for (int m = 0; m < 10; m++) {
+            members.add(new MemberImpl(new Address("10.0.0." + (m + 1), 5701), false,
+                    NodeType.MEMBER, UUID.randomUUID().toString()));
+        }
+        List<LocationBinding> bindings = new ArrayList<LocationBinding>();
+        for (int i = 0; i < count; i++) {
+            ServiceLocation location = new ServiceLocation("service-" + (i % 100),
+                    new URL("http://host-" + i + ".example.com:8080/"));
+            bindings.add(new LocationBinding(location, members.get(i % members.size())));
+        }
+
+        BindingIndex compact = new CompactBindingIndex();
+        BindingIndex hash = new HashBindingIndex();
+
+        // keep the members known to the index, once the other bindings are removed
+        for (Member member : members) {
+            ServiceLocation location = new ServiceLocation("keeper", new URL("http://" + member.getUuid() + ":8080/"));
+            compact.put(new LocationBinding(location, member), true);
+        }
+
+        // grow past the first rehashes, checking everything after each put
+        for (int i = 0; i < bindings.size(); i++) {
+            compact.put(bindings.get(i), true);
+            hash.put(bindings.get(i), true);
+            if (i < 300) {
+                for (LocationBinding binding : bindings) {
+                    compare(compact, hash, binding);
+                }
+            }
+        }
+        for (LocationBinding binding : bindings) {
+            compare(compact, hash, binding);
+        }
+
+        // remove all the bindings: no entry must be left behind
+        for (LocationBinding binding : bindings) {
+            check(compact.remove(binding.getMember(), binding.getServiceInstance()), "removed " + binding);
+            hash.remove(binding.getMember(), binding.getServiceInstance());
+        }
+        for (LocationBinding binding : bindings) {
+            check(compact.get(binding.getMember(), binding.getServiceInstance()) == null, "left " + binding);
+            check(!compact.remove(binding.getMember(), binding.getServiceInstance()), "removed twice " + binding);
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < count * 10; i++) {
+            LocationBinding binding = bindings.get(random.nextInt(bindings.size()));
+            if (random.nextBoolean()) {
+                compact.put(binding, true);
+                hash.put(binding, true);
+            }
+            else {
+                check(compact.remove(binding.getMember(), binding.getServiceInstance())
+                        == hash.remove(binding.getMember(), binding.getServiceInstance()), "remove " + binding);
+            }
+        }
+        for (LocationBinding binding : bindings) {
+            compare(compact, hash, binding);
+        }
+        System.out.println("ok");
+    }
+
+    private static void compare(BindingIndex compact, BindingIndex hash, LocationBinding binding) {
+        LocationBinding expected = hash.get(binding.getMember(), binding.getServiceInstance());
+        LocationBinding actual = compact.get(binding.getMember(), binding.getServiceInstance());
+        check(expected == actual, "get " + binding + ": " + actual + " instead of " + expected);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
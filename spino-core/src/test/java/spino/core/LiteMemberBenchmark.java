@@ -0,0 +1,109 @@
+package spino.core;
+
+import com.hazelcast.client.ClientConfig;
+import com.hazelcast.client.HazelcastClient;
+import com.hazelcast.config.GroupConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares startup time and retained heap of nodes joining as full members
+ * with nodes joining as lite members, and with Hazelcast clients.
+ *
+ * A seed node is started and the locations map is filled with the records of
+ * (offline) members. Then a few Hazelcast clients connect to the seed and fetch all the records,
+ * as a client mode would have to: clients are not supported by Spino, see SpinoConfig.setLiteMember.
+ * Last, a few nodes join, first as full members and then as lite members.
+ *
+ * Run with: java -cp ... spino.core.LiteMemberBenchmark [records] [nodes]
+ */
+public class LiteMemberBenchmark {
+
+    private static final String SEED = "127.0.0.1:5701";
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int nodes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        SpinoHazelcastImpl seed = new SpinoHazelcastImpl();
+        seed.start(new SpinoConfig().setSeeds(SEED).setJmxEnabled(false));
+        HazelcastInstance seedInstance = Hazelcast.getAllHazelcastInstances().iterator().next();
+        fill(seedInstance, records);
+
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<Object> fetched = new ArrayList<Object>();
+        for (int i = 0; i < nodes; i++) {
+            ClientConfig clientConfig = new ClientConfig().addAddress(SEED)
+                    .setGroupConfig(new GroupConfig("SPINO", GroupConfig.DEFAULT_GROUP_PASSWORD));
+            HazelcastClient client = HazelcastClient.newHazelcastClient(clientConfig);
+            IMap<String, MemberLocations> map = client.getMap("spino-locations");
+            fetched.add(new ArrayList<MemberLocations>(map.values()));
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        long heap = usedHeap() - heapBefore;
+        System.out.printf("%-12s: %5d ms to start %d nodes, %6d KB retained per node%n",
+                "clients", millis, nodes, heap / nodes / 1024);
+        fetched = null;
+        HazelcastClient.shutdownAll();
+
+        for (boolean lite : new boolean[]{false, true}) {
+            heapBefore = usedHeap();
+            start = System.nanoTime();
+            for (int i = 0; i < nodes; i++) {
+                new SpinoHazelcastImpl().start(new SpinoConfig().setSeeds(SEED).setJmxEnabled(false).setLiteMember(lite));
+            }
+            millis = (System.nanoTime() - start) / 1000000;
+            // let partition migrations settle before measuring
+            Thread.sleep(5000);
+            heap = usedHeap() - heapBefore;
+
+            System.out.printf("%-12s: %5d ms to start %d nodes, %6d KB retained per node%n",
+                    lite ? "lite members" : "full members", millis, nodes, heap / nodes / 1024);
+
+            // one at a time, so that the backups of their partitions are not lost
+            for (HazelcastInstance instance : Hazelcast.getAllHazelcastInstances()) {
+                if (instance != seedInstance) {
+                    instance.getLifecycleService().shutdown();
+                    Thread.sleep(5000);
+                }
+            }
+            IMap<String, MemberLocations> map = seedInstance.getMap("spino-locations");
+            if (map.size() != records) {
+                throw new AssertionError("records lost: " + map.size() + " of " + records);
+            }
+        }
+        Hazelcast.shutdownAll();
+    }
+
+    private static void fill(HazelcastInstance hz, int records) throws Exception {
+        IMap<String, MemberLocations> map = hz.getMap("spino-locations");
+        for (int i = 0; i < records; i++) {
+            String uuid = UUID.randomUUID().toString();
+            MemberImpl member = new MemberImpl(new Address("10.0." + (i / 250) + "." + (i % 250), 5701), false, NodeType.MEMBER, uuid);
+            List<ServiceLocation> locations = new ArrayList<ServiceLocation>();
+            for (int j = 0; j < 10; j++) {
+                locations.add(new ServiceLocation("service-" + j, new URL("http://host-" + i + ".example.com:" + (8000 + j))));
+            }
+            map.put(uuid, new MemberLocations(member, locations));
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
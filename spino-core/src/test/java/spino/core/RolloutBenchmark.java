@@ -0,0 +1,98 @@
+package spino.core;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MultiMap;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Simulates the rollout of a service with 200 instances, each replaced by a new one,
+ * and counts the updates (and so the event fan-outs) handled by the partition owner of
+ * each cluster member, with the legacy spino-services layout and with the locations map.
+ *
+ * Run with: java -cp ... spino.core.RolloutBenchmark [instances] [members]
+ */
+public class RolloutBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int instances = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int members = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        Config config = new Config();
+        config.getGroupConfig().setName("spino-rollout-benchmark");
+        List<HazelcastInstance> cluster = new ArrayList<HazelcastInstance>();
+        for (int i = 0; i < members; i++) {
+            cluster.add(Hazelcast.newHazelcastInstance(config));
+        }
+        HazelcastInstance hz = cluster.get(0);
+
+        MultiMap<String, LocationBinding> servicesMap = hz.getMultiMap(LegacyServicesMap.SERVICES_MAP);
+        IMap<String, MemberLocations> locationsMap = hz.getMap("spino-locations");
+
+        Map<Member, Integer> legacyLoad = new HashMap<Member, Integer>();
+        Map<Member, Integer> locationsLoad = new HashMap<Member, Integer>();
+
+        long legacyNanos = 0;
+        long locationsNanos = 0;
+        for (int i = 0; i < instances; i++) {
+            ServiceLocation location = new ServiceLocation("service", new URL("http://host-" + i + ".example.com:8080"));
+            Member old = member(i, 0);
+            Member replacement = member(i, 1);
+
+            // legacy: one entry per location, all under the service name
+            long start = System.nanoTime();
+            servicesMap.put("service", new LocationBinding(location, old));
+            servicesMap.remove("service", new LocationBinding(location, old));
+            servicesMap.put("service", new LocationBinding(location, replacement));
+            legacyNanos += System.nanoTime() - start;
+            count(legacyLoad, hz, "service", 3);
+
+            // locations map: one record per member
+            start = System.nanoTime();
+            locationsMap.put(old.getUuid(), new MemberLocations(old, Collections.singletonList(location)));
+            locationsMap.remove(old.getUuid());
+            locationsMap.put(replacement.getUuid(), new MemberLocations(replacement, Collections.singletonList(location)));
+            locationsNanos += System.nanoTime() - start;
+            count(locationsLoad, hz, old.getUuid(), 2);
+            count(locationsLoad, hz, replacement.getUuid(), 1);
+        }
+
+        System.out.println(instances + " instances rolled, " + members + " cluster members");
+        report("spino-services", legacyLoad, legacyNanos, cluster);
+        report("spino-locations", locationsLoad, locationsNanos, cluster);
+
+        Hazelcast.shutdownAll();
+    }
+
+    private static Member member(int instance, int generation) throws Exception {
+        Address address = new Address("10.0." + (instance / 250) + "." + (instance % 250), 5701 + generation);
+        return new MemberImpl(address, false, NodeType.MEMBER, UUID.randomUUID().toString());
+    }
+
+    private static void count(Map<Member, Integer> load, HazelcastInstance hz, Object key, int updates) {
+        Member owner = hz.getPartitionService().getPartition(key).getOwner();
+        Integer current = load.get(owner);
+        load.put(owner, (current == null ? 0 : current) + updates);
+    }
+
+    private static void report(String layout, Map<Member, Integer> load, long nanos, List<HazelcastInstance> cluster) {
+        StringBuilder perMember = new StringBuilder();
+        int max = 0;
+        for (HazelcastInstance instance : cluster) {
+            Integer updates = load.get(instance.getCluster().getLocalMember());
+            int value = updates == null ? 0 : updates;
+            max = Math.max(max, value);
+            perMember.append(String.format("%5d", value));
+        }
+        System.out.printf("%-16s updates per owner: %s  (busiest owner %d), %6d ms%n",
+                layout, perMember, max, nanos / 1000000);
+    }
+}
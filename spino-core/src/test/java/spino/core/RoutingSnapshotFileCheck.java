@@ -0,0 +1,88 @@
+package spino.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that a corrupted routing snapshot fails to read with an IOException, and nothing else:
+ * the file truncated at every length, every bit flipped in turn, and string lengths
+ * that are negative or larger than the file.
+ *
+ * Run with: java -cp ... spino.core.RoutingSnapshotFileCheck
+ */
+public class RoutingSnapshotFileCheck {
+
+    // magic and version, then the number of services
+    private static final int FIRST_STRING_LENGTH = 4 + 1 + 4;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("spino-routing", ".snapshot");
+        file.deleteOnExit();
+        Map<String, List<ServiceLocation>> locations = new LinkedHashMap<String, List<ServiceLocation>>();
+        locations.put("database", Arrays.asList(
+                new ServiceLocation("database", new URL("http://db-0:8001"), new LocationMetadata("eu-west-1a", 2, "1.4.0")),
+                new ServiceLocation("database", new URL("http://db-1:8001"))));
+        locations.put("search", Arrays.asList(
+                new ServiceLocation("search", new URL("http://search-0:9200"), new LocationMetadata(null, 5, null))));
+        RoutingSnapshotFile.write(file, locations);
+        byte[] valid = Files.readAllBytes(file.toPath());
+        check(RoutingSnapshotFile.read(file).size() == 3, "valid snapshot not read back");
+
+        int corrupted = 0;
+        for (int length = 0; length < valid.length; length++) {
+            corrupted += readCorrupted(file, Arrays.copyOf(valid, length), "truncated at " + length);
+        }
+        for (int bit = 0; bit < valid.length * 8; bit++) {
+            byte[] flipped = valid.clone();
+            flipped[bit / 8] ^= 1 << (bit % 8);
+            corrupted += readCorrupted(file, flipped, "bit " + bit + " flipped");
+        }
+        for (int length : new int[] { -1, Integer.MIN_VALUE, valid.length, Integer.MAX_VALUE - 8 }) {
+            byte[] bytes = valid.clone();
+            bytes[FIRST_STRING_LENGTH] = (byte) (length >>> 24);
+            bytes[FIRST_STRING_LENGTH + 1] = (byte) (length >>> 16);
+            bytes[FIRST_STRING_LENGTH + 2] = (byte) (length >>> 8);
+            bytes[FIRST_STRING_LENGTH + 3] = (byte) length;
+            check(readCorrupted(file, bytes, "string length " + length) == 1, "string length " + length + " was read");
+        }
+        System.out.printf("%d corrupted files rejected, out of %d%n", corrupted, valid.length * 9 + 4);
+        System.out.println("ok");
+    }
+
+    /**
+     * @return 1 if the file was rejected, 0 if it was read (a flipped bit can leave it valid)
+     */
+    private static int readCorrupted(File file, byte[] bytes, String corruption) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes);
+        }
+        finally {
+            raf.close();
+        }
+        try {
+            RoutingSnapshotFile.read(file);
+            return 0;
+        }
+        catch (IOException ex) {
+            return 1;
+        }
+        catch (Throwable ex) {
+            throw new AssertionError(corruption + ": " + ex, ex);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package spino.core;
+
+import com.hazelcast.core.Member;
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Compares the memory and the latency of the default RoutingTable with the compact one,
+ * for a large registry. Both tables are fed the same changes, and must publish the same locations.
+ *
+ * Run with: java -cp ... -Dlogback.configurationFile=... spino.core.RoutingTableBenchmark [locations] [services] [members]
+ * (RoutingTable logs every change at INFO level: use a configuration that only logs warnings)
+ */
+public class RoutingTableBenchmark {
+
+    private static final int ITERATIONS = 2000;
+
+    private static volatile RoutingTable retainedTable;
+
+    public static void main(String[] args) throws Exception {
+        int locations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int services = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int members = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+        List<Member> memberList = new ArrayList<Member>();
+        Map<Member, List<ServiceLocation>> bound = new LinkedHashMap<Member, List<ServiceLocation>>();
+        for (int m = 0; m < members; m++) {
+            Member member = new MemberImpl(new Address("10.0." + (m / 250) + "." + (m % 250 + 1), 5701), false,
+                    NodeType.MEMBER, UUID.randomUUID().toString());
+            memberList.add(member);
+            bound.put(member, new ArrayList<ServiceLocation>());
+        }
+        for (int i = 0; i < locations; i++) {
+            Member member = memberList.get(i % members);
+            bound.get(member).add(location(i, services));
+        }
+
+        System.out.println(locations + " locations, " + services + " services, " + members + " members");
+        Map<String, List<URL>> hash = null;
+        Map<String, List<URL>> compact = null;
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            hash = run("hash", false, bound, services, print);
+            compact = run("compact", true, bound, services, print);
+        }
+        if (!hash.equals(compact)) {
+            throw new AssertionError("the tables publish different locations");
+        }
+        System.out.println("both tables publish the same locations");
+    }
+
+    private static ServiceLocation location(int i, int services) throws Exception {
+        return new ServiceLocation("service-" + (i % services),
+                new URL("http://host-" + (i / 250) + ".example.com:" + (8000 + i % 250) + "/" + i));
+    }
+
+    /**
+     * @return the locations published by the table at the end, enabled then disabled, by service
+     */
+    private static Map<String, List<URL>> run(String name, boolean compactTable, Map<Member, List<ServiceLocation>> bound,
+                                              int services, boolean print) throws Exception {
+        long retained = retained(compactTable, bound);
+
+        RoutingTable table = createTable(compactTable);
+        long start = System.nanoTime();
+        populate(table, bound);
+        long populate = System.nanoTime() - start;
+
+        List<Member> members = new ArrayList<Member>(bound.keySet());
+        Random random = new Random(42);
+
+        // a member replaces one of its locations
+        long[] updates = new long[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            Member member = members.get(random.nextInt(members.size()));
+            List<ServiceLocation> current = new ArrayList<ServiceLocation>(bound.get(member));
+            current.set(random.nextInt(current.size()), location(random.nextInt(1000000), services));
+            start = System.nanoTime();
+            table.updateMember(member, current);
+            updates[i] = System.nanoTime() - start;
+            // and back
+            table.updateMember(member, bound.get(member));
+        }
+
+        // members leave and come back
+        long[] memberChanges = new long[ITERATIONS / 10];
+        for (int i = 0; i < memberChanges.length; i++) {
+            Member member = members.get(random.nextInt(members.size()));
+            start = System.nanoTime();
+            table.removeMember(member);
+            table.addMember(member);
+            memberChanges[i] = System.nanoTime() - start;
+        }
+
+        String[] names = new String[services];
+        for (int s = 0; s < services; s++) {
+            names[s] = "service-" + s;
+        }
+        int lookups = ITERATIONS * 100;
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            found += table.getServiceAddresses(names[i % services]).size();
+        }
+        long lookup = System.nanoTime() - start;
+
+        Map<String, List<URL>> published = new HashMap<String, List<URL>>();
+        for (int s = 0; s < services; s++) {
+            ServiceSnapshot snapshot = table.getSnapshot(names[s]);
+            List<URL> urls = new ArrayList<URL>(snapshot.getAddresses());
+            urls.addAll(snapshot.getDisabled().values());
+            published.put(names[s], urls);
+        }
+
+        if (print && found > 0) {
+            System.out.printf("%-8s retained %6.1f MB, populate %6d ms, updateMember p50 %7.1f us p99 %7.1f us, "
+                    + "remove+add member p50 %7.1f us, getServiceAddresses %5.0f ns%n", name,
+                    retained / 1048576.0, populate / 1000000, percentile(updates, 50) / 1000.0,
+                    percentile(updates, 99) / 1000.0, percentile(memberChanges, 50) / 1000.0,
+                    (double) lookup / lookups);
+        }
+        return published;
+    }
+
+    private static RoutingTable createTable(boolean compactTable) {
+        RoutingTable table = new RoutingTable(new RoutingTable.RoutingTableListener() {
+            @Override
+            public void onRoutingTableChange(Collection<String> services) {
+            }
+        }, new Metrics());
+        table.setCompact(compactTable);
+        return table;
+    }
+
+    private static void populate(RoutingTable table, Map<Member, List<ServiceLocation>> bound) {
+        for (Map.Entry<Member, List<ServiceLocation>> entry : bound.entrySet()) {
+            table.updateMember(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return the heap taken by a populated table
+     */
+    private static long retained(boolean compactTable, Map<Member, List<ServiceLocation>> bound) throws InterruptedException {
+        long before = usedMemory();
+        // a static field keeps the table reachable while measuring
+        retainedTable = createTable(compactTable);
+        populate(retainedTable, bound);
+        long after = usedMemory();
+        retainedTable = null;
+        return after - before;
+    }
+
+    private static long percentile(long[] values, int percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,91 @@
+package spino.core;
+
+import com.hazelcast.impl.MemberImpl;
+import com.hazelcast.impl.NodeType;
+import com.hazelcast.nio.Address;
+import com.hazelcast.nio.Data;
+import com.hazelcast.nio.IOUtil;
+
+import java.io.*;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Compares the size and encode/decode speed of the compact MemberLocations format
+ * with java serialization of the same value.
+ *
+ * Run with: java -cp ... spino.core.WireFormatBenchmark [locations per member]
+ */
+public class WireFormatBenchmark {
+
+    private static final int ITERATIONS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+
+        MemberImpl member = new MemberImpl(new Address("10.0.0.1", 5701), false, NodeType.MEMBER, UUID.randomUUID().toString());
+        List<ServiceLocation> locations = new ArrayList<ServiceLocation>();
+        for (int i = 0; i < size; i++) {
+            locations.add(new ServiceLocation("service-" + i, new URL("http://host-" + i + ".example.com:" + (8000 + i))));
+        }
+        MemberLocations value = new MemberLocations(member, locations);
+
+        int javaBytes = javaSerialize(value).length;
+        int compactBytes = IOUtil.toData(value).size();
+
+        System.out.println(size + " locations per member");
+        System.out.printf("java serialization: %6d bytes, %6.1f bytes per binding%n", javaBytes, (double) javaBytes / size);
+        System.out.printf("compact:            %6d bytes, %6.1f bytes per binding%n", compactBytes, (double) compactBytes / size);
+
+        // warm up, then measure
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+
+            long encode = 0;
+            long decode = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                byte[] bytes = javaSerialize(value);
+                long encoded = System.nanoTime();
+                javaDeserialize(bytes);
+                decode += System.nanoTime() - encoded;
+                encode += encoded - start;
+            }
+            report("java serialization", encode, decode, size, print);
+
+            encode = 0;
+            decode = 0;
+            for (int i = 0; i < ITERATIONS; i++) {
+                long start = System.nanoTime();
+                Data data = IOUtil.toData(value);
+                long encoded = System.nanoTime();
+                IOUtil.toObject(data);
+                decode += System.nanoTime() - encoded;
+                encode += encoded - start;
+            }
+            report("compact", encode, decode, size, print);
+        }
+    }
+
+    private static byte[] javaSerialize(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(value);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+    }
+
+    private static void report(String name, long encodeNanos, long decodeNanos, int size, boolean print) {
+        if (print) {
+            long bindings = (long) ITERATIONS * size;
+            System.out.printf("%-20s encode %8.0f bindings/ms, decode %8.0f bindings/ms%n", name,
+                    bindings * 1e6 / encodeNanos, bindings * 1e6 / decodeNanos);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package spino;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The circuit of a host, see CircuitBreaker.
+ *
+ * The state is immutable, and replaced with compare-and-set: transitions never take a lock,
+ * and a closed circuit lets requests through with a single volatile read.
+ */
+final class Circuit {
+
+    private final AtomicReference<Snapshot> state =
+            new AtomicReference<Snapshot>(new Snapshot(CircuitBreaker.State.CLOSED, 0, 0, 0, 0));
+
+    CircuitBreaker.State getState() {
+        return state.get().state;
+    }
+
+    /**
+     * Let a request through if the circuit is closed. An open circuit turns half-open
+     * when its timeout is over, and then lets a limited number of probes through.
+     * @return true if the request can be sent
+     */
+    boolean allowRequest(CircuitBreaker breaker, long now) {
+        while (true) {
+            Snapshot current = state.get();
+            Snapshot updated;
+            switch (current.state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (now - current.since < breaker.getOpenTimeoutNanos()) {
+                        return false;
+                    }
+                    updated = new Snapshot(CircuitBreaker.State.HALF_OPEN, 0, now, 1, now);
+                    break;
+                default:
+                    if (current.probes < breaker.getHalfOpenProbes()) {
+                        updated = new Snapshot(CircuitBreaker.State.HALF_OPEN, current.successes, current.since,
+                                current.probes + 1, now);
+                    }
+                    else if (now - current.lastProbe >= breaker.getOpenTimeoutNanos()) {
+                        // the probes never completed, for example because the caller never sent them
+                        updated = new Snapshot(CircuitBreaker.State.HALF_OPEN, current.successes, current.since,
+                                current.probes, now);
+                    }
+                    else {
+                        return false;
+                    }
+            }
+            if (state.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+
+    void onSuccess(CircuitBreaker breaker) {
+        while (true) {
+            Snapshot current = state.get();
+            Snapshot updated;
+            if (current.state == CircuitBreaker.State.CLOSED && current.failures > 0) {
+                updated = new Snapshot(CircuitBreaker.State.CLOSED, 0, current.since, 0, 0);
+            }
+            else if (current.state == CircuitBreaker.State.HALF_OPEN) {
+                updated = current.successes + 1 >= breaker.getHalfOpenProbes()
+                        ? new Snapshot(CircuitBreaker.State.CLOSED, 0, current.since, 0, 0)
+                        : new Snapshot(CircuitBreaker.State.HALF_OPEN, current.successes + 1, current.since,
+                                current.probes, current.lastProbe);
+            }
+            else {
+                // closed without failures, or open: the request started before the circuit opened
+                return;
+            }
+            if (state.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A request was cancelled: neither a success nor a failure. While half-open, it may have
+     * been a probe: another one can be let through.
+     */
+    void onCancelled() {
+        while (true) {
+            Snapshot current = state.get();
+            if (current.state != CircuitBreaker.State.HALF_OPEN || current.probes <= current.successes) {
+                return;
+            }
+            Snapshot updated = new Snapshot(CircuitBreaker.State.HALF_OPEN, current.successes, current.since,
+                    current.probes - 1, current.lastProbe);
+            if (state.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if this failure opened the circuit
+     */
+    boolean onFailure(CircuitBreaker breaker, long now) {
+        while (true) {
+            Snapshot current = state.get();
+            Snapshot updated;
+            if (current.state == CircuitBreaker.State.CLOSED) {
+                updated = current.failures + 1 >= breaker.getFailureThreshold()
+                        ? new Snapshot(CircuitBreaker.State.OPEN, 0, now, 0, 0)
+                        : new Snapshot(CircuitBreaker.State.CLOSED, current.failures + 1, current.since, 0, 0);
+            }
+            else if (current.state == CircuitBreaker.State.HALF_OPEN) {
+                // a probe failed
+                updated = new Snapshot(CircuitBreaker.State.OPEN, 0, now, 0, 0);
+            }
+            else {
+                return false;
+            }
+            if (state.compareAndSet(current, updated)) {
+                return updated.state == CircuitBreaker.State.OPEN;
+            }
+        }
+    }
+
+    private static final class Snapshot {
+        private final CircuitBreaker.State state;
+        // consecutive failures while closed, successful probes while half-open
+        private final int failures;
+        private final int successes;
+        // when the circuit opened
+        private final long since;
+        // probes let through while half-open, and when the last one was
+        private final int probes;
+        private final long lastProbe;
+
+        private Snapshot(CircuitBreaker.State state, int count, long since, int probes, long lastProbe) {
+            this.state = state;
+            this.failures = state == CircuitBreaker.State.CLOSED ? count : 0;
+            this.successes = state == CircuitBreaker.State.HALF_OPEN ? count : 0;
+            this.since = since;
+            this.probes = probes;
+            this.lastProbe = lastProbe;
+        }
+    }
+}
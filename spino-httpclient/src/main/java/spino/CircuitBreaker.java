@@ -0,0 +1,182 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to hosts that keep failing, without waiting for Spino to deactivate them.
+ *
+ * Each host has a circuit. A closed circuit lets all requests through; after failureThreshold
+ * consecutive failures it opens, and SpinoHttpHostProvider skips the host. When the open timeout
+ * is over, the circuit turns half-open and lets halfOpenProbes requests through: if they all
+ * succeed the circuit closes, if one fails it opens again. Cancelled requests, such as the losers
+ * of hedged requests, are neither successes nor failures. If the circuits of all hosts are open,
+ * iterations are empty, and requests fail at once.
+ *
+ * The breaker learns about requests as a HostRequestListener, for example from a HostRequestTracker:
+ *
+ * <pre>
+ * CircuitBreaker breaker = new CircuitBreaker().setFailureThreshold(5).setOpenTimeout(10, TimeUnit.SECONDS);
+ * Iterable&lt;HttpHost&gt; provider = SpinoHttpHostProvider.ofService("my-service",
+ *     new HostProviderConfig().setCircuitBreaker(breaker));
+ * HttpClient client = new HostRequestTracker(breaker).install(httpClient);
+ * </pre>
+ */
+public class CircuitBreaker implements HostRequestListener {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private int failureThreshold = 5;
+    private long openTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+    private int halfOpenProbes = 1;
+
+    private final ConcurrentHashMap<HttpHost, Circuit> circuits = new ConcurrentHashMap<HttpHost, Circuit>();
+
+    private final AtomicLong trips = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Open the circuit of a host after this many consecutive failures. Defaults to 5.
+     * @param failureThreshold
+     * @return this breaker
+     */
+    public CircuitBreaker setFailureThreshold(int failureThreshold) {
+        if (failureThreshold <= 0) {
+            throw new IllegalArgumentException("failure threshold must be positive: " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        return this;
+    }
+
+    /**
+     * How long a circuit stays open, before probing the host again. Defaults to 10 seconds.
+     * @param timeout
+     * @param unit
+     * @return this breaker
+     */
+    public CircuitBreaker setOpenTimeout(long timeout, TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("open timeout must be positive: " + timeout);
+        }
+        this.openTimeoutNanos = unit.toNanos(timeout);
+        return this;
+    }
+
+    /**
+     * Requests let through by a half-open circuit, that must all succeed to close it. Defaults to 1.
+     * @param halfOpenProbes
+     * @return this breaker
+     */
+    public CircuitBreaker setHalfOpenProbes(int halfOpenProbes) {
+        if (halfOpenProbes <= 0) {
+            throw new IllegalArgumentException("half-open probes must be positive: " + halfOpenProbes);
+        }
+        this.halfOpenProbes = halfOpenProbes;
+        return this;
+    }
+
+    int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    long getOpenTimeoutNanos() {
+        return openTimeoutNanos;
+    }
+
+    int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    /**
+     * @return true if a request can be sent to this host now. While the circuit is half-open,
+     * this takes one of the probes
+     */
+    public boolean allowRequest(HttpHost host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null || circuit.allowRequest(this, System.nanoTime())) {
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    @Override
+    public void requestStarted(HttpHost host) {
+    }
+
+    @Override
+    public void requestCompleted(HttpHost host, long latencyNanos, boolean failed) {
+        if (failed) {
+            if (circuitOf(host).onFailure(this, System.nanoTime())) {
+                trips.incrementAndGet();
+            }
+        }
+        else {
+            Circuit circuit = circuits.get(host);
+            if (circuit != null) {
+                circuit.onSuccess(this);
+            }
+        }
+    }
+
+    @Override
+    public void requestCancelled(HttpHost host, long elapsedNanos) {
+        // says nothing about the host: a cancelled probe lets another one through
+        Circuit circuit = circuits.get(host);
+        if (circuit != null) {
+            circuit.onCancelled();
+        }
+    }
+
+    private Circuit circuitOf(HttpHost host) {
+        Circuit circuit = circuits.get(host);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(host, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    public State getState(HttpHost host) {
+        Circuit circuit = circuits.get(host);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * @return hosts whose circuit is open or half-open
+     */
+    public Set<HttpHost> getOpenHosts() {
+        Set<HttpHost> open = new HashSet<HttpHost>();
+        for (Map.Entry<HttpHost, Circuit> entry : circuits.entrySet()) {
+            if (entry.getValue().getState() != State.CLOSED) {
+                open.add(entry.getKey());
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return how many times a circuit opened
+     */
+    public long getTrips() {
+        return trips.get();
+    }
+
+    /**
+     * @return requests that skipped a host because its circuit was open
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
@@ -0,0 +1,49 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Skips the hosts whose circuit is open.
+ * Hosts are checked lazily, one at a time, so that a half-open circuit only gives
+ * a probe to an iteration that is about to use its host.
+ */
+final class CircuitBreakerIterator implements Iterator<HttpHost> {
+
+    private final Iterator<HttpHost> hosts;
+    private final CircuitBreaker breaker;
+    private HttpHost next;
+
+    CircuitBreakerIterator(Iterator<HttpHost> hosts, CircuitBreaker breaker) {
+        this.hosts = hosts;
+        this.breaker = breaker;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && hosts.hasNext()) {
+            HttpHost candidate = hosts.next();
+            if (breaker.allowRequest(candidate)) {
+                next = candidate;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public HttpHost next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        HttpHost host = next;
+        next = null;
+        return host;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("hosts snapshots are immutable");
+    }
+}
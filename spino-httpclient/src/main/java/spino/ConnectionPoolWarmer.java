@@ -0,0 +1,331 @@
+package spino;
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.message.BasicHttpRequest;
+import spino.core.ServiceChangeEvent;
+import spino.core.Spino;
+import spino.core.SpinoServiceChangeListener;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps pooled connections open to the hosts of some services, so that requests do not pay
+ * for connection setup, and closes them as soon as a host is no longer available.
+ *
+ * When a location of a service becomes available, connectionsPerHost connections are opened
+ * to its host and returned to the pool of the client. When the location is removed or
+ * disabled (its member left the cluster, or it failed health checks), the idle connections
+ * to its host are closed. Every refresh interval, connections that were closed
+ * by the server are opened again.
+ *
+ * The warmer works on the connection manager of the client, that must be pooling
+ * (such as PoolingHttpClientConnectionManager) and allow at least connectionsPerHost
+ * connections per route:
+ *
+ * <pre>
+ * PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+ * pool.setDefaultMaxPerRoute(10);
+ * CloseableHttpClient httpClient = HttpClients.custom().setConnectionManager(pool).build();
+ * ConnectionPoolWarmer warmer = new ConnectionPoolWarmer(pool, 4);
+ * warmer.addService("my-service");
+ * </pre>
+ *
+ * Connections are warmed on the routes of the default route planner, straight to the host:
+ * pass the route planner of the client if it uses a proxy.
+ *
+ * Connections are opened and closed on the warmer threads, never on the Spino listener thread.
+ * Connections in use by a request are left alone.
+ */
+public class ConnectionPoolWarmer {
+
+    private static final long DEFAULT_REFRESH_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    // how long to wait for a pooled connection, before giving up on warming or closing it
+    private static final long LEASE_TIMEOUT_MILLIS = 100;
+
+    // bounds the connections closed for a host at once
+    private static final int MAX_CLOSED_PER_HOST = 1000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final HttpClientConnectionManager connectionManager;
+
+    private final HttpRoutePlanner routePlanner;
+
+    private final int connectionsPerHost;
+
+    private final ScheduledExecutorService executor;
+
+    // service -> available hosts, guarded by this, as the following map
+    private final Map<String, Set<HttpHost>> hostsByService = new HashMap<String, Set<HttpHost>>();
+
+    private final Map<String, SpinoServiceChangeListener> listeners = new HashMap<String, SpinoServiceChangeListener>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    public ConnectionPoolWarmer(HttpClientConnectionManager connectionManager, int connectionsPerHost) {
+        this(connectionManager, new DefaultRoutePlanner(null), connectionsPerHost,
+                DEFAULT_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param connectionManager - the connection manager of the client, whose pool is warmed
+     * @param routePlanner - the route planner of the client
+     * @param connectionsPerHost - connections to keep open to each host
+     * @param refreshInterval - how often to open again connections closed by the server, zero to never do it
+     * @param unit
+     */
+    public ConnectionPoolWarmer(HttpClientConnectionManager connectionManager, HttpRoutePlanner routePlanner,
+                                int connectionsPerHost, long refreshInterval, TimeUnit unit) {
+        if (connectionsPerHost <= 0) {
+            throw new IllegalArgumentException("connections per host must be positive: " + connectionsPerHost);
+        }
+        this.connectionManager = connectionManager;
+        this.routePlanner = routePlanner;
+        this.connectionsPerHost = connectionsPerHost;
+        this.executor = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "spino-connection-warmer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (refreshInterval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (HttpHost host : allHosts()) {
+                        warm(host);
+                    }
+                }
+            }, refreshInterval, refreshInterval, unit);
+        }
+    }
+
+    /**
+     * Keep connections open to the hosts of a service.
+     * @param service - the service name
+     */
+    public void addService(final String service) {
+        SpinoServiceChangeListener listener = new SpinoServiceChangeListener() {
+            @Override
+            public void onServiceChange(ServiceChangeEvent event) {
+                updateHosts(service, event.getLocations());
+            }
+        };
+        synchronized (this) {
+            if (listeners.containsKey(service)) {
+                return;
+            }
+            listeners.put(service, listener);
+            hostsByService.put(service, Collections.<HttpHost>emptySet());
+        }
+        Spino.addServiceChangeListener(service, listener);
+        updateHosts(service, Spino.getLocations(service));
+    }
+
+    /**
+     * Stop following a service, and close the idle connections to its hosts.
+     * @param service - the service name
+     */
+    public void removeService(String service) {
+        SpinoServiceChangeListener listener;
+        synchronized (this) {
+            listener = listeners.remove(service);
+        }
+        if (listener != null) {
+            Spino.removeServiceChangeListener(service, listener);
+            updateHosts(service, Collections.<URL>emptyList());
+            synchronized (this) {
+                hostsByService.remove(service);
+            }
+        }
+    }
+
+    /**
+     * Stop warming connections. Connections already in the pool are left open.
+     */
+    public void shutdown() {
+        Map<String, SpinoServiceChangeListener> removed;
+        synchronized (this) {
+            removed = new HashMap<String, SpinoServiceChangeListener>(listeners);
+            listeners.clear();
+        }
+        for (Map.Entry<String, SpinoServiceChangeListener> entry : removed.entrySet()) {
+            Spino.removeServiceChangeListener(entry.getKey(), entry.getValue());
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return connections opened in advance so far
+     */
+    public long getOpenedConnections() {
+        return opened.get();
+    }
+
+    /**
+     * @return idle connections closed so far, because their host was no longer available
+     */
+    public long getClosedConnections() {
+        return closed.get();
+    }
+
+    private void updateHosts(String service, Collection<URL> locations) {
+        Set<HttpHost> hosts = new HashSet<HttpHost>();
+        for (URL location : locations) {
+            hosts.add(new HttpHost(location.getHost(), location.getPort(), location.getProtocol()));
+        }
+        final Set<HttpHost> added = new HashSet<HttpHost>();
+        final Set<HttpHost> removed = new HashSet<HttpHost>();
+        synchronized (this) {
+            Set<HttpHost> previous = hostsByService.get(service);
+            if (previous == null) {
+                return;
+            }
+            Set<HttpHost> before = allHosts();
+            hostsByService.put(service, hosts);
+            Set<HttpHost> after = allHosts();
+            // several services can share a host
+            for (HttpHost host : after) {
+                if (!before.contains(host)) {
+                    added.add(host);
+                }
+            }
+            for (HttpHost host : before) {
+                if (!after.contains(host)) {
+                    removed.add(host);
+                }
+            }
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (HttpHost host : removed) {
+                    close(host);
+                }
+                for (HttpHost host : added) {
+                    warm(host);
+                }
+            }
+        });
+    }
+
+    private synchronized Set<HttpHost> allHosts() {
+        Set<HttpHost> hosts = new HashSet<HttpHost>();
+        for (Set<HttpHost> serviceHosts : hostsByService.values()) {
+            hosts.addAll(serviceHosts);
+        }
+        return hosts;
+    }
+
+    /**
+     * The route the client would use for requests to a host
+     */
+    private HttpRoute routeTo(HttpHost host) throws HttpException {
+        return routePlanner.determineRoute(host, new BasicHttpRequest("HEAD", "/"), HttpClientContext.create());
+    }
+
+    /**
+     * Open connections to a host, until connectionsPerHost are open.
+     * All the connections are leased at once, so that the pool hands out different ones.
+     */
+    private void warm(HttpHost host) {
+        List<HttpClientConnection> leased = new ArrayList<HttpClientConnection>();
+        try {
+            HttpRoute route = routeTo(host);
+            for (int i = 0; i < connectionsPerHost; i++) {
+                leased.add(connectionManager.requestConnection(route, null)
+                        .get(LEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            }
+            for (HttpClientConnection connection : leased) {
+                if (connection.isOpen() && connection.isStale()) {
+                    // closed by the server
+                    shutdownQuietly(connection);
+                }
+                if (!connection.isOpen()) {
+                    HttpClientContext context = HttpClientContext.create();
+                    connectionManager.connect(connection, route, CONNECT_TIMEOUT_MILLIS, context);
+                    // the pool only keeps connections whose route is complete
+                    connectionManager.routeComplete(connection, route, context);
+                    opened.incrementAndGet();
+                }
+            }
+        }
+        catch (ConnectionPoolTimeoutException ex) {
+            // the pool is busy with requests to this host, or allows fewer connections: keep the ones we got
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception ex) {
+            // the host is not reachable: requests will find out
+        }
+        finally {
+            for (HttpClientConnection connection : leased) {
+                connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Close the idle connections to a host: lease them one at a time and shut them down,
+     * until the pool hands out a connection that is not open.
+     */
+    private void close(HttpHost host) {
+        try {
+            HttpRoute route = routeTo(host);
+            for (int i = 0; i < MAX_CLOSED_PER_HOST; i++) {
+                HttpClientConnection connection = connectionManager.requestConnection(route, null)
+                        .get(LEASE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                boolean open = connection.isOpen();
+                if (open) {
+                    shutdownQuietly(connection);
+                    closed.incrementAndGet();
+                }
+                connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+                if (!open) {
+                    return;
+                }
+            }
+        }
+        catch (ConnectionPoolTimeoutException ex) {
+            // all other connections are in use by requests
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception ex) {
+            // nothing else to close
+        }
+    }
+
+    private static void shutdownQuietly(HttpClientConnection connection) {
+        try {
+            connection.shutdown();
+        }
+        catch (IOException ex) {
+            // closed anyway
+        }
+    }
+}
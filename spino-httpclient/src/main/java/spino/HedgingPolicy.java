@@ -0,0 +1,204 @@
+package spino;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * When SpinoHttpAsyncClient sends a duplicate of a slow request to another host, see SpinoHttpAsyncClient.execute.
+ *
+ * If a request has no response after the hedging delay, a copy is sent to the next host,
+ * the first response wins and the other request is cancelled. Only idempotent requests are hedged.
+ *
+ * The delay is fixed, or a percentile of the latency of recent requests: with the 95th
+ * percentile, about one request in twenty is hedged. The fixed delay is used until
+ * enough requests have been measured.
+ *
+ * A request is measured from its start to the first response, whichever host sent it.
+ * An attempt cancelled because another one won is measured too, as censored: it would have
+ * taken longer than it ran, without saying how long. The percentile is estimated from both
+ * (Kaplan-Meier), so that the slow requests that hedging cuts short still count as slow,
+ * and the delay does not drift down as more requests are hedged.
+ *
+ * Hedging adds load to the service: the budget caps hedged requests at a fraction
+ * of all requests, allowing short bursts of BUDGET_BURST hedges.
+ *
+ * A policy keeps the latency and the budget of the requests it is used for:
+ * use one policy per service.
+ */
+public class HedgingPolicy {
+
+    // latencies of the most recent requests, shifted left by one bit, the low bit set if censored
+    private static final int SAMPLES = 1024;
+    // the percentile is computed every this many samples, the first time after as many
+    private static final int RECOMPUTE_EVERY = 128;
+
+    private static final int BUDGET_BURST = 10;
+    // the budget is counted in thousandths of a request
+    private static final long BUDGET_SCALE = 1000;
+
+    private long delayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private double percentile = 0;
+    private long budgetPerRequest = 50;
+
+    private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+    private final AtomicLong sampleCount = new AtomicLong();
+    private volatile long percentileNanos = 0;
+
+    private final AtomicLong budget = new AtomicLong(BUDGET_BURST * BUDGET_SCALE);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+
+    /**
+     * Hedge requests that have no response after this delay, or until enough requests
+     * have been measured to use a percentile. Defaults to 100 milliseconds.
+     * @param delay
+     * @param unit
+     * @return this policy
+     */
+    public HedgingPolicy setDelay(long delay, TimeUnit unit) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("hedging delay must not be negative: " + delay);
+        }
+        this.delayNanos = unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * Hedge requests that take longer than this percentile of recent requests.
+     * Disabled by default.
+     * @param percentile - for example 95, or zero to use the fixed delay
+     * @return this policy
+     */
+    public HedgingPolicy setPercentile(double percentile) {
+        if (percentile < 0 || percentile >= 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100: " + percentile);
+        }
+        this.percentile = percentile;
+        return this;
+    }
+
+    /**
+     * Hedge at most this fraction of requests. Defaults to 0.05 (5%).
+     * @param fraction
+     * @return this policy
+     */
+    public HedgingPolicy setBudget(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("budget must be between 0 and 1: " + fraction);
+        }
+        this.budgetPerRequest = Math.round(fraction * BUDGET_SCALE);
+        return this;
+    }
+
+    /**
+     * @return the current hedging delay
+     */
+    public long getDelayMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(delayNanos());
+    }
+
+    /**
+     * @return requests sent using this policy
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return duplicate requests sent
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    long delayNanos() {
+        long current = percentileNanos;
+        return current > 0 ? current : delayNanos;
+    }
+
+    /**
+     * A request is starting: it earns its share of the budget.
+     */
+    void requestStarted() {
+        requests.incrementAndGet();
+        long max = BUDGET_BURST * BUDGET_SCALE;
+        while (true) {
+            long current = budget.get();
+            long next = Math.min(max, current + budgetPerRequest);
+            if (current == next || budget.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the budget allows to hedge a request, which is then charged to the budget
+     */
+    boolean tryHedge() {
+        while (true) {
+            long current = budget.get();
+            if (current < BUDGET_SCALE) {
+                return false;
+            }
+            if (budget.compareAndSet(current, current - BUDGET_SCALE)) {
+                hedges.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A request received a response after this long.
+     */
+    void record(long latencyNanos) {
+        sample(Math.max(0, latencyNanos) << 1);
+    }
+
+    /**
+     * An attempt was cancelled after this long, without a response: it would have taken longer.
+     */
+    void recordCensored(long elapsedNanos) {
+        sample(Math.max(0, elapsedNanos) << 1 | 1);
+    }
+
+    private void sample(long sample) {
+        if (percentile == 0) {
+            return;
+        }
+        long count = sampleCount.getAndIncrement();
+        samples.set((int) (count % SAMPLES), sample);
+        if ((count + 1) % RECOMPUTE_EVERY == 0) {
+            int size = (int) Math.min(count + 1, SAMPLES);
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = samples.get(i);
+            }
+            // at equal latency, responses sort before censored samples
+            Arrays.sort(sorted);
+            percentileNanos = Math.max(1, percentile(sorted, percentile));
+        }
+    }
+
+    /**
+     * The Kaplan-Meier estimate of a percentile: each response lowers the fraction of requests
+     * still waiting by its share of the requests that lasted at least as long.
+     * @param sorted - samples in ascending order
+     * @return the latency at the percentile, or the longest sample if too many are censored to tell
+     */
+    static long percentile(long[] sorted, double percentile) {
+        double waiting = 1;
+        int atRisk = sorted.length;
+        for (long sample : sorted) {
+            if ((sample & 1) == 0) {
+                waiting *= 1 - 1.0 / atRisk;
+                if (1 - waiting >= percentile / 100 - 1e-9) {
+                    return sample >>> 1;
+                }
+            }
+            atRisk--;
+        }
+        return sorted[sorted.length - 1] >>> 1;
+    }
+}
@@ -0,0 +1,41 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over a hosts snapshot starting from a given index, wrapping around.
+ * Reads the shared snapshot array in place, without copying it.
+ */
+final class HostIterator implements Iterator<HttpHost> {
+
+    private final HttpHost[] hosts;
+    private final int start;
+    private int position = 0;
+
+    HostIterator(HttpHost[] hosts, int start) {
+        this.hosts = hosts;
+        this.start = start;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return position < hosts.length;
+    }
+
+    @Override
+    public HttpHost next() {
+        if (position >= hosts.length) {
+            throw new NoSuchElementException();
+        }
+        int index = start + position++;
+        return hosts[index < hosts.length ? index : index - hosts.length];
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("hosts snapshots are immutable");
+    }
+}
@@ -0,0 +1,95 @@
+package spino;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Configuration for a SpinoHttpHostProvider.
+ *
+ * <pre>
+ * Iterable&lt;HttpHost&gt; provider = SpinoHttpHostProvider.ofService("my-service", new HostProviderConfig()
+ *     .setZone("eu-west-1a")
+ *     .setSlowStart(60, TimeUnit.SECONDS));
+ * </pre>
+ */
+public class HostProviderConfig {
+
+    private HostSelectionStrategy strategy = null;
+
+    private String zone = null;
+
+    private long slowStartMillis = 0;
+
+    private CircuitBreaker circuitBreaker = null;
+
+    /**
+     * @return the strategy, or null to use the default one
+     */
+    public HostSelectionStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Chooses the first host of each iteration.
+     * Defaults to WeightedRandomStrategy if a zone or slow start are configured, RoundRobinStrategy otherwise.
+     * @param strategy
+     * @return this config
+     */
+    public HostProviderConfig setStrategy(HostSelectionStrategy strategy) {
+        this.strategy = strategy;
+        return this;
+    }
+
+    /**
+     * @return the zone of the caller, or null
+     */
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * Prefer hosts in this zone, see SpinoHttpHostProvider
+     * @param zone - the zone of the caller, or null to use all zones
+     * @return this config
+     */
+    public HostProviderConfig setZone(String zone) {
+        this.zone = zone;
+        return this;
+    }
+
+    public long getSlowStartMillis() {
+        return slowStartMillis;
+    }
+
+    /**
+     * Ramp up the weight of newly activated locations, from a tenth to their full weight,
+     * during this window. Only weighted strategies take slow start into account.
+     * Disabled by default.
+     * @param window - zero to disable slow start
+     * @param unit
+     * @return this config
+     */
+    public HostProviderConfig setSlowStart(long window, TimeUnit unit) {
+        if (window < 0) {
+            throw new IllegalArgumentException("slow start window must not be negative: " + window);
+        }
+        this.slowStartMillis = unit.toMillis(window);
+        return this;
+    }
+
+    /**
+     * @return the circuit breaker, or null
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Skip hosts whose circuit is open, see CircuitBreaker.
+     * @param circuitBreaker - or null to use all hosts
+     * @return this config
+     */
+    public HostProviderConfig setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+}
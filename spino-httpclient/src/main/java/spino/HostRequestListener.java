@@ -0,0 +1,35 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Told about each request sent to a host, see HostRequestTracker.
+ *
+ * Implementations are invoked on the request path of every call,
+ * from many threads at once: they must be thread-safe and should not block.
+ */
+public interface HostRequestListener {
+
+    /**
+     * A request to this host is about to be sent.
+     * @param host
+     */
+    void requestStarted(HttpHost host);
+
+    /**
+     * A request to this host has completed.
+     * Every requestStarted is followed by exactly one requestCompleted or requestCancelled.
+     * @param host
+     * @param latencyNanos - time from sending the request to receiving the response headers, or the failure
+     * @param failed - true if the request failed with an I/O error or a 5xx status
+     */
+    void requestCompleted(HttpHost host, long latencyNanos, boolean failed);
+
+    /**
+     * A request to this host was cancelled before its response, for example the losing attempt
+     * of a hedged request: it is neither a success nor a failure of the host.
+     * @param host
+     * @param elapsedNanos - time from sending the request to cancelling it: the response would have taken longer
+     */
+    void requestCancelled(HttpHost host, long elapsedNanos);
+}
@@ -0,0 +1,136 @@
+package spino;
+
+import org.apache.http.*;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+
+/**
+ * Measures the requests an http client sends to each host, and reports them to HostRequestListeners.
+ *
+ * The tracker is both a request and a response interceptor: latency is measured from sending
+ * a request to receiving its response headers. Responses with a 5xx status are failures.
+ * Requests that fail with an I/O error never reach the response interceptors, and are
+ * reported by the retry handler instead. Requests that fail with other errors, such as
+ * protocol errors, are reported by the client returned by install or track:
+ *
+ * <pre>
+ * HttpClient client = new HostRequestTracker(strategy).install(httpClient);
+ * </pre>
+ *
+ * or, with HttpClientBuilder:
+ *
+ * <pre>
+ * HostRequestTracker tracker = new HostRequestTracker(strategy);
+ * HttpClient client = tracker.track(HttpClientBuilder.create()
+ *     .addInterceptorFirst((HttpRequestInterceptor) tracker)
+ *     .addInterceptorLast((HttpResponseInterceptor) tracker)
+ *     .setRetryHandler(tracker.wrap(new DefaultHttpRequestRetryHandler()))
+ *     .build());
+ * </pre>
+ */
+public class HostRequestTracker implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    private static final String HOST_ATTRIBUTE = "spino.request.host";
+    private static final String START_ATTRIBUTE = "spino.request.start";
+
+    private final HostRequestListener[] listeners;
+
+    public HostRequestTracker(HostRequestListener... listeners) {
+        this.listeners = listeners.clone();
+    }
+
+    /**
+     * Add this tracker to a client, as interceptor and as retry handler.
+     * The current retry handler of the client still decides whether to retry.
+     * @param client
+     * @return the client, that also reports requests failed with errors other than I/O errors:
+     * send requests with it
+     */
+    public HttpClient install(AbstractHttpClient client) {
+        client.addRequestInterceptor(this);
+        client.addResponseInterceptor(this);
+        HttpRequestRetryHandler retryHandler = client.getHttpRequestRetryHandler();
+        client.setHttpRequestRetryHandler(wrap(retryHandler != null ? retryHandler : new DefaultHttpRequestRetryHandler()));
+        return track(client);
+    }
+
+    /**
+     * Report requests that fail with errors other than I/O errors, that never reach the retry handler.
+     * Use it on a client that already has this tracker as interceptor and as retry handler.
+     * @param client
+     * @return a client that sends requests with the given one, and can be closed if it can
+     */
+    public HttpClient track(HttpClient client) {
+        return new TrackedHttpClient(client, this);
+    }
+
+    /**
+     * Report requests that failed with an I/O error, then let another handler decide whether to retry.
+     * @param retryHandler
+     * @return a retry handler
+     */
+    public HttpRequestRetryHandler wrap(final HttpRequestRetryHandler retryHandler) {
+        return new HttpRequestRetryHandler() {
+            @Override
+            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                boolean retry = retryHandler.retryRequest(exception, executionCount, context);
+                if (completed(context, true) && retry) {
+                    // retries go to the same host. HttpClientBuilder clients run the interceptors
+                    // again, that find the request already started
+                    started(context, (HttpHost) context.getAttribute(HOST_ATTRIBUTE));
+                }
+                return retry;
+            }
+        };
+    }
+
+    @Override
+    public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+        HttpHost host = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        if (host != null && context.getAttribute(START_ATTRIBUTE) == null) {
+            started(context, host);
+        }
+    }
+
+    @Override
+    public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+        completed(context, response.getStatusLine().getStatusCode() >= 500);
+    }
+
+    /**
+     * A request failed without reaching the retry handler, if it was in flight
+     */
+    void failed(HttpContext context) {
+        completed(context, true);
+    }
+
+    private void started(HttpContext context, HttpHost host) {
+        context.setAttribute(HOST_ATTRIBUTE, host);
+        context.setAttribute(START_ATTRIBUTE, System.nanoTime());
+        for (HostRequestListener listener : listeners) {
+            listener.requestStarted(host);
+        }
+    }
+
+    /**
+     * @return false if no request was in flight
+     */
+    private boolean completed(HttpContext context, boolean failed) {
+        Long start = (Long) context.removeAttribute(START_ATTRIBUTE);
+        HttpHost host = (HttpHost) context.getAttribute(HOST_ATTRIBUTE);
+        if (start == null || host == null) {
+            return false;
+        }
+        long latency = System.nanoTime() - start;
+        for (HostRequestListener listener : listeners) {
+            listener.requestCompleted(host, latency, failed);
+        }
+        return true;
+    }
+}
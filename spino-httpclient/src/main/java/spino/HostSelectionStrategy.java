@@ -0,0 +1,27 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+/**
+ * Decides which host a SpinoHttpHostProvider iterator starts from.
+ * The iterator then walks the remaining hosts in order, wrapping around,
+ * so that failover still reaches every host.
+ *
+ * Implementations are invoked on the request path of every call,
+ * from many threads at once: they must be thread-safe and should not allocate.
+ */
+public interface HostSelectionStrategy {
+
+    /**
+     * Choose the first host to try.
+     * @param hosts - the current hosts snapshot. Never empty, must not be modified.
+     * @return an index between 0 and hosts.length - 1
+     */
+    int select(HttpHost[] hosts);
+
+    /**
+     * Invoked whenever the provider publishes a new hosts snapshot.
+     * @param hosts - the new hosts snapshot. Must not be modified.
+     */
+    void onHostsChanged(HttpHost[] hosts);
+}
@@ -0,0 +1,113 @@
+package spino;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Outstanding requests, peak EWMA latency and EWMA error rate of a host.
+ *
+ * Averages decay with the time between samples, rather than with their number, so
+ * that busy and idle hosts are comparable. They are kept in an immutable state,
+ * replaced with compare-and-set: recording never takes a lock, reading never allocates.
+ */
+final class HostStats {
+
+    private final long decayNanos;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final AtomicReference<State> state;
+
+    HostStats(long decayNanos, long now) {
+        this.decayNanos = decayNanos;
+        this.state = new AtomicReference<State>(new State(0, 0, now, false));
+    }
+
+    void requestStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    void requestCompleted(long latencyNanos, boolean failed, long now) {
+        if (outstanding.decrementAndGet() < 0) {
+            // the host was removed and re-added while the request was in flight
+            outstanding.set(0);
+        }
+        State current;
+        State updated;
+        do {
+            current = state.get();
+            if (!current.measured) {
+                updated = new State(latencyNanos, failed ? 1 : 0, now, true);
+            }
+            else {
+                double weight = decay(current, now);
+                // peak: a slower response is taken at once, faster ones only lower the average gradually
+                double latency = latencyNanos > current.latency
+                        ? latencyNanos : current.latency * weight + latencyNanos * (1 - weight);
+                double errorRate = current.errorRate * weight + (failed ? 1 - weight : 0);
+                updated = new State(latency, errorRate, Math.max(now, current.stamp), true);
+            }
+        }
+        while (!state.compareAndSet(current, updated));
+    }
+
+    /**
+     * A request was cancelled after this long: its latency is unknown, but longer.
+     * It raises the peak latency if slower, and does not count as an error.
+     */
+    void requestCancelled(long elapsedNanos, long now) {
+        if (outstanding.decrementAndGet() < 0) {
+            outstanding.set(0);
+        }
+        State current;
+        State updated;
+        do {
+            current = state.get();
+            if (current.measured && elapsedNanos <= current.latency) {
+                return;
+            }
+            updated = new State(elapsedNanos, current.errorRate, Math.max(now, current.stamp), true);
+        }
+        while (!state.compareAndSet(current, updated));
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    boolean isMeasured() {
+        return state.get().measured;
+    }
+
+    /**
+     * @return the latency average in nanos, decayed as if a zero latency was observed now
+     */
+    double getLatency(long now) {
+        State current = state.get();
+        return current.latency * decay(current, now);
+    }
+
+    double getErrorRate(long now) {
+        State current = state.get();
+        return current.errorRate * decay(current, now);
+    }
+
+    private double decay(State current, long now) {
+        long elapsed = Math.max(0, now - current.stamp);
+        return Math.exp(-(double) elapsed / decayNanos);
+    }
+
+    private static final class State {
+        private final double latency;
+        private final double errorRate;
+        private final long stamp;
+        private final boolean measured;
+
+        private State(double latency, double errorRate, long stamp, boolean measured) {
+            this.latency = latency;
+            this.errorRate = errorRate;
+            this.stamp = stamp;
+            this.measured = measured;
+        }
+    }
+}
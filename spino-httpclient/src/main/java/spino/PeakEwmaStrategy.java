@@ -0,0 +1,175 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks two random hosts and starts from the one that is expected to respond first.
+ *
+ * The cost of a host is its peak EWMA latency, multiplied by its outstanding requests plus one,
+ * increased by its error rate and divided by its weight. A host that slows down or
+ * starts failing sheds load at once, and gets it back gradually as its averages decay,
+ * without being deactivated.
+ *
+ * The strategy learns about requests from a HostRequestTracker installed on the http client:
+ *
+ * <pre>
+ * PeakEwmaStrategy strategy = new PeakEwmaStrategy();
+ * Iterable&lt;HttpHost&gt; provider = SpinoHttpHostProvider.ofService("my-service", strategy);
+ * FailoverHttpClient httpClient = new FailoverHttpClient();
+ * new HostRequestTracker(strategy).install(httpClient);
+ * </pre>
+ */
+public class PeakEwmaStrategy implements WeightedHostSelectionStrategy, HostRequestListener {
+
+    private static final long DEFAULT_DECAY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // cost of a host with requests in flight and no response yet: wait for the first one
+    private static final double UNMEASURED_COST = TimeUnit.SECONDS.toNanos(1000);
+
+    // a host that fails every request costs this many times more
+    private static final double ERROR_PENALTY = 10;
+
+    private final long decayNanos;
+
+    private final ConcurrentHashMap<HttpHost, HostStats> stats = new ConcurrentHashMap<HttpHost, HostStats>();
+
+    private volatile Weights weights = new Weights(new HttpHost[0], new int[0]);
+
+    public PeakEwmaStrategy() {
+        this.decayNanos = DEFAULT_DECAY_NANOS;
+    }
+
+    /**
+     * @param decay - how long it takes for older samples to lose most (63%) of their influence.
+     *              Defaults to 10 seconds
+     * @param unit
+     */
+    public PeakEwmaStrategy(long decay, TimeUnit unit) {
+        if (decay <= 0) {
+            throw new IllegalArgumentException("decay must be positive: " + decay);
+        }
+        this.decayNanos = unit.toNanos(decay);
+    }
+
+    @Override
+    public int select(HttpHost[] hosts) {
+        if (hosts.length == 1) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(hosts.length);
+        // pick a second, different host
+        int second = (first + 1 + random.nextInt(hosts.length - 1)) % hosts.length;
+        long now = System.nanoTime();
+        Weights current = weights;
+        return cost(hosts, second, current, now) < cost(hosts, first, current, now) ? second : first;
+    }
+
+    private double cost(HttpHost[] hosts, int index, Weights current, long now) {
+        HostStats hostStats = stats.get(hosts[index]);
+        if (hostStats == null) {
+            return 0;
+        }
+        // the provider publishes weights before hosts: a different array means no weights yet
+        int weight = current.hosts == hosts ? current.weights[index] : 1;
+        if (weight == 0) {
+            return Double.MAX_VALUE;
+        }
+        int outstanding = hostStats.getOutstanding();
+        if (!hostStats.isMeasured()) {
+            return outstanding == 0 ? 0 : UNMEASURED_COST + outstanding;
+        }
+        double cost = hostStats.getLatency(now) * (outstanding + 1);
+        return cost * (1 + ERROR_PENALTY * hostStats.getErrorRate(now)) / weight;
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts) {
+        int[] equal = new int[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            equal[i] = 1;
+        }
+        onHostsChanged(hosts, equal);
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts, int[] weights) {
+        Set<HttpHost> current = new HashSet<HttpHost>(hosts.length);
+        long now = System.nanoTime();
+        for (HttpHost host : hosts) {
+            current.add(host);
+            if (!stats.containsKey(host)) {
+                stats.putIfAbsent(host, new HostStats(decayNanos, now));
+            }
+        }
+        stats.keySet().retainAll(current);
+        this.weights = new Weights(hosts, weights);
+    }
+
+    @Override
+    public void requestStarted(HttpHost host) {
+        HostStats hostStats = stats.get(host);
+        if (hostStats != null) {
+            hostStats.requestStarted();
+        }
+    }
+
+    @Override
+    public void requestCompleted(HttpHost host, long latencyNanos, boolean failed) {
+        HostStats hostStats = stats.get(host);
+        if (hostStats != null) {
+            hostStats.requestCompleted(latencyNanos, failed, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void requestCancelled(HttpHost host, long elapsedNanos) {
+        HostStats hostStats = stats.get(host);
+        if (hostStats != null) {
+            hostStats.requestCancelled(elapsedNanos, System.nanoTime());
+        }
+    }
+
+    /**
+     * @param host
+     * @return the peak EWMA latency of this host in milliseconds, or 0 if unknown
+     */
+    public double getLatencyMillis(HttpHost host) {
+        HostStats hostStats = stats.get(host);
+        return hostStats == null ? 0 : hostStats.getLatency(System.nanoTime()) / 1000000;
+    }
+
+    /**
+     * @param host
+     * @return the EWMA error rate of this host, between 0 and 1
+     */
+    public double getErrorRate(HttpHost host) {
+        HostStats hostStats = stats.get(host);
+        return hostStats == null ? 0 : hostStats.getErrorRate(System.nanoTime());
+    }
+
+    /**
+     * @param host
+     * @return the number of outstanding requests to this host
+     */
+    public int getOutstanding(HttpHost host) {
+        HostStats hostStats = stats.get(host);
+        return hostStats == null ? 0 : hostStats.getOutstanding();
+    }
+
+    private static final class Weights {
+        private final HttpHost[] hosts;
+        private final int[] weights;
+
+        private Weights(HttpHost[] hosts, int[] weights) {
+            this.hosts = hosts;
+            this.weights = weights;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks two random hosts and starts from the one with fewer outstanding requests.
+ *
+ * The strategy can only see requests it is told about: callers must invoke
+ * requestStarted() before and requestCompleted() after each request to a host.
+ */
+public class PowerOfTwoChoicesStrategy implements HostSelectionStrategy {
+
+    private final ConcurrentHashMap<HttpHost, AtomicInteger> outstanding = new ConcurrentHashMap<HttpHost, AtomicInteger>();
+
+    @Override
+    public int select(HttpHost[] hosts) {
+        if (hosts.length == 1) {
+            return 0;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(hosts.length);
+        // pick a second, different host
+        int second = (first + 1 + random.nextInt(hosts.length - 1)) % hosts.length;
+        return getOutstanding(hosts[second]) < getOutstanding(hosts[first]) ? second : first;
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts) {
+        Set<HttpHost> current = new HashSet<HttpHost>(hosts.length);
+        for (HttpHost host : hosts) {
+            current.add(host);
+            if (!outstanding.containsKey(host)) {
+                outstanding.putIfAbsent(host, new AtomicInteger());
+            }
+        }
+        outstanding.keySet().retainAll(current);
+    }
+
+    /**
+     * Record that a request to this host has started.
+     * @param host
+     */
+    public void requestStarted(HttpHost host) {
+        AtomicInteger counter = outstanding.get(host);
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a request to this host has completed, successfully or not.
+     * @param host
+     */
+    public void requestCompleted(HttpHost host) {
+        AtomicInteger counter = outstanding.get(host);
+        if (counter != null && counter.decrementAndGet() < 0) {
+            // the host was removed and re-added while the request was in flight
+            counter.set(0);
+        }
+    }
+
+    /**
+     * @param host
+     * @return the number of outstanding requests to this host
+     */
+    public int getOutstanding(HttpHost host) {
+        AtomicInteger counter = outstanding.get(host);
+        return counter == null ? 0 : counter.get();
+    }
+}
@@ -0,0 +1,20 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts each iteration from a random host.
+ */
+public class RandomStrategy implements HostSelectionStrategy {
+
+    @Override
+    public int select(HttpHost[] hosts) {
+        return ThreadLocalRandom.current().nextInt(hosts.length);
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts) {
+    }
+}
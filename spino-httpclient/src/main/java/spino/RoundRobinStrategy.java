@@ -0,0 +1,23 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts each iteration from the next host, rotating over all hosts.
+ */
+public class RoundRobinStrategy implements HostSelectionStrategy {
+
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public int select(HttpHost[] hosts) {
+        // mask the sign bit so the index stays positive when the counter overflows
+        return (counter.getAndIncrement() & Integer.MAX_VALUE) % hosts.length;
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts) {
+    }
+}
@@ -0,0 +1,356 @@
+package spino;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executes requests over the hosts of an Iterable of HttpHost (such as a SpinoHttpHostProvider)
+ * with Apache HttpAsyncClient, without blocking: each call returns a Future at once,
+ * and a few I/O threads can serve thousands of concurrent calls.
+ *
+ * A request is sent to the first host of a new iteration. If it fails with an I/O error,
+ * it is sent again to the next host, until a host responds or all hosts have been tried:
+ * the future then fails with the last error. Responses are never retried, whatever their status.
+ * If the HttpAsyncClient refuses a request (for example once it is stopped), the future fails with its error.
+ *
+ * Only idempotent requests (GET, HEAD, OPTIONS, TRACE, PUT, DELETE) are retried after any I/O error.
+ * Other requests are only retried if the connection could not be established, so that they
+ * are never sent twice. Requests with an entity that can not be repeated are never retried.
+ *
+ * With a HedgingPolicy, an idempotent request that has no response after the hedging delay
+ * is also sent to the next host: the first response wins, and the other attempt is cancelled.
+ *
+ * Each attempt is reported to the HostRequestListeners, measured from sending the request
+ * to receiving the whole response: 5xx responses and I/O errors are failures. Attempts
+ * cancelled before their response, such as the losers of a hedged request, are reported as cancelled.
+ *
+ * <pre>
+ * CloseableHttpAsyncClient httpClient = HttpAsyncClients.createDefault();
+ * httpClient.start();
+ * SpinoHttpAsyncClient client = new SpinoHttpAsyncClient(httpClient);
+ * Future&lt;HttpResponse&gt; response = client.execute(provider, new HttpGet("/index.html"), callback);
+ * </pre>
+ */
+public class SpinoHttpAsyncClient {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<String>(Arrays.asList(
+            "GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE"));
+
+    // sends the hedged requests, for all clients
+    private static final ScheduledExecutorService HEDGING_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "spino-hedging");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final HttpAsyncClient client;
+
+    private final HostRequestListener[] listeners;
+
+    /**
+     * @param client - a started HttpAsyncClient
+     * @param listeners - told about each attempt, for example a PeakEwmaStrategy
+     */
+    public SpinoHttpAsyncClient(HttpAsyncClient client, HostRequestListener... listeners) {
+        this.client = client;
+        this.listeners = listeners.clone();
+    }
+
+    public Future<HttpResponse> execute(Iterable<HttpHost> hosts, HttpRequest request) {
+        return execute(hosts, request, null, null, null);
+    }
+
+    public Future<HttpResponse> execute(Iterable<HttpHost> hosts, HttpRequest request,
+                                        FutureCallback<HttpResponse> callback) {
+        return execute(hosts, request, null, null, callback);
+    }
+
+    public Future<HttpResponse> execute(Iterable<HttpHost> hosts, HttpRequest request, HedgingPolicy hedging,
+                                        FutureCallback<HttpResponse> callback) {
+        return execute(hosts, request, hedging, null, callback);
+    }
+
+    /**
+     * Execute a request on the first host that responds.
+     * @param hosts - the hosts to try, in iteration order
+     * @param request - the request, with a path relative to the hosts
+     * @param hedging - when to send a duplicate of a slow request, or null to never do it
+     * @param context - parent of the context of each attempt, or null
+     * @param callback - notified when the request completes, or null
+     * @return the response of the first host that responds
+     */
+    public Future<HttpResponse> execute(Iterable<HttpHost> hosts, HttpRequest request, HedgingPolicy hedging,
+                                        HttpContext context, FutureCallback<HttpResponse> callback) {
+        final Execution execution = new Execution(hosts.iterator(), request, context, callback);
+        if (hedging != null && isIdempotent(request) && isRepeatable(request)) {
+            execution.hedging = hedging;
+            hedging.requestStarted();
+        }
+        execution.next(null, true);
+        if (execution.hedging != null && !execution.result.isDone()) {
+            HEDGING_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    execution.hedge();
+                }
+            }, execution.hedging.delayNanos(), TimeUnit.NANOSECONDS);
+        }
+        return execution.result;
+    }
+
+    private static boolean isIdempotent(HttpRequest request) {
+        return IDEMPOTENT_METHODS.contains(request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH));
+    }
+
+    private static boolean isRepeatable(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the request can be sent again to another host after this failure
+     */
+    private static boolean isRetriable(HttpRequest request, Exception ex) {
+        if (!(ex instanceof IOException) || !isRepeatable(request)) {
+            return false;
+        }
+        if (isIdempotent(request)) {
+            return true;
+        }
+        // the request was not sent
+        return ex instanceof ConnectException || ex instanceof ConnectTimeoutException
+                || ex instanceof UnknownHostException;
+    }
+
+    /**
+     * The attempts of one request. A new attempt is started by the failure of the previous one,
+     * or by the hedging timer.
+     */
+    private final class Execution {
+        private final HttpRequest request;
+        private final HttpContext context;
+
+        private final BasicFuture<HttpResponse> result;
+
+        private final long started = System.nanoTime();
+
+        // null if the request is not hedged
+        private HedgingPolicy hedging;
+
+        // guarded by this, as the following fields
+        private final Iterator<HttpHost> hosts;
+
+        // attempts in flight
+        private final List<Attempt> attempts = new ArrayList<Attempt>(2);
+
+        private Exception lastFailure;
+
+        private Execution(Iterator<HttpHost> hosts, HttpRequest request, HttpContext context,
+                          FutureCallback<HttpResponse> callback) {
+            this.hosts = hosts;
+            this.request = request;
+            this.context = context;
+            this.result = new BasicFuture<HttpResponse>(callback) {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    boolean cancelled = super.cancel(mayInterruptIfRunning);
+                    if (cancelled) {
+                        cancelAttempts(null);
+                    }
+                    return cancelled;
+                }
+            };
+        }
+
+        /**
+         * Send the request to the next host. If there are none, and no other attempt is in flight,
+         * fail with the last failure.
+         * @param failure - the failure of the previous attempt, or null
+         * @param retry - false if the previous attempt failed in a way that forbids retrying
+         */
+        private void next(Exception failure, boolean retry) {
+            Attempt attempt = null;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                if (failure != null) {
+                    lastFailure = failure;
+                }
+                if (retry && hosts.hasNext()) {
+                    attempt = new Attempt(hosts.next());
+                    attempts.add(attempt);
+                }
+                else if (!attempts.isEmpty()) {
+                    // the other attempt may still succeed
+                    return;
+                }
+            }
+            if (attempt == null) {
+                result.failed(lastFailure != null ? lastFailure
+                        : new IOException("No host available for " + request.getRequestLine()));
+            }
+            else {
+                attempt.start();
+            }
+        }
+
+        /**
+         * Send a duplicate of the request to the next host, if it is still waiting for the first one.
+         */
+        private void hedge() {
+            Attempt attempt;
+            synchronized (this) {
+                if (result.isDone() || attempts.size() != 1 || !hosts.hasNext() || !hedging.tryHedge()) {
+                    return;
+                }
+                attempt = new Attempt(hosts.next());
+                attempts.add(attempt);
+            }
+            attempt.start();
+        }
+
+        /**
+         * @return true if the attempt was in flight
+         */
+        private synchronized boolean finished(Attempt attempt) {
+            return attempts.remove(attempt);
+        }
+
+        /**
+         * Measure the request, from its start to the response of the winner, and the attempts
+         * still in flight, that would have taken longer than they ran.
+         */
+        private void recordLatency(Attempt winner) {
+            long now = System.nanoTime();
+            hedging.record(now - started);
+            synchronized (this) {
+                for (Attempt attempt : attempts) {
+                    if (attempt != winner && attempt.started != 0) {
+                        hedging.recordCensored(now - attempt.started);
+                    }
+                }
+            }
+        }
+
+        private void cancelAttempts(Attempt winner) {
+            List<Attempt> losers;
+            synchronized (this) {
+                losers = new ArrayList<Attempt>(attempts);
+            }
+            for (Attempt attempt : losers) {
+                if (attempt != winner) {
+                    attempt.cancel();
+                }
+            }
+        }
+
+        private final class Attempt implements FutureCallback<HttpResponse> {
+            private final HttpHost host;
+            private volatile long started;
+            private volatile Future<HttpResponse> future;
+
+            private Attempt(HttpHost host) {
+                this.host = host;
+            }
+
+            private void start() {
+                started = System.nanoTime();
+                for (HostRequestListener listener : listeners) {
+                    listener.requestStarted(host);
+                }
+                try {
+                    future = client.execute(host, request, new BasicHttpContext(context), this);
+                }
+                catch (RuntimeException ex) {
+                    // such as IllegalStateException once the client is stopped:
+                    // the callback is never invoked, so report the failure here
+                    failed(ex);
+                    return;
+                }
+                if (result.isDone()) {
+                    // another attempt won, or the request was cancelled, while this one was starting
+                    future.cancel(true);
+                }
+            }
+
+            private void cancel() {
+                Future<HttpResponse> current = future;
+                if (current != null) {
+                    current.cancel(true);
+                }
+            }
+
+            private void completed(boolean failed) {
+                long latency = System.nanoTime() - started;
+                for (HostRequestListener listener : listeners) {
+                    listener.requestCompleted(host, latency, failed);
+                }
+            }
+
+            @Override
+            public void completed(HttpResponse response) {
+                finished(this);
+                completed(response.getStatusLine().getStatusCode() >= 500);
+                if (result.completed(response)) {
+                    if (hedging != null) {
+                        recordLatency(this);
+                    }
+                    cancelAttempts(this);
+                }
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                finished(this);
+                completed(true);
+                next(ex, isRetriable(request, ex));
+            }
+
+            @Override
+            public void cancelled() {
+                boolean inFlight = finished(this);
+                long elapsed = System.nanoTime() - started;
+                for (HostRequestListener listener : listeners) {
+                    listener.requestCancelled(host, elapsed);
+                }
+                if (inFlight && !result.isDone()) {
+                    // cancelled by the underlying client
+                    next(new IOException("Request cancelled on " + host), false);
+                }
+            }
+        }
+    }
+}
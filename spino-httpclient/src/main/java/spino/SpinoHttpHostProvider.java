@@ -1,11 +1,18 @@
 package spino;
 
 import org.apache.http.HttpHost;
+import spino.core.LocationMetadata;
+import spino.core.ServiceChangeEvent;
 import spino.core.Spino;
-import spino.core.SpinoServiceListener;
+import spino.core.SpinoServiceChangeListener;
 
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Provides an always up-to-date view of available
@@ -13,44 +20,282 @@ import java.util.*;
  *
  * This is useful when using Spino with Apache HttpClient
  * or Httpclient-Failover
+ *
+ * Hosts are kept in an immutable array snapshot, replaced atomically
+ * when the service changes, so iterating never takes a lock or copies the hosts.
+ * A HostSelectionStrategy chooses the host each iteration starts from.
+ *
+ * A provider can prefer the hosts in its own zone (see LocationMetadata): as long as
+ * at least half of the capacity of the local zone is available, only local hosts are used.
+ * Otherwise, traffic spills over to all zones. Capacity is measured by weight, and
+ * is unavailable while its locations are disabled (their member left the cluster,
+ * or they failed health checks).
+ *
+ * With slow start, locations activated after this node joined the cluster
+ * receive a growing share of traffic, until the slow start window is over:
+ * their weight ramps up linearly from a tenth of their weight.
+ *
+ * With a CircuitBreaker, iterations skip the hosts whose circuit is open.
  */
 public class SpinoHttpHostProvider implements Iterable<HttpHost> {
 
-    private ArrayList<HttpHost> hosts = new ArrayList<HttpHost>();
+    private static final HttpHost[] NO_HOSTS = new HttpHost[0];
+
+    // fraction of the weight of the local zone that must be available to keep traffic local
+    private static final double MIN_LOCAL_CAPACITY = 0.5;
+
+    // weights are scaled, so that a fraction of a weight can be represented
+    private static final int WEIGHT_SCALE = 100;
+    private static final double SLOW_START_MIN_FRACTION = 0.1;
+    // weights of slow starting locations are updated this many times during the window
+    private static final int SLOW_START_STEPS = 20;
+
+    // updates the weights of slow starting locations, for all providers
+    private static final ScheduledExecutorService SLOW_START_TIMER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "spino-slow-start");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final AtomicReference<HttpHost[]> hosts = new AtomicReference<HttpHost[]>(NO_HOSTS);
 
     private final String service;
 
+    private final HostSelectionStrategy strategy;
+
+    // the preferred zone, or null
+    private final String zone;
+
+    private final long slowStartMillis;
+
+    // or null
+    private final CircuitBreaker circuitBreaker;
+
+    // location -> host, keyed by the URL string so that URLs are never compared.
+    // Only accessed by writers, while holding the monitor, as the following maps
+    private final Map<String, HttpHost> locations = new LinkedHashMap<String, HttpHost>();
+
+    // location -> metadata, for available locations
+    private Map<String, LocationMetadata> metadata = new HashMap<String, LocationMetadata>();
+
+    // location -> weight, for disabled locations in the preferred zone
+    private final Map<String, Integer> disabledLocal = new HashMap<String, Integer>();
+
+    // location -> local activation time, for available locations
+    private Map<String, Long> activationTimes = new HashMap<String, Long>();
+
+    private boolean slowStartScheduled = false;
+
+    /**
+     * Hosts of a service, balanced using round robin.
+     * @param service - the service name
+     * @return
+     */
     public static Iterable<HttpHost> ofService(String service) {
-        return new SpinoHttpHostProvider(service);
+        return ofService(service, new RoundRobinStrategy());
+    }
+
+    /**
+     * Hosts of a service, balanced using a custom strategy.
+     * @param service - the service name
+     * @param strategy - chooses the first host of each iteration
+     * @return
+     */
+    public static Iterable<HttpHost> ofService(String service, HostSelectionStrategy strategy) {
+        return ofService(service, new HostProviderConfig().setStrategy(strategy));
+    }
+
+    /**
+     * Hosts of a service, balanced according to a configuration.
+     * @param service - the service name
+     * @param config
+     * @return
+     */
+    public static Iterable<HttpHost> ofService(String service, HostProviderConfig config) {
+        HostSelectionStrategy strategy = config.getStrategy();
+        if (strategy == null) {
+            strategy = config.getZone() != null || config.getSlowStartMillis() > 0
+                    ? new WeightedRandomStrategy() : new RoundRobinStrategy();
+        }
+        return new SpinoHttpHostProvider(service, strategy, config.getZone(), config.getSlowStartMillis(),
+                config.getCircuitBreaker());
     }
 
-    private SpinoHttpHostProvider(String service) {
+    /**
+     * Hosts of a service, preferring hosts in a zone, balanced by weight.
+     * @param service - the service name
+     * @param zone - the zone of the caller
+     * @return
+     */
+    public static Iterable<HttpHost> ofServiceInZone(String service, String zone) {
+        return ofServiceInZone(service, zone, new WeightedRandomStrategy());
+    }
+
+    /**
+     * Hosts of a service, preferring hosts in a zone, balanced using a custom strategy.
+     * @param service - the service name
+     * @param zone - the zone of the caller
+     * @param strategy - chooses the first host of each iteration
+     * @return
+     */
+    public static Iterable<HttpHost> ofServiceInZone(String service, String zone, HostSelectionStrategy strategy) {
+        return ofService(service, new HostProviderConfig().setZone(zone).setStrategy(strategy));
+    }
+
+    private SpinoHttpHostProvider(String service, HostSelectionStrategy strategy, String zone, long slowStartMillis,
+                                  CircuitBreaker circuitBreaker) {
         this.service = service;
-        Spino.addServiceListener(service, new SpinoServiceListener() {
+        this.strategy = strategy;
+        this.zone = zone;
+        this.slowStartMillis = slowStartMillis;
+        this.circuitBreaker = circuitBreaker;
+        Spino.addServiceChangeListener(service, new SpinoServiceChangeListener() {
             @Override
-            public void onServiceChange(String service) {
-                buildHostsList(Spino.getLocations(service));
+            public void onServiceChange(ServiceChangeEvent event) {
+                updateHostsList(event);
             }
         });
-        buildHostsList(Spino.getLocations(service));
+        buildHostsList(Spino.getLocations(service), Spino.getLocationMetadata(service),
+                Spino.getLocationActivationTimes(service));
+    }
+
+    synchronized void buildHostsList(Collection<URL> addresses) {
+        buildHostsList(addresses, Collections.<String, LocationMetadata>emptyMap(), Collections.<String, Long>emptyMap());
+    }
+
+    // writers are serialized so that an older list can never replace a newer one,
+    // readers only ever see the published array
+    synchronized void buildHostsList(Collection<URL> addresses, Map<String, LocationMetadata> metadata,
+                                     Map<String, Long> activationTimes) {
+        for(URL address : addresses) {
+            locations.put(address.toString(), toHttpHost(address));
+        }
+        this.metadata = new HashMap<String, LocationMetadata>(metadata);
+        this.activationTimes = new HashMap<String, Long>(activationTimes);
+        publish();
     }
 
-    private synchronized void buildHostsList(Collection<URL> addresses) {
-        HashSet<URL> URLs = new HashSet<URL>(addresses);
-        URLs.removeAll(hosts);
+    private synchronized void updateHostsList(ServiceChangeEvent event) {
+        for (URL address : event.getRemoved()) {
+            locations.remove(address.toString());
+            disabledLocal.remove(address.toString());
+        }
+        for (URL address : event.getDisabled()) {
+            locations.remove(address.toString());
+            LocationMetadata disabled = metadataOf(address.toString());
+            if (isLocal(disabled)) {
+                disabledLocal.put(address.toString(), disabled.getWeight());
+            }
+        }
+        for (URL address : event.getAdded()) {
+            locations.put(address.toString(), toHttpHost(address));
+            disabledLocal.remove(address.toString());
+        }
+        metadata = new HashMap<String, LocationMetadata>(event.getMetadata());
+        activationTimes = new HashMap<String, Long>(event.getActivationTimes());
+        publish();
+    }
 
-        ArrayList<HttpHost> newHosts = new ArrayList<HttpHost>();
-        // add any new host
-        for(URL address : URLs) {
-            newHosts.add(new HttpHost(address.getHost(), address.getPort(), address.getProtocol()));
+    private synchronized void slowStartStep() {
+        slowStartScheduled = false;
+        publish();
+    }
+
+    private void publish() {
+        Collection<String> selected = locations.keySet();
+        if (zone != null) {
+            List<String> local = new ArrayList<String>();
+            long localWeight = 0;
+            for (String location : locations.keySet()) {
+                if (isLocal(metadataOf(location))) {
+                    local.add(location);
+                    localWeight += metadataOf(location).getWeight();
+                }
+            }
+            long unavailableWeight = 0;
+            for (int weight : disabledLocal.values()) {
+                unavailableWeight += weight;
+            }
+            if (!local.isEmpty() && localWeight >= (localWeight + unavailableWeight) * MIN_LOCAL_CAPACITY) {
+                selected = local;
+            }
         }
 
-        hosts = newHosts;
+        // several locations (e.g. different paths) can share a host
+        long now = System.currentTimeMillis();
+        boolean slowStarting = false;
+        Map<HttpHost, Long> weights = new LinkedHashMap<HttpHost, Long>();
+        for (String location : selected) {
+            HttpHost host = locations.get(location);
+            double fraction = slowStartFraction(location, now);
+            slowStarting |= fraction < 1;
+            long locationWeight = Math.round((long) metadataOf(location).getWeight() * WEIGHT_SCALE * fraction);
+            Long weight = weights.get(host);
+            weights.put(host, (weight == null ? 0 : weight) + locationWeight);
+        }
+        if (slowStarting && !slowStartScheduled) {
+            slowStartScheduled = true;
+            SLOW_START_TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    slowStartStep();
+                }
+            }, Math.max(100, slowStartMillis / SLOW_START_STEPS), TimeUnit.MILLISECONDS);
+        }
+        HttpHost[] newHosts = weights.keySet().toArray(NO_HOSTS);
+        if (strategy instanceof WeightedHostSelectionStrategy) {
+            int[] newWeights = new int[newHosts.length];
+            for (int i = 0; i < newHosts.length; i++) {
+                // a host serving many heavy locations
+                newWeights[i] = (int) Math.min(Integer.MAX_VALUE, weights.get(newHosts[i]));
+            }
+            ((WeightedHostSelectionStrategy) strategy).onHostsChanged(newHosts, newWeights);
+        }
+        else {
+            strategy.onHostsChanged(newHosts);
+        }
+        hosts.set(newHosts);
     }
 
-    @Override
-    public synchronized Iterator<HttpHost> iterator() {
-        return hosts.iterator();
+    /**
+     * @return the fraction of its weight a location should receive now
+     */
+    private double slowStartFraction(String location, long now) {
+        Long activatedAt = activationTimes.get(location);
+        if (slowStartMillis == 0 || activatedAt == null || activatedAt == 0) {
+            return 1;
+        }
+        double elapsed = (double) (now - activatedAt) / slowStartMillis;
+        if (elapsed >= 1) {
+            return 1;
+        }
+        return SLOW_START_MIN_FRACTION + (1 - SLOW_START_MIN_FRACTION) * Math.max(0, elapsed);
+    }
+
+    private LocationMetadata metadataOf(String location) {
+        LocationMetadata locationMetadata = metadata.get(location);
+        return locationMetadata == null ? LocationMetadata.DEFAULT : locationMetadata;
+    }
+
+    private boolean isLocal(LocationMetadata locationMetadata) {
+        return zone != null && zone.equals(locationMetadata.getZone());
+    }
 
+    private static HttpHost toHttpHost(URL address) {
+        return new HttpHost(address.getHost(), address.getPort(), address.getProtocol());
+    }
+
+    @Override
+    public Iterator<HttpHost> iterator() {
+        HttpHost[] snapshot = hosts.get();
+        if (snapshot.length == 0) {
+            return Collections.<HttpHost>emptyList().iterator();
+        }
+        HostIterator iterator = new HostIterator(snapshot, strategy.select(snapshot));
+        return circuitBreaker == null ? iterator : new CircuitBreakerIterator(iterator, circuitBreaker);
     }
 }
@@ -0,0 +1,139 @@
+package spino;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * An http client that reports to a HostRequestTracker the requests that fail without
+ * reaching its retry handler, such as protocol errors. See HostRequestTracker.track.
+ */
+final class TrackedHttpClient implements HttpClient, Closeable {
+
+    private final HttpClient client;
+    private final HostRequestTracker tracker;
+
+    TrackedHttpClient(HttpClient client, HostRequestTracker tracker) {
+        this.client = client;
+        this.tracker = tracker;
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return execute(request, (HttpContext) null);
+    }
+
+    @Override
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        HttpContext current = context != null ? context : new BasicHttpContext();
+        try {
+            return client.execute(request, current);
+        }
+        catch (IOException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+    }
+
+    @Override
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        return execute(target, request, (HttpContext) null);
+    }
+
+    @Override
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) throws IOException {
+        HttpContext current = context != null ? context : new BasicHttpContext();
+        try {
+            return client.execute(target, request, current);
+        }
+        catch (IOException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) throws IOException {
+        return execute(request, handler, null);
+    }
+
+    @Override
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, HttpContext context)
+            throws IOException {
+        HttpContext current = context != null ? context : new BasicHttpContext();
+        try {
+            return client.execute(request, handler, current);
+        }
+        catch (IOException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+    }
+
+    @Override
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler)
+            throws IOException {
+        return execute(target, request, handler, null);
+    }
+
+    @Override
+    public <T> T execute(HttpHost target, HttpRequest request, ResponseHandler<? extends T> handler,
+                         HttpContext context) throws IOException {
+        HttpContext current = context != null ? context : new BasicHttpContext();
+        try {
+            return client.execute(target, request, handler, current);
+        }
+        catch (IOException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+        catch (RuntimeException ex) {
+            tracker.failed(current);
+            throw ex;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return client.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return client.getConnectionManager();
+    }
+
+    /**
+     * Close the wrapped client, if it can be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (client instanceof Closeable) {
+            ((Closeable) client).close();
+        }
+    }
+}
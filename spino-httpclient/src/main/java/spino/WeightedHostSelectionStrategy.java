@@ -0,0 +1,20 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+/**
+ * A HostSelectionStrategy that takes the weight of each host into account.
+ *
+ * SpinoHttpHostProvider invokes onHostsChanged(HttpHost[], int[]) instead of
+ * onHostsChanged(HttpHost[]) on weighted strategies. The weight of a host is
+ * the sum of the weights of the locations it serves, see LocationMetadata.
+ */
+public interface WeightedHostSelectionStrategy extends HostSelectionStrategy {
+
+    /**
+     * Invoked whenever the provider publishes a new hosts snapshot.
+     * @param hosts - the new hosts snapshot. Must not be modified.
+     * @param weights - the weight of each host, zero or more. Must not be modified.
+     */
+    void onHostsChanged(HttpHost[] hosts, int[] weights);
+}
@@ -0,0 +1,70 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Starts from a random host, chosen with probability proportional to its weight.
+ * Hosts with weight zero are only used for failover.
+ */
+public class WeightedRandomStrategy implements WeightedHostSelectionStrategy {
+
+    private volatile Weights weights = new Weights(new HttpHost[0], new int[0]);
+
+    @Override
+    public int select(HttpHost[] hosts) {
+        Weights current = weights;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // the provider publishes weights before hosts: a different array means no weights yet
+        if (current.hosts != hosts || current.total == 0) {
+            return random.nextInt(hosts.length);
+        }
+        long point = random.nextLong(current.total);
+        // the first host whose cumulative weight is greater than point
+        long[] cumulative = current.cumulative;
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] > point) {
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts) {
+        int[] weights = new int[hosts.length];
+        Arrays.fill(weights, 1);
+        onHostsChanged(hosts, weights);
+    }
+
+    @Override
+    public void onHostsChanged(HttpHost[] hosts, int[] weights) {
+        this.weights = new Weights(hosts, weights);
+    }
+
+    private static final class Weights {
+        private final HttpHost[] hosts;
+        // in long, as many hosts of large weight add up past Integer.MAX_VALUE
+        private final long[] cumulative;
+        private final long total;
+
+        private Weights(HttpHost[] hosts, int[] weights) {
+            this.hosts = hosts;
+            this.cumulative = new long[weights.length];
+            long total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                total += Math.max(0, weights[i]);
+                cumulative[i] = total;
+            }
+            this.total = total;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package spino;
+
+import org.apache.http.HttpHost;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that cancelled requests, such as the losers of hedged requests, count as neither
+ * successes nor failures: a closed circuit still trips on consecutive failures between
+ * cancellations, a cancelled probe does not close a half-open circuit, and a PeakEwmaStrategy
+ * takes the time until cancellation as a lower bound of the latency.
+ *
+ * Run with: java -cp ... spino.CancelledRequestCheck
+ */
+public class CancelledRequestCheck {
+
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static void main(String[] args) throws Exception {
+        HttpHost host = new HttpHost("127.0.0.1", 8080, "http");
+
+        CircuitBreaker breaker = new CircuitBreaker().setFailureThreshold(3)
+                .setOpenTimeout(50, TimeUnit.MILLISECONDS).setHalfOpenProbes(1);
+        for (int i = 0; i < 3; i++) {
+            breaker.requestStarted(host);
+            breaker.requestCompleted(host, 1000 * MILLI, true);
+            // a hedge to this host lost the race
+            breaker.requestStarted(host);
+            breaker.requestCancelled(host, 200 * MILLI);
+        }
+        check(breaker.getState(host) == CircuitBreaker.State.OPEN, "circuit " + breaker.getState(host) + " after 3 failures");
+
+        Thread.sleep(60);
+        check(breaker.allowRequest(host), "probe refused");
+        breaker.requestStarted(host);
+        breaker.requestCancelled(host, 10 * MILLI);
+        check(breaker.getState(host) == CircuitBreaker.State.HALF_OPEN,
+                "circuit " + breaker.getState(host) + " after a cancelled probe");
+        // the cancelled probe lets another one through, that succeeds
+        check(breaker.allowRequest(host), "second probe refused");
+        breaker.requestStarted(host);
+        breaker.requestCompleted(host, 10 * MILLI, false);
+        check(breaker.getState(host) == CircuitBreaker.State.CLOSED,
+                "circuit " + breaker.getState(host) + " after a successful probe");
+
+        PeakEwmaStrategy strategy = new PeakEwmaStrategy();
+        strategy.onHostsChanged(new HttpHost[] { host });
+        strategy.requestStarted(host);
+        strategy.requestCompleted(host, 10 * MILLI, false);
+        strategy.requestStarted(host);
+        strategy.requestCancelled(host, 500 * MILLI);
+        double latency = strategy.getLatencyMillis(host);
+        check(latency > 400, "latency " + latency + " ms after a request cancelled at 500 ms");
+        strategy.requestStarted(host);
+        strategy.requestCancelled(host, 1 * MILLI);
+        check(strategy.getLatencyMillis(host) > 400, "a quick cancellation lowered the latency");
+        check(strategy.getErrorRate(host) == 0, "cancellations counted as errors");
+        check(strategy.getOutstanding(host) == 0, strategy.getOutstanding(host) + " requests left outstanding");
+
+        System.out.println("ok");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
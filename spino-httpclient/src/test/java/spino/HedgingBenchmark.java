@@ -0,0 +1,153 @@
+package spino;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the latency of requests to two local hosts that answer at once, except for a
+ * fraction of requests that take SLOW_MILLIS, without hedging, with a fixed hedging delay,
+ * and with a percentile. Reports the percentiles of latency, the hedges sent,
+ * and the hedging delay at the end.
+ *
+ * Run with: java -cp ... spino.HedgingBenchmark [requests] [slow fraction] [budget]
+ */
+public class HedgingBenchmark {
+
+    private static final int SLOW_MILLIS = 500;
+    private static final int CONCURRENCY = 32;
+
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        double slow = args.length > 1 ? Double.parseDouble(args[1]) : 0.02;
+        double budget = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+
+        // otherwise Nagle's algorithm delays each response by tens of milliseconds
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        HttpHost[] hosts = { start(slow), start(slow) };
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setMaxConnPerRoute(CONCURRENCY * 2).setMaxConnTotal(CONCURRENCY * 4).build();
+        httpClient.start();
+        try {
+            SpinoHttpAsyncClient client = new SpinoHttpAsyncClient(httpClient);
+            System.out.printf("%d requests, %.1f%% take %d ms, budget %.0f%%%n",
+                    requests, slow * 100, SLOW_MILLIS, budget * 100);
+            // warm up
+            run(client, hosts, null, requests / 10);
+            report("no hedging", run(client, hosts, null, requests), null);
+            HedgingPolicy fixed = new HedgingPolicy().setDelay(50, TimeUnit.MILLISECONDS).setBudget(budget);
+            report("fixed 50 ms", run(client, hosts, fixed, requests), fixed);
+            HedgingPolicy p95 = new HedgingPolicy().setPercentile(95).setBudget(budget);
+            report("p95", run(client, hosts, p95, requests), p95);
+        }
+        finally {
+            httpClient.close();
+        }
+        System.exit(0);
+    }
+
+    private static HttpHost start(final double slow) throws IOException {
+        final Random random = new Random();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean slowRequest;
+                synchronized (random) {
+                    slowRequest = random.nextDouble() < slow;
+                }
+                if (slowRequest) {
+                    try {
+                        Thread.sleep(SLOW_MILLIS);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                byte[] body = "ok".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        return new HttpHost("127.0.0.1", server.getAddress().getPort(), "http");
+    }
+
+    /**
+     * @return the latency of each request, in nanos
+     */
+    private static long[] run(SpinoHttpAsyncClient client, HttpHost[] hosts, HedgingPolicy hedging, int requests)
+            throws InterruptedException {
+        final long[] latencies = new long[requests];
+        final CountDownLatch done = new CountDownLatch(requests);
+        final Semaphore inFlight = new Semaphore(CONCURRENCY);
+        for (int i = 0; i < requests; i++) {
+            // alternate the first host
+            List<HttpHost> order = i % 2 == 0 ? Arrays.asList(hosts[0], hosts[1]) : Arrays.asList(hosts[1], hosts[0]);
+            inFlight.acquire();
+            final int request = i;
+            final long start = System.nanoTime();
+            client.execute(order, new HttpGet("/"), hedging, new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    finish(-1);
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                    System.err.println("request failed: " + ex);
+                    finish(Long.MAX_VALUE);
+                }
+
+                @Override
+                public void cancelled() {
+                    finish(Long.MAX_VALUE);
+                }
+
+                private void finish(long latency) {
+                    latencies[request] = latency < 0 ? System.nanoTime() - start : latency;
+                    inFlight.release();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return latencies;
+    }
+
+    private static void report(String name, long[] latencies, HedgingPolicy hedging) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-12s p50 %6.1f ms, p95 %6.1f ms, p99 %6.1f ms, p99.9 %6.1f ms", name,
+                percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99), percentile(sorted, 99.9));
+        if (hedging != null) {
+            System.out.printf(", %d hedges (%.1f%%), delay %d ms", hedging.getHedges(),
+                    100.0 * hedging.getHedges() / hedging.getRequests(), hedging.getDelayMillis());
+        }
+        System.out.println();
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(sorted.length * percentile / 100))] / 1000000.0;
+    }
+}
@@ -0,0 +1,109 @@
+package spino;
+
+import org.apache.http.*;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Checks that HostRequestTracker reports as many completed requests as started ones,
+ * with a DefaultHttpClient and with an HttpClientBuilder client: after successful requests,
+ * requests retried after I/O errors and requests failed with protocol errors, no request
+ * is left outstanding.
+ *
+ * Run with: java -cp ... spino.HostRequestTrackerCheck
+ */
+public class HostRequestTrackerCheck {
+
+    public static void main(String[] args) throws Exception {
+        final ServerSocket server = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve(server);
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // the server closes connections to /close at once, and answers other requests
+        HttpHost host = new HttpHost("127.0.0.1", server.getLocalPort(), "http");
+
+        for (String style : new String[] { "DefaultHttpClient", "HttpClientBuilder" }) {
+            for (String path : new String[] { "/ok", "/close", "/reject" }) {
+                PeakEwmaStrategy strategy = new PeakEwmaStrategy();
+                strategy.onHostsChanged(new HttpHost[] { host });
+                HttpClient client = style.equals("DefaultHttpClient") ? legacyClient(strategy) : builtClient(strategy);
+                try {
+                    HttpResponse response = client.execute(host, new HttpGet(path));
+                    EntityUtils.consume(response.getEntity());
+                }
+                catch (IOException ex) {
+                    // expected for /close and /reject
+                }
+                int outstanding = strategy.getOutstanding(host);
+                System.out.printf("%-18s %-8s outstanding %d%n", style, path, outstanding);
+                if (outstanding != 0) {
+                    throw new AssertionError(style + " " + path + " left " + outstanding + " outstanding requests");
+                }
+            }
+        }
+        System.out.println("ok");
+    }
+
+    private static HttpClient legacyClient(PeakEwmaStrategy strategy) {
+        DefaultHttpClient client = new DefaultHttpClient();
+        HttpClient tracked = new HostRequestTracker(strategy).install(client);
+        client.addRequestInterceptor(REJECT);
+        return tracked;
+    }
+
+    private static HttpClient builtClient(PeakEwmaStrategy strategy) {
+        HostRequestTracker tracker = new HostRequestTracker(strategy);
+        return tracker.track(HttpClientBuilder.create()
+                .addInterceptorFirst((HttpRequestInterceptor) tracker)
+                .addInterceptorLast((HttpResponseInterceptor) tracker)
+                .addInterceptorLast(REJECT)
+                .setRetryHandler(tracker.wrap(new DefaultHttpRequestRetryHandler()))
+                .build());
+    }
+
+    // fails requests to /reject after the tracker started them, as a protocol error would
+    private static final HttpRequestInterceptor REJECT = new HttpRequestInterceptor() {
+        @Override
+        public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+            if (request.getRequestLine().getUri().endsWith("/reject")) {
+                throw new ProtocolException("rejected");
+            }
+        }
+    };
+
+    private static void serve(ServerSocket server) {
+        while (true) {
+            try {
+                Socket socket = server.accept();
+                byte[] buffer = new byte[4096];
+                int read = socket.getInputStream().read(buffer);
+                String request = read > 0 ? new String(buffer, 0, read, "ISO-8859-1") : "";
+                if (!request.startsWith("GET /close")) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok".getBytes("ISO-8859-1"));
+                    out.flush();
+                }
+                socket.close();
+            }
+            catch (IOException ex) {
+                return;
+            }
+        }
+    }
+}